@@ -0,0 +1,119 @@
+package adapter;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compare the overhead of the platform adapters.
+ *
+ * Usage: java adapter.AdapterBenchmark {ITERATIONS}
+ *
+ * Each adapter converts the same request and result with the minimal
+ * inspection profile, so the difference to a direct handler call is the cost
+ * of the adapter's conversions. The legacy IBM row converts every value to a
+ * String like ibm.Hello does. The batch rows send the payload 100 times in
+ * one request with the full profile and report the cost per payload, which
+ * is compared to one full profile call per payload.
+ */
+public class AdapterBenchmark {
+
+    private static final String PAYLOAD = "{\"name\":\"Bob\","
+            + "\"payload\":{\"rows\":[1,2,3,4,5,6,7,8],\"scale\":1.5,\"label\":\"benchmark\"}}";
+    private static final String REQUEST = "{\"saafProfile\":\"minimal\"," + PAYLOAD.substring(1);
+    private static final int BATCH = 100;
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        Handler handler = new HelloHandler();
+        byte[] requestBytes = REQUEST.getBytes(StandardCharsets.UTF_8);
+        JsonObject requestTree = new JsonParser().parse(REQUEST).getAsJsonObject();
+        Map<String, Object> requestMap = Json.fromTree(requestTree);
+        LambdaAdapter lambda = new LambdaAdapter(handler);
+
+        System.out.println("Adapter             us/payload");
+        report("direct", iterations, () -> handler.invoke(new HashMap<>(requestMap)));
+        report("lambda stream", iterations, () -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            lambda.handleRequest(new ByteArrayInputStream(requestBytes), out, null);
+        });
+        report("ibm JsonObject", iterations, () -> IbmAdapter.invoke(handler, requestTree));
+        report("ibm legacy", iterations, () -> {
+            JsonObject output = new JsonObject();
+            HashMap<String, Object> results = handler.invoke(Json.fromTree(requestTree));
+            results.keySet().forEach((s) -> output.addProperty(s, String.valueOf(results.get(s))));
+        });
+
+        StringBuilder batch = new StringBuilder("{\"batchWorkers\":1,\"batch\":[");
+        for (int i = 0; i < BATCH; i++) {
+            batch.append(i == 0 ? "" : ",").append(PAYLOAD);
+        }
+        byte[] batchBytes = batch.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+        byte[] fullBytes = PAYLOAD.getBytes(StandardCharsets.UTF_8);
+        int fullIterations = Math.max(1, iterations / BATCH);
+        report("lambda full", fullIterations, 1, () -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            lambda.handleRequest(new ByteArrayInputStream(fullBytes), out, null);
+        });
+        report("lambda full batch", fullIterations, BATCH, () -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            lambda.handleRequest(new ByteArrayInputStream(batchBytes), out, null);
+        });
+
+        HttpServer server = LocalAdapter.start(0, handler);
+        URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+        try {
+            report("local http", Math.max(1, iterations / 10), () -> post(url, requestBytes));
+        } finally {
+            server.stop(0);
+        }
+        System.exit(0);
+    }
+
+    private static void post(URL url, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        byte[] buffer = new byte[4096];
+        try (InputStream in = connection.getInputStream()) {
+            while (in.read(buffer) >= 0) {
+                //Drain the response so the connection is reused.
+            }
+        }
+    }
+
+    private static void report(String name, int iterations, Call call) throws IOException {
+        report(name, iterations, 1, call);
+    }
+
+    private static void report(String name, int iterations, int items, Call call) throws IOException {
+        //Warm up the JIT before measuring.
+        for (int i = 0; i < iterations; i++) {
+            call.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            call.run();
+        }
+        double micros = (System.nanoTime() - start) / 1000.0 / iterations / items;
+        System.out.println(String.format("%-18s %8.2f", name, micros));
+    }
+
+    private interface Call {
+        void run() throws IOException;
+    }
+}
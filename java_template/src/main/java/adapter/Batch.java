@@ -0,0 +1,139 @@
+package adapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import saaf.Inspector;
+
+/**
+ * Runs every payload of a batch request through a handler within one
+ * invocation. The payloads share the invocation's Inspector, so inspectAll,
+ * inspectAllDeltas and finish are paid once per batch rather than once per
+ * payload, and each payload only gets an empty item Inspector for its output.
+ *
+ * A batch request has a "batch" array of payload objects and optionally
+ * "batchWorkers", the number of payloads processed in parallel. The default
+ * is the SAAF_BATCH_WORKERS environment variable or the number of CPUs.
+ */
+final class Batch {
+
+    private static final int DEFAULT_WORKERS = parseWorkers(System.getenv("SAAF_BATCH_WORKERS"),
+            Runtime.getRuntime().availableProcessors());
+
+    //Threads are kept across warm invocations; the calling thread is always one of the workers.
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "saaf-batch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Batch() {}
+
+    /**
+     * Process a batch and add the per payload results to the Inspector.
+     *
+     * batchResults:          The attributes added by the handler for each payload, in
+     *                        order, with itemRuntime in ms and error if it threw.
+     * batchSize:             The number of payloads.
+     * batchWorkers:          The number of payloads processed in parallel.
+     * batchRuntime:          Time in ms to process the whole batch.
+     * batchItemRuntimeMean:  Mean time in ms per payload.
+     * batchItemRuntimeMax:   Longest time in ms of one payload.
+     * batchErrors:           The number of payloads that failed.
+     *
+     * @param handler The handler to run for each payload.
+     * @param batch The payloads.
+     * @param workers The batchWorkers request attribute, or null for the default.
+     * @param inspector The Inspector of the invocation.
+     */
+    static void run(Handler handler, List<?> batch, Object workers, Inspector inspector) {
+        long start = System.nanoTime();
+        Object[] results = new Object[batch.size()];
+        int parallel = Math.max(1, Math.min(batch.size(), workers instanceof Number
+                ? ((Number) workers).intValue() : parseWorkers(workers == null ? null : String.valueOf(workers),
+                        DEFAULT_WORKERS)));
+
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            int index;
+            while ((index = next.getAndIncrement()) < results.length) {
+                results[index] = runItem(handler, batch.get(index));
+            }
+        };
+        List<Future<?>> futures = new ArrayList<>(parallel - 1);
+        for (int i = 1; i < parallel; i++) {
+            futures.add(WORKERS.submit(worker));
+        }
+        worker.run();
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while processing batch", ie);
+        } catch (ExecutionException ee) {
+            throw new IllegalStateException("Batch worker failed", ee.getCause());
+        }
+
+        double sum = 0;
+        double max = 0;
+        int errors = 0;
+        for (Object result : results) {
+            Map<?, ?> item = (Map<?, ?>) result;
+            double runtime = (Double) item.get("itemRuntime");
+            sum += runtime;
+            max = Math.max(max, runtime);
+            if (item.containsKey("error")) {
+                errors++;
+            }
+        }
+        inspector.addAttribute("batchResults", Arrays.asList(results));
+        inspector.addAttribute("batchSize", results.length);
+        inspector.addAttribute("batchWorkers", parallel);
+        inspector.addAttribute("batchRuntime", (System.nanoTime() - start) / 1000000.0);
+        inspector.addAttribute("batchItemRuntimeMean", results.length == 0 ? 0.0 : sum / results.length);
+        inspector.addAttribute("batchItemRuntimeMax", max);
+        inspector.addAttribute("batchErrors", errors);
+    }
+
+    /**
+     * Run the handler for one payload. Failures are reported in the item's
+     * result so one bad payload does not fail the batch.
+     */
+    @SuppressWarnings("unchecked")
+    private static HashMap<String, Object> runItem(Handler handler, Object payload) {
+        long start = System.nanoTime();
+        Inspector item = Inspector.forItem();
+        if (payload instanceof Map) {
+            try {
+                handler.handle((Map<String, Object>) payload, item);
+            } catch (RuntimeException e) {
+                item.addAttribute("error", e.toString());
+            }
+        } else {
+            item.addAttribute("error", "Batch item is not a JSON object");
+        }
+        HashMap<String, Object> result = item.getAttributes();
+        result.put("itemRuntime", (System.nanoTime() - start) / 1000000.0);
+        return result;
+    }
+
+    private static int parseWorkers(String value, int fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return (int) Double.parseDouble(value.trim());
+        } catch (NumberFormatException nfe) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package adapter;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import saaf.Inspector;
+import saaf.Warmup;
+
+/**
+ * Platform independent function logic. Adapters convert the platform's
+ * request into a Map, run the handler between inspectAll and
+ * inspectAllDeltas, and convert the Inspector's output back.
+ *
+ * The local HTTP adapter calls one handler from many threads, so handlers
+ * must be thread safe.
+ */
+public interface Handler {
+
+    /**
+     * Function implementation.
+     *
+     * @param request Map of the request JSON attributes.
+     * @param inspector The Inspector of this invocation. Add the function's
+     * output with inspector.addAttribute.
+     */
+    void handle(Map<String, Object> request, Inspector inspector);
+
+    /**
+     * Run the handler wrapped in SAAF data collection. A request with a
+     * "batch" array runs the handler once for each payload in it, sharing one
+     * round of data collection, and reports the payloads' output in batchResults.
+     *
+     * @param request Map of the request JSON attributes.
+     * @return The attributes collected by the Inspector.
+     */
+    default HashMap<String, Object> invoke(Map<String, Object> request) {
+        Inspector inspector = new Inspector();
+        inspector.configure(request);
+        inspector.inspectAll();
+        Object batch = request.get("batch");
+        if (batch instanceof List) {
+            Batch.run(this, (List<?>) batch, request.get("batchWorkers"), inspector);
+        } else {
+            handle(request, inspector);
+        }
+        inspector.inspectAllDeltas();
+        return inspector.finish();
+    }
+
+    /**
+     * The synthetic request used to warm up the handler, see Warmup. Override
+     * it to drive the handler's real code path.
+     *
+     * @return A new request, SAAF_WARMUP_PAYLOAD or {"name":"warmup"} by default.
+     */
+    default HashMap<String, Object> warmupPayload() {
+        return Warmup.payload();
+    }
+
+    /**
+     * Warm up a handler with synthetic payloads if the SAAF_WARMUP environment
+     * variable sets a time budget. Only the first call per container warms up.
+     *
+     * @param handler The handler to warm up.
+     * @return The handler.
+     * @see Warmup
+     */
+    static Handler warmedUp(Handler handler) {
+        Warmup.run(() -> handler.invoke(handler.warmupPayload()));
+        return handler;
+    }
+
+    /**
+     * Create the handler named by the SAAF_HANDLER environment variable.
+     *
+     * @return An instance of the SAAF_HANDLER class, or HelloHandler if it is not set.
+     */
+    static Handler fromEnvironment() {
+        return forName(System.getenv("SAAF_HANDLER"));
+    }
+
+    /**
+     * Create a handler by class name.
+     *
+     * @param className A class implementing Handler with a public no argument
+     * constructor, or null for HelloHandler.
+     * @return The handler.
+     */
+    static Handler forName(String className) {
+        if (className == null || className.isEmpty()) {
+            return new HelloHandler();
+        }
+        try {
+            return (Handler) Class.forName(className).newInstance();
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException | ClassCastException e) {
+            throw new IllegalArgumentException("Cannot create handler " + className, e);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package adapter;
+
+import java.util.Map;
+import saaf.Inspector;
+
+/**
+ * The Hello function written once for every adapter.
+ */
+public class HelloHandler implements Handler {
+
+    @Override
+    public void handle(Map<String, Object> request, Inspector inspector) {
+        Object name = request.get("name");
+        inspector.addAttribute("message", "Hello " + (name == null ? "World" : name) + "!");
+    }
+}
@@ -0,0 +1,38 @@
+package adapter;
+
+import com.google.gson.JsonObject;
+
+/**
+ * IBM Cloud Functions adapter. Set the action's main class to
+ * adapter.IbmAdapter and the handler with the SAAF_HANDLER environment
+ * variable.
+ *
+ * The OpenWhisk Java runtime passes and expects a Gson JsonObject, so the
+ * result is converted with Gson's tree model and keeps its numbers and
+ * nested objects, unlike converting every value to a String.
+ */
+public class IbmAdapter {
+
+    private static final Handler HANDLER = Handler.warmedUp(Handler.fromEnvironment());
+
+    /**
+     * IBM Cloud Functions default handler.
+     *
+     * @param args JsonObject of input Json.
+     * @return JsonObject of output.
+     */
+    public static JsonObject main(JsonObject args) {
+        return invoke(HANDLER, args);
+    }
+
+    /**
+     * Run a handler with IBM Cloud Functions' argument and result types.
+     *
+     * @param handler The function.
+     * @param args JsonObject of input Json.
+     * @return JsonObject of output.
+     */
+    public static JsonObject invoke(Handler handler, JsonObject args) {
+        return Json.toTree(handler.invoke(Json.fromTree(args)));
+    }
+}
@@ -0,0 +1,79 @@
+package adapter;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JSON conversions shared by the adapters. Requests and results are
+ * streamed with Gson rather than bound to POJOs or intermediate strings.
+ */
+final class Json {
+
+    static final Gson GSON = new Gson();
+    private static final Type MAP_TYPE = new TypeToken<HashMap<String, Object>>() {}.getType();
+
+    private Json() {}
+
+    /**
+     * Read a request object from a stream. An empty stream is an empty request.
+     */
+    static Map<String, Object> read(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        try {
+            reader.peek();
+        } catch (EOFException eofe) {
+            return new HashMap<>();
+        }
+        Map<String, Object> request = GSON.fromJson(reader, MAP_TYPE);
+        return request == null ? new HashMap<>() : request;
+    }
+
+    /**
+     * Write a result object to a stream without closing it.
+     */
+    static void write(Map<String, Object> result, OutputStream out) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        GSON.toJson(result, MAP_TYPE, new JsonWriter(writer));
+        writer.flush();
+    }
+
+    static Map<String, Object> fromTree(JsonObject object) {
+        Map<String, Object> request = GSON.fromJson(object, MAP_TYPE);
+        return request == null ? new HashMap<>() : request;
+    }
+
+    /**
+     * Convert a result to a JsonObject. Flat values are added directly, which
+     * is much cheaper than Gson's reflective tree conversion.
+     */
+    static JsonObject toTree(Map<String, Object> result) {
+        JsonObject object = new JsonObject();
+        for (Map.Entry<String, Object> entry : result.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof String) {
+                object.addProperty(entry.getKey(), (String) value);
+            } else if (value instanceof Number) {
+                object.addProperty(entry.getKey(), (Number) value);
+            } else if (value instanceof Boolean) {
+                object.addProperty(entry.getKey(), (Boolean) value);
+            } else {
+                object.add(entry.getKey(), GSON.toJsonTree(value));
+            }
+        }
+        return object;
+    }
+}
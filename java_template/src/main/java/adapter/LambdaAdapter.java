@@ -0,0 +1,42 @@
+package adapter;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * AWS Lambda adapter: adapter.LambdaAdapter::handleRequest
+ *
+ * Implements RequestStreamHandler so the request is parsed straight from the
+ * invocation stream and the result written straight to the response stream,
+ * skipping the runtime's POJO serialization. The handler is named by the
+ * SAAF_HANDLER environment variable, or subclass the adapter and pass a
+ * handler to the constructor.
+ */
+public class LambdaAdapter implements RequestStreamHandler {
+
+    private final Handler handler;
+
+    public LambdaAdapter() {
+        this(Handler.fromEnvironment());
+    }
+
+    protected LambdaAdapter(Handler handler) {
+        this.handler = Handler.warmedUp(handler);
+    }
+
+    /**
+     * Lambda Function Handler
+     *
+     * @param input The request JSON.
+     * @param output The stream to write the response JSON to.
+     * @param context
+     * @throws IOException If the request is not a JSON object.
+     */
+    @Override
+    public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+        Json.write(handler.invoke(Json.read(input)), output);
+    }
+}
@@ -0,0 +1,98 @@
+package adapter;
+
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local HTTP adapter built on the JDK HttpServer, so functions can be run and
+ * load tested without a FaaS platform.
+ *
+ * Usage: java adapter.LocalAdapter {PORT} {HANDLER CLASS}
+ *
+ * Every request body is a JSON object and every response the Inspector's
+ * output, or an "error" with status 500 if the handler throws. Requests are
+ * served on virtual threads when the JVM supports them (Java 21 and newer)
+ * and on a cached thread pool otherwise.
+ */
+public class LocalAdapter {
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        Handler handler = args.length > 1 ? Handler.forName(args[1]) : Handler.fromEnvironment();
+        HttpServer server = start(port, handler);
+        System.out.println("Serving " + handler.getClass().getName() + " on http://localhost:"
+                + server.getAddress().getPort() + "/");
+    }
+
+    /**
+     * Start serving a handler.
+     *
+     * @param port The port to listen on, 0 for any free port.
+     * @param handler The function to serve.
+     * @return The running server. Call stop(0) to shut it down.
+     * @throws IOException If the port cannot be bound.
+     */
+    public static HttpServer start(int port, Handler handler) throws IOException {
+        //Headers and body are written separately, which Nagle's algorithm delays by up to 40 ms.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        Handler.warmedUp(handler);
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/", exchange -> serve(exchange, handler));
+        server.setExecutor(executor());
+        server.start();
+        return server;
+    }
+
+    private static void serve(HttpExchange exchange, Handler handler) throws IOException {
+        try (InputStream in = exchange.getRequestBody(); OutputStream out = exchange.getResponseBody()) {
+            Map<String, Object> request;
+            try {
+                request = Json.read(in);
+            } catch (JsonParseException | IllegalStateException e) {
+                byte[] error = ("{\"error\":\"Request body is not a JSON object\"}").getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(400, error.length);
+                out.write(error);
+                return;
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream(4096);
+            int status = 200;
+            try {
+                Json.write(handler.invoke(request), body);
+            } catch (RuntimeException e) {
+                //Answer instead of leaving the client waiting for a response that never comes.
+                body.reset();
+                Json.write(Collections.singletonMap("error", e.toString()), body);
+                status = 500;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.size());
+            body.writeTo(out);
+        }
+    }
+
+    /**
+     * @return A virtual thread per task executor if available, otherwise a cached thread pool.
+     */
+    static ExecutorService executor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,574 @@
+package etl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A filtered group-by aggregate query, run either on a ColumnTable with the
+ * loops in Kernels or as SQL on a database.
+ *
+ * Request attributes:
+ * groupBy:    A column name or list of column names.
+ * aggregates: A list such as ["SUM(Total Revenue)", "AVG(Units Sold)", "COUNT(*)"].
+ *             SUM, AVG, MIN, MAX and COUNT are supported.
+ * where:      A map from column name to a value, a list of values, or
+ *             {"from": lo, "to": hi} for an inclusive range.
+ *
+ * Result rows hold the group columns and one entry per aggregate named as in
+ * the request, ordered by the group columns. As in SQL, empty (NULL) values
+ * are skipped: COUNT of a column counts its values, AVG divides by that
+ * count, and SUM, AVG, MIN and MAX are null for a group without values.
+ */
+public class AggregateQuery {
+
+    private static final Pattern AGGREGATE = Pattern.compile("\\s*(SUM|AVG|MIN|MAX|COUNT)\\s*\\((.+)\\)\\s*",
+            Pattern.CASE_INSENSITIVE);
+    //Larger group key spaces are left to the database.
+    private static final long MAX_GROUPS = 1 << 22;
+    //Row count of each group in a partial result.
+    static final String PARTIAL_ROWS = "partialRows";
+
+    private final List<String> groupBy;
+    private final List<String[]> aggregates;
+    private final Map<String, Object> where;
+
+    private AggregateQuery(List<String> groupBy, List<String[]> aggregates, Map<String, Object> where) {
+        this.groupBy = groupBy;
+        this.aggregates = aggregates;
+        this.where = where;
+    }
+
+    /**
+     * Parse a query from request attributes.
+     *
+     * @param request The request map.
+     * @return The query.
+     * @throws IllegalArgumentException If the request is not an aggregate query.
+     */
+    @SuppressWarnings("unchecked")
+    public static AggregateQuery parse(Map<String, Object> request) {
+        Object group = request.get("groupBy");
+        List<String> groupBy = new ArrayList<>();
+        if (group instanceof List) {
+            for (Object column : (List<?>) group) {
+                groupBy.add(String.valueOf(column));
+            }
+        } else if (group != null) {
+            groupBy.add(String.valueOf(group));
+        }
+        Object requested = request.get("aggregates");
+        if (!(requested instanceof List) || ((List<?>) requested).isEmpty()) {
+            throw new IllegalArgumentException("No aggregates given.");
+        }
+        List<String[]> aggregates = new ArrayList<>();
+        for (Object aggregate : (List<?>) requested) {
+            Matcher m = AGGREGATE.matcher(String.valueOf(aggregate));
+            if (!m.matches()) {
+                throw new IllegalArgumentException("Unsupported aggregate " + aggregate);
+            }
+            aggregates.add(new String[]{m.group(1).toUpperCase(), m.group(2).trim(), String.valueOf(aggregate)});
+        }
+        Object where = request.get("where");
+        if (where != null && !(where instanceof Map)) {
+            throw new IllegalArgumentException("where must be an object.");
+        }
+        return new AggregateQuery(groupBy, aggregates,
+                where == null ? Collections.emptyMap() : (Map<String, Object>) where);
+    }
+
+    /**
+     * @param column A column name.
+     * @return The name of the column's value count in a partial result.
+     */
+    static String partialCount(String column) {
+        return "partialCount(" + column + ")";
+    }
+
+    /**
+     * @return The distinct columns of the aggregates other than COUNT(*).
+     */
+    List<String> countedColumns() {
+        List<String> columns = new ArrayList<>();
+        for (String[] aggregate : aggregates) {
+            if (!aggregate[1].equals("*") && !columns.contains(aggregate[1])) {
+                columns.add(aggregate[1]);
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * @return The aggregate names in request order.
+     */
+    public List<String> getAggregateNames() {
+        List<String> names = new ArrayList<>();
+        for (String[] aggregate : aggregates) {
+            names.add(aggregate[2]);
+        }
+        return names;
+    }
+
+    /**
+     * @return The aggregates as {function, column, name}.
+     */
+    List<String[]> getAggregates() {
+        return aggregates;
+    }
+
+    /**
+     * @return The group-by columns.
+     */
+    public List<String> getGroupBy() {
+        return groupBy;
+    }
+
+    /**
+     * @return The filters by column.
+     */
+    public Map<String, Object> getWhere() {
+        return where;
+    }
+
+    /**
+     * Check whether the query can run on a table.
+     *
+     * @param table The table.
+     * @return null if it can, otherwise why not.
+     */
+    public String unsupportedReason(ColumnTable table) {
+        long groups = 1;
+        for (String column : groupBy) {
+            if (table.getType(column) != ColumnTable.Type.STRING) {
+                return "group by " + column + " is not a string column";
+            }
+            groups *= Math.max(1, table.column(column).dictionary.length);
+            if (groups > MAX_GROUPS) {
+                return "too many groups";
+            }
+        }
+        for (String[] aggregate : aggregates) {
+            boolean star = aggregate[1].equals("*");
+            if (!(star && aggregate[0].equals("COUNT")) && table.getType(aggregate[1]) != ColumnTable.Type.NUMBER) {
+                return aggregate[2] + " is not over a number column";
+            }
+        }
+        for (Map.Entry<String, Object> filter : where.entrySet()) {
+            ColumnTable.Type type = table.getType(filter.getKey());
+            Object condition = filter.getValue();
+            if (type == null) {
+                return "no column " + filter.getKey();
+            } else if (condition instanceof Map) {
+                Map<?, ?> range = (Map<?, ?>) condition;
+                if (type == ColumnTable.Type.STRING || !range.keySet().stream().allMatch(
+                        k -> k.equals("from") || k.equals("to"))) {
+                    return "unsupported filter on " + filter.getKey();
+                }
+            } else if (type == ColumnTable.Type.NUMBER && condition instanceof List) {
+                return "unsupported filter on " + filter.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Run the query on a table. Check unsupportedReason first.
+     *
+     * @param table The table.
+     * @return The result rows and scan counts.
+     */
+    public Result execute(ColumnTable table) {
+        return execute(table, 0, table.getRows(), false);
+    }
+
+    /**
+     * Run the query on one of several equal row ranges of a table and return
+     * a partial result for merge. Partial rows carry sums in place of AVG,
+     * the group's row count as partialRows and the value count of every
+     * aggregated column as partialCount(column). Check unsupportedReason first.
+     *
+     * @param table The table.
+     * @param partition The range to run on, from 0.
+     * @param partitions The number of ranges.
+     * @return The partial result rows and scan counts of the range.
+     */
+    public Result executePartial(ColumnTable table, int partition, int partitions) {
+        if (partitions < 1 || partition < 0 || partition >= partitions) {
+            throw new IllegalArgumentException("Invalid partition " + partition + " of " + partitions);
+        }
+        long rows = table.getRows();
+        return execute(table, (int) (rows * partition / partitions), (int) (rows * (partition + 1) / partitions), true);
+    }
+
+    /**
+     * Combine the partial results of executePartial into the query's result.
+     *
+     * @param partials The partial result rows of each partition.
+     * @return The result rows, as execute would return them for the whole table.
+     */
+    public List<Map<String, Object>> merge(List<List<Map<String, Object>>> partials) {
+        Map<List<String>, Map<String, Object>> merged = new LinkedHashMap<>();
+        Map<List<String>, Long> counts = new HashMap<>();
+        Map<List<String>, Map<String, Long>> valueCounts = new HashMap<>();
+        for (List<Map<String, Object>> partial : partials) {
+            for (Map<String, Object> row : partial) {
+                List<String> key = new ArrayList<>(groupBy.size());
+                for (String column : groupBy) {
+                    Object value = row.get(column);
+                    key.add(value == null ? null : String.valueOf(value));
+                }
+                Map<String, Object> into = merged.get(key);
+                if (into == null) {
+                    into = new LinkedHashMap<>();
+                    for (int c = 0; c < groupBy.size(); c++) {
+                        into.put(groupBy.get(c), key.get(c));
+                    }
+                    merged.put(key, into);
+                }
+                Object partialRows = row.get(PARTIAL_ROWS);
+                long rowCount = partialRows instanceof Number ? ((Number) partialRows).longValue() : 0;
+                counts.merge(key, rowCount, Long::sum);
+                Map<String, Long> columnCounts = valueCounts.computeIfAbsent(key, k -> new HashMap<>());
+                for (String column : countedColumns()) {
+                    //Partials without value counts count every row.
+                    Object valueCount = row.get(partialCount(column));
+                    columnCounts.merge(column, valueCount instanceof Number ? ((Number) valueCount).longValue()
+                            : rowCount, Long::sum);
+                }
+                for (String[] aggregate : aggregates) {
+                    Object value = row.get(aggregate[2]);
+                    Object current = into.get(aggregate[2]);
+                    if (aggregate[0].equals("COUNT")) {
+                        into.put(aggregate[2], (current == null ? 0 : (Long) current)
+                                + (value == null ? 0 : ((Number) value).longValue()));
+                    } else if (value != null) {
+                        double v = ((Number) value).doubleValue();
+                        if (current != null) {
+                            double c = (Double) current;
+                            v = aggregate[0].equals("MIN") ? Math.min(c, v)
+                                    : aggregate[0].equals("MAX") ? Math.max(c, v) : c + v;
+                        }
+                        into.put(aggregate[2], v);
+                    } else if (!into.containsKey(aggregate[2])) {
+                        into.put(aggregate[2], null);
+                    }
+                }
+            }
+        }
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Map.Entry<List<String>, Map<String, Object>> entry : merged.entrySet()) {
+            long count = counts.get(entry.getKey());
+            if (count == 0 && !groupBy.isEmpty()) {
+                continue;
+            }
+            Map<String, Object> row = entry.getValue();
+            Map<String, Long> columnCounts = valueCounts.get(entry.getKey());
+            for (String[] aggregate : aggregates) {
+                if (aggregate[0].equals("COUNT")) {
+                    continue;
+                }
+                long values = columnCounts.get(aggregate[1]);
+                Object value = row.get(aggregate[2]);
+                if (values == 0 || value == null) {
+                    row.put(aggregate[2], null);
+                } else if (aggregate[0].equals("AVG")) {
+                    row.put(aggregate[2], (Double) value / values);
+                }
+            }
+            rows.add(row);
+        }
+        sort(rows);
+        return rows;
+    }
+
+    private Result execute(ColumnTable table, int from, int to, boolean partial) {
+        int n = to - from;
+        int[] sel = null;
+        if (from > 0 || to < table.getRows()) {
+            sel = new int[n];
+            for (int i = 0; i < n; i++) {
+                sel[i] = from + i;
+            }
+        }
+        for (Map.Entry<String, Object> filter : where.entrySet()) {
+            ColumnTable.Column column = table.column(filter.getKey());
+            int[] out = sel == null ? new int[n] : sel;
+            n = select(column, filter.getValue(), sel, n, out);
+            sel = out;
+        }
+
+        int[] groups = null;
+        int groupCount = 1;
+        if (!groupBy.isEmpty()) {
+            groups = new int[n];
+            for (String name : groupBy) {
+                ColumnTable.Column column = table.column(name);
+                int cardinality = Math.max(1, column.dictionary.length);
+                Kernels.groupIds(column.codes, cardinality, sel, n, groups);
+                groupCount *= cardinality;
+            }
+        }
+
+        long[] counts = new long[groupCount];
+        Kernels.count(groups, n, counts);
+        //Value counts of each aggregated column, as NULLs are skipped.
+        Map<String, long[]> valueCounts = new LinkedHashMap<>();
+        for (String column : countedColumns()) {
+            long[] out = new long[groupCount];
+            Kernels.count(table.column(column).values, sel, groups, n, out);
+            valueCounts.put(column, out);
+        }
+        List<double[]> values = new ArrayList<>();
+        for (String[] aggregate : aggregates) {
+            double[] out = new double[groupCount];
+            if (aggregate[0].equals("MIN") || aggregate[0].equals("MAX")) {
+                boolean max = aggregate[0].equals("MAX");
+                Arrays.fill(out, max ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY);
+                Kernels.extreme(table.column(aggregate[1]).values, sel, groups, n, max, out);
+            } else if (!aggregate[0].equals("COUNT")) {
+                Kernels.sum(table.column(aggregate[1]).values, sel, groups, n, out);
+                if (aggregate[0].equals("AVG") && !partial) {
+                    long[] valueCount = valueCounts.get(aggregate[1]);
+                    for (int g = 0; g < groupCount; g++) {
+                        out[g] = valueCount[g] == 0 ? 0 : out[g] / valueCount[g];
+                    }
+                }
+            }
+            values.add(out);
+        }
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int g = 0; g < groupCount; g++) {
+            if (counts[g] == 0 && !(groupBy.isEmpty())) {
+                continue;
+            }
+            Map<String, Object> row = new LinkedHashMap<>();
+            int rest = g;
+            String[] keys = new String[groupBy.size()];
+            for (int c = groupBy.size() - 1; c >= 0; c--) {
+                ColumnTable.Column column = table.column(groupBy.get(c));
+                int cardinality = Math.max(1, column.dictionary.length);
+                keys[c] = column.dictionary.length == 0 ? null : column.dictionary[rest % cardinality];
+                rest /= cardinality;
+            }
+            for (int c = 0; c < keys.length; c++) {
+                row.put(groupBy.get(c), keys[c]);
+            }
+            for (int a = 0; a < aggregates.size(); a++) {
+                String[] aggregate = aggregates.get(a);
+                long valueCount = aggregate[1].equals("*") ? counts[g] : valueCounts.get(aggregate[1])[g];
+                if (aggregate[0].equals("COUNT")) {
+                    row.put(aggregate[2], valueCount);
+                } else {
+                    row.put(aggregate[2], valueCount == 0 ? null : values.get(a)[g]);
+                }
+            }
+            if (partial) {
+                row.put(PARTIAL_ROWS, counts[g]);
+                for (Map.Entry<String, long[]> valueCount : valueCounts.entrySet()) {
+                    row.put(partialCount(valueCount.getKey()), valueCount.getValue()[g]);
+                }
+            }
+            rows.add(row);
+        }
+        sort(rows);
+        return new Result(rows, to - from, n);
+    }
+
+    /**
+     * Run the query as SQL.
+     *
+     * @param connection The database connection.
+     * @param table The table name.
+     * @return The result rows. Scan counts are not known and set to -1.
+     * @throws SQLException If the query fails.
+     */
+    public Result execute(Connection connection, String table) throws SQLException {
+        List<Object> parameters = new ArrayList<>();
+        String sql = toSql(table, parameters);
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setObject(i + 1, parameters.get(i));
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                //Cells are read by position, as labels may repeat or be changed by the driver.
+                List<List<Object>> rows = readRows(rs);
+                List<Map<String, Object>> named = new ArrayList<>(rows.size());
+                for (List<Object> cells : rows) {
+                    Map<String, Object> copy = new LinkedHashMap<>();
+                    for (int c = 0; c < groupBy.size(); c++) {
+                        copy.put(groupBy.get(c), cells.get(c) == null ? null : String.valueOf(cells.get(c)));
+                    }
+                    for (int a = 0; a < aggregates.size(); a++) {
+                        Object value = cells.get(groupBy.size() + a);
+                        if (value instanceof Number) {
+                            value = aggregates.get(a)[0].equals("COUNT") ? (Object) ((Number) value).longValue()
+                                    : (Object) ((Number) value).doubleValue();
+                        }
+                        copy.put(aggregates.get(a)[2], value);
+                    }
+                    named.add(copy);
+                }
+                return new Result(named, -1, -1);
+            }
+        }
+    }
+
+    /**
+     * Build the SQL text of the query. Dates in range filters are compared as
+     * YYYY-MM-DD strings.
+     *
+     * @param table The table name.
+     * @param parameters Receives the statement parameters.
+     * @return The SQL.
+     */
+    public String toSql(String table, List<Object> parameters) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        List<String> select = new ArrayList<>();
+        for (String column : groupBy) {
+            select.add(ColumnTable.quote(column));
+        }
+        for (String[] aggregate : aggregates) {
+            select.add(aggregate[0] + "(" + (aggregate[1].equals("*") ? "*" : ColumnTable.quote(aggregate[1])) + ")");
+        }
+        sql.append(String.join(", ", select)).append(" FROM ").append(ColumnTable.quote(table));
+        List<String> conditions = new ArrayList<>();
+        for (Map.Entry<String, Object> filter : where.entrySet()) {
+            String column = ColumnTable.quote(filter.getKey());
+            Object condition = filter.getValue();
+            if (condition instanceof Map) {
+                Map<?, ?> range = (Map<?, ?>) condition;
+                if (range.get("from") != null) {
+                    conditions.add(column + " >= ?");
+                    parameters.add(sqlValue(range.get("from")));
+                }
+                if (range.get("to") != null) {
+                    conditions.add(column + " <= ?");
+                    parameters.add(sqlValue(range.get("to")));
+                }
+            } else if (condition instanceof List) {
+                List<String> marks = new ArrayList<>();
+                for (Object value : (List<?>) condition) {
+                    marks.add("?");
+                    parameters.add(sqlValue(value));
+                }
+                conditions.add(marks.isEmpty() ? "0 = 1" : column + " IN (" + String.join(", ", marks) + ")");
+            } else {
+                conditions.add(column + " = ?");
+                parameters.add(sqlValue(condition));
+            }
+        }
+        if (!conditions.isEmpty()) {
+            sql.append(" WHERE ").append(String.join(" AND ", conditions));
+        }
+        if (!groupBy.isEmpty()) {
+            String columns = String.join(", ", select.subList(0, groupBy.size()));
+            sql.append(" GROUP BY ").append(columns).append(" ORDER BY ").append(columns);
+        }
+        return sql.toString();
+    }
+
+    private int select(ColumnTable.Column column, Object condition, int[] sel, int n, int[] out) {
+        if (condition instanceof Map) {
+            Map<?, ?> range = (Map<?, ?>) condition;
+            Object from = range.get("from");
+            Object to = range.get("to");
+            if (column.type == ColumnTable.Type.DATE) {
+                int lo = from == null ? Integer.MIN_VALUE + 1 : ColumnTable.parseDate(String.valueOf(from));
+                int hi = to == null ? Integer.MAX_VALUE : ColumnTable.parseDate(String.valueOf(to));
+                return Kernels.selectRange(column.codes, lo, hi, sel, n, out);
+            }
+            return Kernels.selectRange(column.values, from == null ? Double.NEGATIVE_INFINITY : number(from),
+                    to == null ? Double.POSITIVE_INFINITY : number(to), sel, n, out);
+        }
+        if (column.type == ColumnTable.Type.NUMBER) {
+            double value = number(condition);
+            return Kernels.selectRange(column.values, value, value, sel, n, out);
+        }
+        if (column.type == ColumnTable.Type.DATE) {
+            int day = ColumnTable.parseDate(String.valueOf(condition));
+            return Kernels.selectRange(column.codes, day, day, sel, n, out);
+        }
+        boolean[] wanted = new boolean[Math.max(1, column.dictionary.length)];
+        for (Object value : condition instanceof List ? (List<?>) condition : Collections.singletonList(condition)) {
+            int code = column.code(String.valueOf(value));
+            if (code >= 0) {
+                wanted[code] = true;
+            }
+        }
+        return Kernels.selectCodes(column.codes, wanted, sel, n, out);
+    }
+
+    private void sort(List<Map<String, Object>> rows) {
+        Comparator<Map<String, Object>> order = (a, b) -> 0;
+        for (String column : groupBy) {
+            order = order.thenComparing(row -> (String) row.get(column), Comparator.nullsFirst(Comparator.naturalOrder()));
+        }
+        rows.sort(order);
+    }
+
+    private static Object sqlValue(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        String text = String.valueOf(value);
+        int day = ColumnTable.parseDate(text);
+        return day == Integer.MIN_VALUE ? text : ColumnTable.formatDate(day);
+    }
+
+    private static double number(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(String.valueOf(value));
+    }
+
+    private static List<List<Object>> readRows(ResultSet rs) throws SQLException {
+        int count = rs.getMetaData().getColumnCount();
+        List<List<Object>> rows = new ArrayList<>();
+        while (rs.next()) {
+            List<Object> row = new ArrayList<>(count);
+            for (int i = 1; i <= count; i++) {
+                row.add(rs.getObject(i));
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Result rows and how many rows were scanned and selected.
+     */
+    public static class Result {
+        private final List<Map<String, Object>> rows;
+        private final long scanned;
+        private final long selected;
+
+        Result(List<Map<String, Object>> rows, long scanned, long selected) {
+            this.rows = rows;
+            this.scanned = scanned;
+            this.selected = selected;
+        }
+
+        public List<Map<String, Object>> getRows() {
+            return rows;
+        }
+
+        public long getScanned() {
+            return scanned;
+        }
+
+        public long getSelected() {
+            return selected;
+        }
+    }
+}
@@ -0,0 +1,960 @@
+package etl;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import saaf.Inspector;
+
+/**
+ * A table stored as sorted partitions of column blocks with zone maps, so
+ * selective queries only read the blocks that can match their filters.
+ *
+ * A store is a directory with:
+ * manifest.json: The columns and their types, the partition and sort
+ *                columns, the table version it was written at, and per
+ *                partition its file, key, rows and the min and max of every
+ *                column.
+ * part-{N}.blk:  The rows of one partition, sorted by the sort column, in
+ *                blocks of up to blockRows rows.
+ *
+ * A block holds its columns one after another: NUMBER columns as doubles,
+ * DATE columns as epoch days and STRING columns as a dictionary of the
+ * block's values followed by a code per row. Every block is followed by its
+ * footer with the row count and, per column, the offset and length of its
+ * data, its min and max, and for STRING columns a bloom filter of its values.
+ * The file ends with the offset and length of every footer, the number of
+ * blocks and a magic number.
+ *
+ * Partitions are by value for STRING columns and by month for DATE columns.
+ * After a load, update() rewrites only the partitions holding rows the load
+ * changed.
+ */
+public class BlockStore {
+
+    private static final long MAGIC = 0x534141464253544fL;
+    private static final String MANIFEST = "manifest.json";
+    private static final int BLOOM_BITS_PER_VALUE = 10;
+    private static final int BLOOM_HASHES = 7;
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private BlockStore() {}
+
+    /**
+     * Bring a store up to date with its table after an IncrementalLoad. Only
+     * the partitions that hold one of the given values of the partition
+     * column are read from the database and rewritten. The whole table is
+     * written instead if the store does not exist, has other settings, was
+     * not written at the table's previous version, or a value has no
+     * partition key.
+     *
+     * storeWriteFull:           Whether the whole table was written.
+     * storeWritePartitionsKept: Partitions left as they were.
+     * storeWrite*:              Partitions, blocks and bytes written and the time taken, see write.
+     *
+     * @param connection The database connection.
+     * @param table The table.
+     * @param directory The store directory.
+     * @param partitionBy A STRING or DATE column to partition by.
+     * @param sortBy The column to sort partitions by, or null.
+     * @param blockRows The maximum rows per block.
+     * @param changed Values of the partition column in rows the load inserted or
+     * replaced, or null to write the whole table.
+     * @param inspector Receives the statistics.
+     * @throws IOException If the store cannot be written.
+     * @throws SQLException If the table cannot be read.
+     * @throws IllegalArgumentException If a column is missing or cannot be partitioned by.
+     */
+    @SuppressWarnings("unchecked")
+    public static void update(Connection connection, String table, String directory, String partitionBy,
+            String sortBy, int blockRows, Set<String> changed, Inspector inspector) throws IOException, SQLException {
+        long start = System.nanoTime();
+        long version = IncrementalLoad.version(connection, table);
+        blockRows = Math.max(1, blockRows);
+        Map<String, Object> manifest = null;
+        File manifestFile = new File(directory, MANIFEST);
+        if (changed != null && manifestFile.isFile()) {
+            try (Reader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+                manifest = GSON.fromJson(reader, Map.class);
+            }
+        }
+        List<String> names = manifest == null ? null : (List<String>) manifest.get("columns");
+        ColumnTable.Type type = null;
+        Set<String> keys = new TreeSet<>();
+        if (manifest != null && names.contains(partitionBy) && partitionBy.equals(manifest.get("partitionBy"))
+                && Objects.equals(sortBy, manifest.get("sortBy"))
+                && number(manifest.get("blockRows")) == blockRows && number(manifest.get("version")) == version - 1) {
+            type = ColumnTable.Type.valueOf(((List<String>) manifest.get("types")).get(names.indexOf(partitionBy)));
+            for (String value : changed) {
+                keys.add(partitionKey(value, type));
+            }
+        }
+        if (type == null || keys.contains("")) {
+            write(ColumnTable.readTable(connection, table), directory, partitionBy, sortBy, blockRows, version,
+                    inspector);
+            inspector.addAttribute("storeWriteFull", true);
+            return;
+        }
+
+        List<String> typeNames = (List<String>) manifest.get("types");
+        ColumnTable.Type[] types = new ColumnTable.Type[names.size()];
+        for (int c = 0; c < types.length; c++) {
+            types[c] = ColumnTable.Type.valueOf(typeNames.get(c));
+        }
+        TreeMap<String, Map<String, Object>> entries = new TreeMap<>();
+        for (Map<String, Object> entry : (List<Map<String, Object>>) manifest.get("partitions")) {
+            entry.put("rows", (long) number(entry.get("rows")));
+            entry.put("blocks", (long) number(entry.get("blocks")));
+            entries.put((String) entry.get("key"), entry);
+        }
+        int nextPart = (int) number(manifest.get("nextPart"));
+        List<File> written = new ArrayList<>();
+        List<File> replaced = new ArrayList<>();
+        long blocks = 0;
+        long bytes = 0;
+        for (String key : keys) {
+            ColumnTable rows = readPartition(connection, table, partitionBy, type, key, names, types);
+            if (rows == null) {
+                //The table's columns changed since the store was written.
+                for (File file : written) {
+                    file.delete();
+                }
+                write(ColumnTable.readTable(connection, table), directory, partitionBy, sortBy, blockRows, version,
+                        inspector);
+                inspector.addAttribute("storeWriteFull", true);
+                return;
+            }
+            Map<String, Object> old = entries.remove(key);
+            if (old != null) {
+                replaced.add(new File(directory, (String) old.get("file")));
+            }
+            if (rows.getRows() == 0) {
+                continue;
+            }
+            String name = String.format("part-%05d.blk", nextPart++);
+            File file = new File(directory, name);
+            ColumnTable.Column sort = sortBy == null ? null : rows.column(sortBy);
+            int[] order = new int[rows.getRows()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Map<String, Object> entry = writeEntry(rows, sortRows(sort, order), key, name, blockRows, file);
+            entries.put(key, entry);
+            written.add(file);
+            blocks += (long) entry.get("blocks");
+            bytes += file.length();
+        }
+
+        long total = 0;
+        for (Map<String, Object> entry : entries.values()) {
+            total += (long) entry.get("rows");
+        }
+        manifest.put("blockRows", blockRows);
+        manifest.put("version", version);
+        manifest.put("nextPart", nextPart);
+        manifest.put("rows", total);
+        manifest.put("partitions", new ArrayList<>(entries.values()));
+        //Readers see the old or the new manifest, never a partial one.
+        File temporary = new File(directory, MANIFEST + ".tmp" + System.nanoTime());
+        try (Writer writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8)) {
+            GSON.toJson(manifest, writer);
+        }
+        Files.move(temporary.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        for (File file : replaced) {
+            file.delete();
+        }
+
+        inspector.addAttribute("storeWriteFull", false);
+        inspector.addAttribute("storeWritePartitions", written.size());
+        inspector.addAttribute("storeWritePartitionsKept", entries.size() - written.size());
+        inspector.addAttribute("storeWriteBlocks", blocks);
+        inspector.addAttribute("storeWriteBytes", bytes);
+        inspector.addAttribute("storeWriteTime", (System.nanoTime() - start) / 1000000.0);
+    }
+
+    /**
+     * Write a table as a store, replacing the directory's previous contents.
+     *
+     * storeWritePartitions: Partitions written.
+     * storeWriteBlocks:     Blocks written.
+     * storeWriteBytes:      Bytes written.
+     * storeWriteTime:       Time in ms to write the store.
+     *
+     * @param table The table.
+     * @param directory The store directory.
+     * @param partitionBy A STRING or DATE column to partition by.
+     * @param sortBy The column to sort partitions by, or null.
+     * @param blockRows The maximum rows per block.
+     * @param inspector Receives the statistics.
+     * @throws IOException If the store cannot be written.
+     * @throws IllegalArgumentException If a column is missing or cannot be partitioned by.
+     */
+    public static void write(ColumnTable table, String directory, String partitionBy, String sortBy, int blockRows,
+            Inspector inspector) throws IOException {
+        write(table, directory, partitionBy, sortBy, blockRows, -1, inspector);
+    }
+
+    private static void write(ColumnTable table, String directory, String partitionBy, String sortBy, int blockRows,
+            long version, Inspector inspector) throws IOException {
+        long start = System.nanoTime();
+        ColumnTable.Column partition = table.column(partitionBy);
+        if (partition == null || partition.type == ColumnTable.Type.NUMBER) {
+            throw new IllegalArgumentException("Cannot partition by " + partitionBy);
+        }
+        ColumnTable.Column sort = sortBy == null ? null : table.column(sortBy);
+        if (sortBy != null && sort == null) {
+            throw new IllegalArgumentException("No column named " + sortBy);
+        }
+        blockRows = Math.max(1, blockRows);
+
+        //Group the rows by partition key, in key order.
+        int rows = table.getRows();
+        int[] ids = new int[rows];
+        Map<Integer, String> labels = new HashMap<>();
+        for (int i = 0; i < rows; i++) {
+            int code = partition.codes[i];
+            if (partition.type == ColumnTable.Type.STRING) {
+                ids[i] = code;
+                labels.computeIfAbsent(code, c -> partition.dictionary[c]);
+            } else {
+                LocalDate date = code == Integer.MIN_VALUE ? null : LocalDate.ofEpochDay(code);
+                ids[i] = date == null ? Integer.MIN_VALUE : date.getYear() * 12 + date.getMonthValue() - 1;
+                labels.computeIfAbsent(ids[i], id -> date == null ? "" : date.toString().substring(0, 7));
+            }
+        }
+        TreeMap<String, Integer> order = new TreeMap<>();
+        for (Map.Entry<Integer, String> label : labels.entrySet()) {
+            order.put(label.getValue(), label.getKey());
+        }
+        Map<Integer, Integer> index = new HashMap<>();
+        for (Integer id : order.values()) {
+            index.put(id, index.size());
+        }
+        int[] counts = new int[index.size() + 1];
+        for (int i = 0; i < rows; i++) {
+            counts[index.get(ids[i]) + 1]++;
+        }
+        for (int p = 1; p < counts.length; p++) {
+            counts[p] += counts[p - 1];
+        }
+        int[] grouped = new int[rows];
+        int[] next = Arrays.copyOf(counts, counts.length);
+        for (int i = 0; i < rows; i++) {
+            grouped[next[index.get(ids[i])]++] = i;
+        }
+
+        File target = new File(directory);
+        File temporary = new File(directory + ".tmp" + System.nanoTime());
+        if (!temporary.mkdirs()) {
+            throw new IOException("Cannot create " + temporary);
+        }
+        List<String> names = table.getColumnNames();
+        List<String> types = new ArrayList<>();
+        for (String name : names) {
+            types.add(table.getType(name).name());
+        }
+        List<Map<String, Object>> partitions = new ArrayList<>();
+        long blocks = 0;
+        long bytes = 0;
+        int p = 0;
+        for (String key : order.keySet()) {
+            int[] part = sortRows(sort, Arrays.copyOfRange(grouped, counts[p], counts[p + 1]));
+            String file = String.format("part-%05d.blk", p);
+            Map<String, Object> entry = writeEntry(table, part, key, file, blockRows, new File(temporary, file));
+            partitions.add(entry);
+            blocks += (long) entry.get("blocks");
+            bytes += new File(temporary, file).length();
+            p++;
+        }
+        Map<String, Object> manifest = new LinkedHashMap<>();
+        manifest.put("columns", names);
+        manifest.put("types", types);
+        manifest.put("partitionBy", partitionBy);
+        manifest.put("sortBy", sortBy);
+        manifest.put("blockRows", blockRows);
+        manifest.put("rows", rows);
+        manifest.put("version", version);
+        manifest.put("nextPart", partitions.size());
+        manifest.put("partitions", partitions);
+        try (Writer writer = Files.newBufferedWriter(new File(temporary, MANIFEST).toPath(), StandardCharsets.UTF_8)) {
+            GSON.toJson(manifest, writer);
+        }
+
+        //Swap the new store in, then delete the old one.
+        File previous = new File(directory + ".old" + System.nanoTime());
+        if (target.exists() && !target.renameTo(previous)) {
+            throw new IOException("Cannot replace " + target);
+        }
+        if (!temporary.renameTo(target)) {
+            //Put the previous store back rather than leave the directory without one.
+            if (previous.exists() && !previous.renameTo(target)) {
+                throw new IOException("Cannot rename " + temporary + " to " + target + ", the previous store is in "
+                        + previous);
+            }
+            delete(temporary);
+            throw new IOException("Cannot rename " + temporary + " to " + target);
+        }
+        delete(previous);
+
+        inspector.addAttribute("storeWritePartitions", partitions.size());
+        inspector.addAttribute("storeWriteBlocks", blocks);
+        inspector.addAttribute("storeWriteBytes", bytes);
+        inspector.addAttribute("storeWriteTime", (System.nanoTime() - start) / 1000000.0);
+    }
+
+    /**
+     * Read the rows of a store that may match a query's filters, and only the
+     * columns the query uses. Partitions and blocks whose min and max, or
+     * bloom filters, rule out a filter are skipped.
+     *
+     * storePartitions, storePartitionsSkipped: Partitions in the store and partitions skipped.
+     * storeBlocks, storeBlocksSkipped:         Blocks in the store and blocks skipped.
+     * storeRows, storeRowsSkipped:             Rows in the store and rows skipped.
+     * storeSkippedFraction:                    The fraction of rows skipped.
+     * storeBytesRead:                          Bytes of column data read.
+     *
+     * @param directory The store directory.
+     * @param query The query.
+     * @param inspector Receives the statistics.
+     * @return A table of the rows read.
+     * @throws IOException If the store cannot be read.
+     * @throws IllegalArgumentException If the query uses a column the store does not have.
+     */
+    @SuppressWarnings("unchecked")
+    public static ColumnTable read(String directory, AggregateQuery query, Inspector inspector) throws IOException {
+        Map<String, Object> manifest;
+        try (Reader reader = Files.newBufferedReader(new File(directory, MANIFEST).toPath(), StandardCharsets.UTF_8)) {
+            manifest = GSON.fromJson(reader, Map.class);
+        }
+        if (manifest == null) {
+            throw new IOException("Empty manifest in " + directory);
+        }
+        List<String> names = (List<String>) manifest.get("columns");
+        List<String> typeNames = (List<String>) manifest.get("types");
+        Set<String> used = new LinkedHashSet<>(query.getGroupBy());
+        used.addAll(query.getWhere().keySet());
+        for (String[] aggregate : query.getAggregates()) {
+            if (!aggregate[1].equals("*")) {
+                used.add(aggregate[1]);
+            }
+        }
+        List<String> columns = new ArrayList<>(used);
+        int[] positions = new int[columns.size()];
+        ColumnTable.Type[] types = new ColumnTable.Type[columns.size()];
+        for (int c = 0; c < columns.size(); c++) {
+            positions[c] = names.indexOf(columns.get(c));
+            if (positions[c] < 0) {
+                throw new IllegalArgumentException("No column " + columns.get(c));
+            }
+            types[c] = ColumnTable.Type.valueOf(typeNames.get(positions[c]));
+        }
+
+        //Prune partitions by their zone maps, then blocks by their footers.
+        long[] stats = new long[6];
+        List<RandomAccessFile> files = new ArrayList<>();
+        List<Footer> selected = new ArrayList<>();
+        try {
+            for (Map<String, Object> partition : (List<Map<String, Object>>) manifest.get("partitions")) {
+                long partitionRows = ((Number) partition.get("rows")).longValue();
+                long partitionBlocks = ((Number) partition.get("blocks")).longValue();
+                stats[0]++;
+                stats[2] += partitionBlocks;
+                stats[4] += partitionRows;
+                Map<String, Object> min = (Map<String, Object>) partition.get("min");
+                Map<String, Object> max = (Map<String, Object>) partition.get("max");
+                boolean match = true;
+                for (Map.Entry<String, Object> filter : query.getWhere().entrySet()) {
+                    ColumnTable.Type type = ColumnTable.Type.valueOf(typeNames.get(names.indexOf(filter.getKey())));
+                    match &= Zone.of(type, min.get(filter.getKey()), max.get(filter.getKey()))
+                            .mayMatch(filter.getValue());
+                }
+                if (!match) {
+                    stats[1]++;
+                    stats[3] += partitionBlocks;
+                    stats[5] += partitionRows;
+                    continue;
+                }
+                RandomAccessFile file = new RandomAccessFile(new File(directory, (String) partition.get("file")), "r");
+                files.add(file);
+                for (Footer footer : readFooters(file, typeNames)) {
+                    boolean blockMatch = true;
+                    for (Map.Entry<String, Object> filter : query.getWhere().entrySet()) {
+                        blockMatch &= footer.zones[names.indexOf(filter.getKey())].mayMatch(filter.getValue());
+                    }
+                    if (blockMatch) {
+                        footer.file = file;
+                        selected.add(footer);
+                    } else {
+                        stats[3]++;
+                        stats[5] += footer.rows;
+                    }
+                }
+            }
+
+            int capacity = 0;
+            for (Footer footer : selected) {
+                capacity += footer.rows;
+            }
+            String[][] dictionaries = new String[columns.size()][0];
+            ColumnTable.Builder builder = new ColumnTable.Builder(columns).withTypes(types, dictionaries, capacity);
+            double[] numbers = new double[columns.size()];
+            int[] ints = new int[columns.size()];
+            long read = 0;
+            for (Footer footer : selected) {
+                Object[] data = new Object[columns.size()];
+                for (int c = 0; c < columns.size(); c++) {
+                    int position = positions[c];
+                    byte[] raw = new byte[footer.lengths[position]];
+                    footer.file.seek(footer.offsets[position]);
+                    footer.file.readFully(raw);
+                    read += raw.length;
+                    data[c] = decode(raw, types[c], footer.rows, builder, c);
+                }
+                for (int r = 0; r < footer.rows; r++) {
+                    for (int c = 0; c < columns.size(); c++) {
+                        if (types[c] == ColumnTable.Type.NUMBER) {
+                            numbers[c] = ((double[]) data[c])[r];
+                        } else {
+                            ints[c] = ((int[]) data[c])[r];
+                        }
+                    }
+                    builder.addTypedRow(numbers, ints);
+                }
+            }
+
+            inspector.addAttribute("storePartitions", stats[0]);
+            inspector.addAttribute("storePartitionsSkipped", stats[1]);
+            inspector.addAttribute("storeBlocks", stats[2]);
+            inspector.addAttribute("storeBlocksSkipped", stats[3]);
+            inspector.addAttribute("storeRows", stats[4]);
+            inspector.addAttribute("storeRowsSkipped", stats[5]);
+            inspector.addAttribute("storeSkippedFraction", stats[4] == 0 ? 0.0 : (double) stats[5] / stats[4]);
+            inspector.addAttribute("storeBytesRead", read);
+            return builder.build();
+        } finally {
+            for (RandomAccessFile file : files) {
+                file.close();
+            }
+        }
+    }
+
+    private static int[] sortRows(ColumnTable.Column sort, int[] rows) {
+        if (sort == null) {
+            return rows;
+        }
+        if (sort.type == ColumnTable.Type.NUMBER) {
+            Integer[] boxed = new Integer[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                boxed[i] = rows[i];
+            }
+            Arrays.sort(boxed, (a, b) -> Double.compare(sort.values[a], sort.values[b]));
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = boxed[i];
+            }
+            return rows;
+        }
+        //Sort keys and row numbers packed into one long: days, or the rank of the string.
+        int[] rank = null;
+        if (sort.type == ColumnTable.Type.STRING) {
+            Integer[] byValue = new Integer[sort.dictionary.length];
+            for (int i = 0; i < byValue.length; i++) {
+                byValue[i] = i;
+            }
+            Arrays.sort(byValue, (a, b) -> sort.dictionary[a].compareTo(sort.dictionary[b]));
+            rank = new int[byValue.length];
+            for (int i = 0; i < byValue.length; i++) {
+                rank[byValue[i]] = i;
+            }
+        }
+        long[] packed = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            int key = rank == null ? sort.codes[rows[i]] : rank[sort.codes[rows[i]]];
+            packed[i] = ((long) key << 32) | rows[i];
+        }
+        Arrays.sort(packed);
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = (int) packed[i];
+        }
+        return rows;
+    }
+
+    /**
+     * Write one partition's file and return its manifest entry.
+     */
+    private static Map<String, Object> writeEntry(ColumnTable table, int[] rows, String key, String name,
+            int blockRows, File file) throws IOException {
+        List<String> names = table.getColumnNames();
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("key", key);
+        entry.put("file", name);
+        entry.put("rows", (long) rows.length);
+        Zone[] zones = writePartition(table, rows, blockRows, file);
+        entry.put("blocks", (long) (rows.length + blockRows - 1) / blockRows);
+        Map<String, Object> min = new LinkedHashMap<>();
+        Map<String, Object> max = new LinkedHashMap<>();
+        for (int c = 0; c < names.size(); c++) {
+            min.put(names.get(c), zones[c].min());
+            max.put(names.get(c), zones[c].max());
+        }
+        entry.put("min", min);
+        entry.put("max", max);
+        return entry;
+    }
+
+    /**
+     * Read the rows of one partition from the database with the store's
+     * column types.
+     *
+     * @return The rows, or null if the table's columns are not the store's.
+     */
+    private static ColumnTable readPartition(Connection connection, String table, String partitionBy,
+            ColumnTable.Type type, String key, List<String> names, ColumnTable.Type[] types) throws SQLException {
+        String column = ColumnTable.quote(partitionBy);
+        String sql = "SELECT * FROM " + ColumnTable.quote(table) + " WHERE "
+                + (type == ColumnTable.Type.DATE ? column + " >= ? AND " + column + " < ?" : column + " = ?");
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            if (type == ColumnTable.Type.DATE) {
+                LocalDate month = LocalDate.parse(key + "-01");
+                statement.setString(1, month.toString());
+                statement.setString(2, month.plusMonths(1).toString());
+            } else {
+                statement.setString(1, key);
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                int count = rs.getMetaData().getColumnCount();
+                if (count != names.size()) {
+                    return null;
+                }
+                for (int i = 0; i < count; i++) {
+                    if (!names.get(i).equals(rs.getMetaData().getColumnLabel(i + 1))) {
+                        return null;
+                    }
+                }
+                ColumnTable.Builder builder = new ColumnTable.Builder(names)
+                        .withTypes(types, new String[types.length][0], 1024);
+                String[] row = new String[count];
+                while (rs.next()) {
+                    for (int i = 0; i < count; i++) {
+                        row[i] = rs.getString(i + 1);
+                    }
+                    builder.addRow(row);
+                }
+                return builder.build();
+            }
+        }
+    }
+
+    /**
+     * The key of the partition a value of the partition column belongs to:
+     * the value itself, or for DATE columns its month as YYYY-MM. Values
+     * without a date have the key "".
+     */
+    static String partitionKey(String value, ColumnTable.Type type) {
+        if (type != ColumnTable.Type.DATE) {
+            return value == null ? "" : value;
+        }
+        int day = ColumnTable.parseDate(value);
+        return day == Integer.MIN_VALUE ? "" : ColumnTable.formatDate(day).substring(0, 7);
+    }
+
+    private static double number(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : -1;
+    }
+
+    /**
+     * Write one partition's blocks and return the zone of every column over the partition.
+     */
+    private static Zone[] writePartition(ColumnTable table, int[] rows, int blockRows, File file) throws IOException {
+        List<String> names = table.getColumnNames();
+        Zone[] partition = new Zone[names.size()];
+        for (int c = 0; c < names.size(); c++) {
+            partition[c] = new Zone(table.getType(names.get(c)));
+        }
+        List<long[]> footers = new ArrayList<>();
+        CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file.toPath()), 1 << 16));
+        try (DataOutputStream out = new DataOutputStream(counter)) {
+            for (int from = 0; from < rows.length; from += blockRows) {
+                int to = Math.min(rows.length, from + blockRows);
+                long[] offsets = new long[names.size()];
+                int[] lengths = new int[names.size()];
+                Zone[] zones = new Zone[names.size()];
+                for (int c = 0; c < names.size(); c++) {
+                    ColumnTable.Column column = table.column(names.get(c));
+                    zones[c] = new Zone(column.type);
+                    offsets[c] = counter.count;
+                    writeColumn(column, rows, from, to, zones[c], out);
+                    lengths[c] = (int) (counter.count - offsets[c]);
+                    partition[c].add(zones[c]);
+                }
+                long footer = counter.count;
+                out.writeInt(to - from);
+                for (int c = 0; c < names.size(); c++) {
+                    out.writeLong(offsets[c]);
+                    out.writeInt(lengths[c]);
+                    zones[c].write(out);
+                }
+                footers.add(new long[]{footer, counter.count - footer});
+            }
+            for (long[] footer : footers) {
+                out.writeLong(footer[0]);
+                out.writeInt((int) footer[1]);
+            }
+            out.writeInt(footers.size());
+            out.writeLong(MAGIC);
+        }
+        return partition;
+    }
+
+    private static void writeColumn(ColumnTable.Column column, int[] rows, int from, int to, Zone zone,
+            DataOutputStream out) throws IOException {
+        if (column.type == ColumnTable.Type.NUMBER) {
+            for (int i = from; i < to; i++) {
+                double v = column.values[rows[i]];
+                out.writeDouble(v);
+                zone.add(v);
+            }
+        } else if (column.type == ColumnTable.Type.DATE) {
+            for (int i = from; i < to; i++) {
+                int day = column.codes[rows[i]];
+                out.writeInt(day);
+                if (day != Integer.MIN_VALUE) {
+                    zone.add(day);
+                }
+            }
+        } else {
+            //A block local dictionary keeps the codes small and the bloom filter exact in size.
+            Map<Integer, Integer> local = new LinkedHashMap<>();
+            for (int i = from; i < to; i++) {
+                local.putIfAbsent(column.codes[rows[i]], local.size());
+            }
+            out.writeInt(local.size());
+            List<String> values = new ArrayList<>(local.size());
+            for (Integer code : local.keySet()) {
+                String value = column.dictionary[code];
+                out.writeUTF(value);
+                values.add(value);
+            }
+            for (int i = from; i < to; i++) {
+                out.writeInt(local.get(column.codes[rows[i]]));
+            }
+            zone.add(values);
+        }
+    }
+
+    private static Object decode(byte[] raw, ColumnTable.Type type, int rows, ColumnTable.Builder builder, int column)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+        if (type == ColumnTable.Type.NUMBER) {
+            double[] values = new double[rows];
+            for (int i = 0; i < rows; i++) {
+                values[i] = in.readDouble();
+            }
+            return values;
+        }
+        int[] codes = new int[rows];
+        if (type == ColumnTable.Type.DATE) {
+            for (int i = 0; i < rows; i++) {
+                codes[i] = in.readInt();
+            }
+            return codes;
+        }
+        int[] global = new int[in.readInt()];
+        for (int i = 0; i < global.length; i++) {
+            global[i] = builder.code(column, in.readUTF());
+        }
+        for (int i = 0; i < rows; i++) {
+            codes[i] = global[in.readInt()];
+        }
+        return codes;
+    }
+
+    private static List<Footer> readFooters(RandomAccessFile file, List<String> typeNames) throws IOException {
+        long length = file.length();
+        file.seek(length - 12);
+        int count = file.readInt();
+        if (file.readLong() != MAGIC) {
+            throw new IOException("Not a block file");
+        }
+        byte[] index = new byte[count * 12];
+        file.seek(length - 12 - index.length);
+        file.readFully(index);
+        DataInputStream entries = new DataInputStream(new ByteArrayInputStream(index));
+        List<Footer> footers = new ArrayList<>(count);
+        for (int b = 0; b < count; b++) {
+            long offset = entries.readLong();
+            byte[] raw = new byte[entries.readInt()];
+            file.seek(offset);
+            file.readFully(raw);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+            Footer footer = new Footer(in.readInt(), typeNames.size());
+            for (int c = 0; c < typeNames.size(); c++) {
+                footer.offsets[c] = in.readLong();
+                footer.lengths[c] = in.readInt();
+                footer.zones[c] = Zone.read(ColumnTable.Type.valueOf(typeNames.get(c)), in);
+            }
+            footers.add(footer);
+        }
+        return footers;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * A block footer read back from a file.
+     */
+    private static final class Footer {
+        final int rows;
+        final long[] offsets;
+        final int[] lengths;
+        final Zone[] zones;
+        RandomAccessFile file;
+
+        Footer(int rows, int columns) {
+            this.rows = rows;
+            this.offsets = new long[columns];
+            this.lengths = new int[columns];
+            this.zones = new Zone[columns];
+        }
+    }
+
+    /**
+     * The min, max and bloom filter of a column in a block or partition.
+     * min greater than max means the column has no values there.
+     */
+    private static final class Zone {
+        final ColumnTable.Type type;
+        double low = Double.POSITIVE_INFINITY;
+        double high = Double.NEGATIVE_INFINITY;
+        String lowText;
+        String highText;
+        long[] bloom;
+
+        Zone(ColumnTable.Type type) {
+            this.type = type;
+        }
+
+        static Zone of(ColumnTable.Type type, Object min, Object max) {
+            Zone zone = new Zone(type);
+            if (min == null || max == null) {
+                return zone;
+            }
+            if (type == ColumnTable.Type.STRING) {
+                zone.lowText = String.valueOf(min);
+                zone.highText = String.valueOf(max);
+            } else if (type == ColumnTable.Type.DATE) {
+                zone.low = ColumnTable.parseDate(String.valueOf(min));
+                zone.high = ColumnTable.parseDate(String.valueOf(max));
+            } else {
+                zone.low = ((Number) min).doubleValue();
+                zone.high = ((Number) max).doubleValue();
+            }
+            return zone;
+        }
+
+        void add(double value) {
+            //NaN fails both comparisons and is left out.
+            low = value < low ? value : low;
+            high = value > high ? value : high;
+        }
+
+        void add(List<String> values) {
+            for (String value : values) {
+                addText(value);
+            }
+            bloom = new long[Math.max(1, (values.size() * BLOOM_BITS_PER_VALUE + 63) / 64)];
+            for (String value : values) {
+                long hash = OffHeapHashIndex.hash(value);
+                for (int k = 0; k < BLOOM_HASHES; k++) {
+                    int bit = bit(hash, k, bloom.length * 64);
+                    bloom[bit >>> 6] |= 1L << bit;
+                }
+            }
+        }
+
+        void add(Zone other) {
+            if (type == ColumnTable.Type.STRING) {
+                if (other.lowText != null) {
+                    addText(other.lowText);
+                    addText(other.highText);
+                }
+            } else if (other.low <= other.high) {
+                add(other.low);
+                add(other.high);
+            }
+        }
+
+        private void addText(String value) {
+            lowText = lowText == null || value.compareTo(lowText) < 0 ? value : lowText;
+            highText = highText == null || value.compareTo(highText) > 0 ? value : highText;
+        }
+
+        Object min() {
+            return type == ColumnTable.Type.STRING ? lowText : low > high ? null
+                    : type == ColumnTable.Type.DATE ? ColumnTable.formatDate((int) low) : (Object) low;
+        }
+
+        Object max() {
+            return type == ColumnTable.Type.STRING ? highText : low > high ? null
+                    : type == ColumnTable.Type.DATE ? ColumnTable.formatDate((int) high) : (Object) high;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            if (type == ColumnTable.Type.STRING) {
+                out.writeBoolean(lowText != null);
+                if (lowText != null) {
+                    out.writeUTF(lowText);
+                    out.writeUTF(highText);
+                }
+                out.writeInt(bloom == null ? 0 : bloom.length);
+                for (long word : bloom == null ? new long[0] : bloom) {
+                    out.writeLong(word);
+                }
+            } else {
+                out.writeDouble(low);
+                out.writeDouble(high);
+            }
+        }
+
+        static Zone read(ColumnTable.Type type, DataInputStream in) throws IOException {
+            Zone zone = new Zone(type);
+            if (type == ColumnTable.Type.STRING) {
+                if (in.readBoolean()) {
+                    zone.lowText = in.readUTF();
+                    zone.highText = in.readUTF();
+                }
+                int words = in.readInt();
+                if (words > 0) {
+                    zone.bloom = new long[words];
+                    for (int i = 0; i < words; i++) {
+                        zone.bloom[i] = in.readLong();
+                    }
+                }
+            } else {
+                zone.low = in.readDouble();
+                zone.high = in.readDouble();
+            }
+            return zone;
+        }
+
+        /**
+         * @return false if no value in the zone can pass the filter.
+         */
+        boolean mayMatch(Object condition) {
+            if (condition instanceof Map) {
+                Map<?, ?> range = (Map<?, ?>) condition;
+                if (type == ColumnTable.Type.STRING) {
+                    return true;
+                }
+                double from = range.get("from") == null ? Double.NEGATIVE_INFINITY : value(range.get("from"));
+                double to = range.get("to") == null ? Double.POSITIVE_INFINITY : value(range.get("to"));
+                return low <= high && from <= high && to >= low;
+            }
+            for (Object wanted : condition instanceof List ? (List<?>) condition
+                    : Collections.singletonList(condition)) {
+                if (type != ColumnTable.Type.STRING) {
+                    double v = value(wanted);
+                    if (v >= low && v <= high) {
+                        return true;
+                    }
+                } else if (lowText != null) {
+                    String v = String.valueOf(wanted);
+                    if (v.compareTo(lowText) >= 0 && v.compareTo(highText) <= 0 && mightContain(v)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean mightContain(String value) {
+            if (bloom == null) {
+                return true;
+            }
+            long hash = OffHeapHashIndex.hash(value);
+            for (int k = 0; k < BLOOM_HASHES; k++) {
+                int bit = bit(hash, k, bloom.length * 64);
+                if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private double value(Object value) {
+            if (type == ColumnTable.Type.DATE) {
+                int day = ColumnTable.parseDate(String.valueOf(value));
+                return day == Integer.MIN_VALUE ? Double.NaN : day;
+            }
+            return value instanceof Number ? ((Number) value).doubleValue()
+                    : ColumnTable.Builder.parseNumber(String.valueOf(value));
+        }
+
+        private static int bit(long hash, int k, int bits) {
+            //Double hashing: the k-th position is h1 + k * h2.
+            int combined = (int) hash + k * (int) (hash >>> 32);
+            return (combined & Integer.MAX_VALUE) % bits;
+        }
+    }
+
+    /**
+     * Counts the bytes written, as file offsets, without wrapping at 2 GB.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package etl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory table of primitive column arrays for aggregate queries.
+ *
+ * Column types are decided by the first row: numbers are stored as double[],
+ * dates (M/D/YYYY or YYYY-MM-DD) as int[] days since the epoch, and other
+ * values as int[] codes into a dictionary of distinct strings. Later values
+ * that do not parse become NaN or Integer.MIN_VALUE.
+ */
+public class ColumnTable {
+
+    public enum Type {
+        NUMBER, DATE, STRING
+    }
+
+    private final List<Column> columns;
+    private final Map<String, Column> byName = new HashMap<>();
+    private final int rows;
+
+    private ColumnTable(List<Column> columns, int rows) {
+        this.columns = columns;
+        this.rows = rows;
+        for (Column column : columns) {
+            byName.put(column.name, column);
+        }
+    }
+
+    /**
+     * Read a CSV file with a header row. Fields must not contain commas.
+     *
+     * @param path The CSV file.
+     * @return The table.
+     * @throws IOException If the file cannot be read.
+     */
+    public static ColumnTable readCsv(String path) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IOException("CSV file is empty: " + path);
+            }
+            Builder builder = new Builder(Arrays.asList(header.split(",")));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    builder.addRow(line.split(",", -1));
+                }
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * Read every row of a database table.
+     *
+     * @param connection The database connection.
+     * @param table The table name.
+     * @return The table.
+     * @throws SQLException If the table cannot be read.
+     */
+    public static ColumnTable readTable(Connection connection, String table) throws SQLException {
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT * FROM " + quote(table))) {
+            int count = rs.getMetaData().getColumnCount();
+            List<String> names = new ArrayList<>(count);
+            for (int i = 1; i <= count; i++) {
+                names.add(rs.getMetaData().getColumnLabel(i));
+            }
+            Builder builder = new Builder(names);
+            String[] row = new String[count];
+            while (rs.next()) {
+                for (int i = 0; i < count; i++) {
+                    row[i] = rs.getString(i + 1);
+                }
+                builder.addRow(row);
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * @return The number of rows.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return The column names in table order.
+     */
+    public List<String> getColumnNames() {
+        List<String> names = new ArrayList<>(columns.size());
+        for (Column column : columns) {
+            names.add(column.name);
+        }
+        return names;
+    }
+
+    /**
+     * @param name A column name.
+     * @return The column's type, or null if there is no such column.
+     */
+    public Type getType(String name) {
+        Column column = byName.get(name);
+        return column == null ? null : column.type;
+    }
+
+    /**
+     * @return The approximate memory used by the column arrays in bytes.
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Column column : columns) {
+            bytes += column.type == Type.NUMBER ? 8L * rows : 4L * rows;
+        }
+        return bytes;
+    }
+
+    Column column(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Parse a date as days since the epoch.
+     *
+     * @param value M/D/YYYY or YYYY-MM-DD.
+     * @return The day, or Integer.MIN_VALUE if value is not a date.
+     */
+    public static int parseDate(String value) {
+        if (value == null) {
+            return Integer.MIN_VALUE;
+        }
+        int[] parts = new int[3];
+        int part = 0;
+        char separator = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                parts[part] = parts[part] * 10 + (c - '0');
+            } else if ((c == '/' || c == '-') && part < 2 && (separator == 0 || separator == c)) {
+                separator = c;
+                part++;
+            } else {
+                return Integer.MIN_VALUE;
+            }
+        }
+        if (part != 2) {
+            return Integer.MIN_VALUE;
+        }
+        try {
+            return (int) (separator == '/' ? LocalDate.of(parts[2], parts[0], parts[1])
+                    : LocalDate.of(parts[0], parts[1], parts[2])).toEpochDay();
+        } catch (RuntimeException e) {
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    /**
+     * The type a column gets when this is its first value.
+     *
+     * @param value A value, may be null.
+     * @return NUMBER, DATE or STRING.
+     */
+    public static Type typeOf(String value) {
+        return Builder.isNumber(value) ? Type.NUMBER : parseDate(value) != Integer.MIN_VALUE ? Type.DATE : Type.STRING;
+    }
+
+    /**
+     * Format a day since the epoch as YYYY-MM-DD.
+     */
+    public static String formatDate(int day) {
+        return day == Integer.MIN_VALUE ? null : LocalDate.ofEpochDay(day).toString();
+    }
+
+    static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * A column of the table. Dates and strings use codes, numbers use values.
+     */
+    static class Column {
+        final String name;
+        final Type type;
+        final int[] codes;
+        final double[] values;
+        final String[] dictionary;
+
+        private Column(String name, Type type, int[] codes, double[] values, String[] dictionary) {
+            this.name = name;
+            this.type = type;
+            this.codes = codes;
+            this.values = values;
+            this.dictionary = dictionary;
+        }
+
+        /**
+         * @return The dictionary code of a string, or -1 if it does not occur.
+         */
+        int code(String value) {
+            for (int i = 0; i < dictionary.length; i++) {
+                if (dictionary[i].equals(value)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Builds a table row by row.
+     */
+    public static class Builder {
+        private final List<String> names;
+        private Type[] types;
+        private int[][] codes;
+        private double[][] values;
+        private List<Map<String, Integer>> dictionaries;
+        private int rows = 0;
+
+        public Builder(List<String> names) {
+            this.names = new ArrayList<>(names);
+        }
+
+        /**
+         * Add a row. The first row decides the column types.
+         *
+         * @param row The values in column order, as strings.
+         */
+        public void addRow(String[] row) {
+            int count = names.size();
+            if (types == null) {
+                types = new Type[count];
+                codes = new int[count][];
+                values = new double[count][];
+                dictionaries = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String value = i < row.length ? row[i] : null;
+                    types[i] = typeOf(value);
+                    if (types[i] == Type.NUMBER) {
+                        values[i] = new double[1024];
+                    } else {
+                        codes[i] = new int[1024];
+                    }
+                    dictionaries.add(types[i] == Type.STRING ? new HashMap<>() : null);
+                }
+            }
+            if (count > 0 && rows == capacity()) {
+                grow();
+            }
+            for (int i = 0; i < count; i++) {
+                String value = i < row.length ? row[i] : null;
+                switch (types[i]) {
+                    case NUMBER:
+                        values[i][rows] = parseNumber(value);
+                        break;
+                    case DATE:
+                        codes[i][rows] = parseDate(value);
+                        break;
+                    default:
+                        codes[i][rows] = code(i, value == null ? "" : value);
+                }
+            }
+            rows++;
+        }
+
+        /**
+         * Add a row of typed values: numbers as double, dates as epoch days
+         * and strings as dictionary codes that the builder does not check.
+         * Used to generate large tables without formatting strings.
+         *
+         * @param numbers Values of the NUMBER columns, indexed by column.
+         * @param ints Days or codes of the DATE and STRING columns, indexed by column.
+         */
+        void addTypedRow(double[] numbers, int[] ints) {
+            if (types.length > 0 && rows == capacity()) {
+                grow();
+            }
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == Type.NUMBER) {
+                    values[i][rows] = numbers[i];
+                } else {
+                    codes[i][rows] = ints[i];
+                }
+            }
+            rows++;
+        }
+
+        /**
+         * @return The code of a value in a STRING column's dictionary, added if new.
+         */
+        int code(int column, String value) {
+            Map<String, Integer> dictionary = dictionaries.get(column);
+            Integer code = dictionary.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.put(value, code);
+            }
+            return code;
+        }
+
+        /**
+         * Declare the column types and string dictionaries up front.
+         */
+        Builder withTypes(Type[] types, String[][] dictionaries, int capacity) {
+            this.types = types.clone();
+            codes = new int[types.length][];
+            values = new double[types.length][];
+            this.dictionaries = new ArrayList<>(types.length);
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == Type.NUMBER) {
+                    values[i] = new double[Math.max(1, capacity)];
+                } else {
+                    codes[i] = new int[Math.max(1, capacity)];
+                }
+                Map<String, Integer> dictionary = null;
+                if (types[i] == Type.STRING) {
+                    dictionary = new HashMap<>();
+                    for (String value : dictionaries[i]) {
+                        dictionary.put(value, dictionary.size());
+                    }
+                }
+                this.dictionaries.add(dictionary);
+            }
+            return this;
+        }
+
+        /**
+         * @return The table. The builder must not be used afterwards.
+         */
+        public ColumnTable build() {
+            List<Column> columns = new ArrayList<>(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                Type type = types == null ? Type.STRING : types[i];
+                String[] dictionary = null;
+                if (type == Type.STRING) {
+                    dictionary = new String[types == null ? 0 : dictionaries.get(i).size()];
+                    if (types != null) {
+                        for (Map.Entry<String, Integer> entry : dictionaries.get(i).entrySet()) {
+                            dictionary[entry.getValue()] = entry.getKey();
+                        }
+                    }
+                }
+                columns.add(new Column(names.get(i), type,
+                        type == Type.NUMBER ? null : types == null ? new int[0] : Arrays.copyOf(codes[i], rows),
+                        type == Type.NUMBER ? Arrays.copyOf(values[i], rows) : null, dictionary));
+            }
+            return new ColumnTable(Collections.unmodifiableList(columns), rows);
+        }
+
+        private int capacity() {
+            return types[0] == Type.NUMBER ? values[0].length : codes[0].length;
+        }
+
+        private void grow() {
+            int capacity = capacity() * 2;
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == Type.NUMBER) {
+                    values[i] = Arrays.copyOf(values[i], capacity);
+                } else {
+                    codes[i] = Arrays.copyOf(codes[i], capacity);
+                }
+            }
+        }
+
+        private static boolean isNumber(String value) {
+            return value != null && !value.isEmpty() && !Double.isNaN(parseNumber(value));
+        }
+
+        static double parseNumber(String value) {
+            if (value == null) {
+                return Double.NaN;
+            }
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException nfe) {
+                return Double.NaN;
+            }
+        }
+    }
+}
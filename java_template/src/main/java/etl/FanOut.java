@@ -0,0 +1,225 @@
+package etl;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import saaf.Inspector;
+
+/**
+ * Fan-out/fan-in execution of an aggregate query over table partitions.
+ *
+ * The coordinator sends the query to one worker per partition, with
+ * "partition" and "partitions" added to the request, waits for all of them
+ * and merges the partial aggregates they return in their "partial" attribute.
+ * The workers' Inspector records are merged into the coordinator's output so
+ * stragglers and cold starts can be read next to the fan-out latency.
+ *
+ * Workers are any function that takes a request and returns Inspector
+ * output: handler calls on threads of this process, or HTTP endpoints such as
+ * adapter.LocalAdapter instances. Workers in this process share its
+ * container, so they report no newcontainer and are not counted as cold or
+ * warm.
+ */
+public final class FanOut {
+
+    private static final Gson GSON = new Gson();
+    private static final Type MAP_TYPE = new TypeToken<HashMap<String, Object>>() {}.getType();
+
+    //Worker attributes copied into the coordinator's per-worker records.
+    private static final List<String> RECORD_ATTRIBUTES = Arrays.asList("runtime", "newcontainer", "uuid",
+            "containerID", "columnarLoadTime", "queryTime", "queryRowsScanned", "queryRowsSelected", "error");
+
+    //Threads are kept across warm invocations.
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "saaf-fanout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private FanOut() {}
+
+    /**
+     * A function instance that runs partition requests.
+     */
+    public interface Worker {
+        Map<String, Object> invoke(Map<String, Object> request) throws IOException;
+    }
+
+    /**
+     * A worker that POSTs requests as JSON to a URL and reads the JSON response.
+     *
+     * @param url The worker's endpoint.
+     * @return The worker.
+     */
+    public static Worker http(String url) {
+        return request -> {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(GSON.toJson(request).getBytes(StandardCharsets.UTF_8));
+            }
+            if (connection.getResponseCode() != 200) {
+                throw new IOException(url + " returned HTTP " + connection.getResponseCode());
+            }
+            try (Reader reader = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+                Map<String, Object> response = GSON.fromJson(reader, MAP_TYPE);
+                if (response == null) {
+                    throw new IOException(url + " returned an empty response");
+                }
+                return response;
+            }
+        };
+    }
+
+    /**
+     * Run a query on every partition in parallel and merge the results.
+     *
+     * fanOutPartitions:        The number of partitions and worker invocations.
+     * fanOutTime:              Time in ms from sending the first request until the last response.
+     * fanOutWorkers:           One record per partition with its latency, the time in ms the
+     *                          coordinator waited for it, and the worker's runtime, newcontainer,
+     *                          uuid, columnarLoadTime, queryTime and error attributes.
+     * fanOutLatencyMin, fanOutLatencyMedian, fanOutLatencyMax: Worker latencies in ms.
+     * fanOutStraggler:         The partition that finished last.
+     * fanOutStragglerRatio:    The largest latency divided by the median.
+     * fanOutColdStarts:        Workers that reported newcontainer 1, if any reported newcontainer.
+     * fanOutColdLatencyMean, fanOutWarmLatencyMean: Mean latency of cold and warm workers.
+     * fanOutErrors:            Workers that failed.
+     *
+     * @param query The query.
+     * @param request The request to send, without partition attributes.
+     * @param partitions The number of partitions.
+     * @param workers The workers; partition i runs on worker i modulo their number.
+     * @param inspector The coordinator's Inspector.
+     * @return The merged result rows.
+     * @throws IllegalStateException If a worker failed.
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Map<String, Object>> run(AggregateQuery query, Map<String, Object> request, int partitions,
+            List<Worker> workers, Inspector inspector) {
+        long start = System.nanoTime();
+        List<Future<Map<String, Object>>> futures = new ArrayList<>(partitions);
+        double[] latencies = new double[partitions];
+        for (int i = 0; i < partitions; i++) {
+            Map<String, Object> part = new HashMap<>(request);
+            part.put("partition", i);
+            part.put("partitions", partitions);
+            Worker worker = workers.get(i % workers.size());
+            int partition = i;
+            futures.add(WORKERS.submit(() -> {
+                long sent = System.nanoTime();
+                try {
+                    return worker.invoke(part);
+                } finally {
+                    latencies[partition] = (System.nanoTime() - sent) / 1000000.0;
+                }
+            }));
+        }
+
+        List<Map<String, Object>> records = new ArrayList<>(partitions);
+        List<List<Map<String, Object>>> partials = new ArrayList<>(partitions);
+        String failure = null;
+        for (int i = 0; i < partitions; i++) {
+            Map<String, Object> record = new LinkedHashMap<>();
+            record.put("partition", i);
+            Map<String, Object> response;
+            try {
+                response = futures.get(i).get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for partition " + i, ie);
+            } catch (ExecutionException ee) {
+                response = new HashMap<>();
+                response.put("error", ee.getCause().toString());
+            }
+            record.put("latency", latencies[i]);
+            for (String attribute : RECORD_ATTRIBUTES) {
+                if (response.containsKey(attribute)) {
+                    record.put(attribute, response.get(attribute));
+                }
+            }
+            Object partial = response.get("partial");
+            if (partial instanceof List) {
+                partials.add((List<Map<String, Object>>) partial);
+            } else if (failure == null) {
+                failure = "Partition " + i + " failed: " + response.getOrDefault("error", "no partial result");
+            }
+            records.add(record);
+        }
+        report(records, latencies, (System.nanoTime() - start) / 1000000.0, inspector);
+        if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+        return query.merge(partials);
+    }
+
+    private static void report(List<Map<String, Object>> records, double[] latencies, double time,
+            Inspector inspector) {
+        double[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        int straggler = 0;
+        int reported = 0;
+        int cold = 0;
+        int errors = 0;
+        double coldSum = 0;
+        double warmSum = 0;
+        for (int i = 0; i < latencies.length; i++) {
+            Map<String, Object> record = records.get(i);
+            if (latencies[i] > latencies[straggler]) {
+                straggler = i;
+            }
+            Object newContainer = record.get("newcontainer");
+            if (!(newContainer instanceof Number)) {
+                //In-process workers and failed requests have no container state.
+            } else if (((Number) newContainer).intValue() == 1) {
+                reported++;
+                cold++;
+                coldSum += latencies[i];
+            } else {
+                reported++;
+                warmSum += latencies[i];
+            }
+            if (record.containsKey("error")) {
+                errors++;
+            }
+        }
+        double median = sorted[sorted.length / 2];
+        inspector.addAttribute("fanOutPartitions", latencies.length);
+        inspector.addAttribute("fanOutTime", time);
+        inspector.addAttribute("fanOutWorkers", records);
+        inspector.addAttribute("fanOutLatencyMin", sorted[0]);
+        inspector.addAttribute("fanOutLatencyMedian", median);
+        inspector.addAttribute("fanOutLatencyMax", sorted[sorted.length - 1]);
+        inspector.addAttribute("fanOutStraggler", straggler);
+        inspector.addAttribute("fanOutStragglerRatio", median == 0 ? 0.0 : sorted[sorted.length - 1] / median);
+        if (reported > 0) {
+            inspector.addAttribute("fanOutColdStarts", cold);
+        }
+        if (cold > 0) {
+            inspector.addAttribute("fanOutColdLatencyMean", coldSum / cold);
+        }
+        if (cold < reported) {
+            inspector.addAttribute("fanOutWarmLatencyMean", warmSum / (reported - cold));
+        }
+        inspector.addAttribute("fanOutErrors", errors);
+    }
+}
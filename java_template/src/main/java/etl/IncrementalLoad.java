@@ -0,0 +1,540 @@
+package etl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import saaf.Inspector;
+
+/**
+ * Loads a CSV file into a database table incrementally.
+ *
+ * The rows are cut into content defined chunks: a chunk ends after a row whose
+ * hash is a multiple of the chunk size, so editing or inserting rows only
+ * changes the chunks around them. The SHA-256 of every chunk is stored in the
+ * saaf_load_chunks table of the same database, and chunks seen by the last
+ * load are skipped. Rows of new or changed chunks are upserted by key.
+ *
+ * The largest value of the watermark column is stored in saaf_load_state.
+ * For append only sources, rows at or below the stored watermark are skipped
+ * before they are hashed. Rows removed from the source are not deleted.
+ *
+ * When a key occurs more than once in the source, its last row wins. A row of
+ * an unchanged chunk whose key was upserted from an earlier changed chunk is
+ * therefore upserted again. Rows skipped by the watermark are not checked, so
+ * append only sources should have unique keys.
+ *
+ * Every load increments the table's version in saaf_load_state and updates
+ * the table's MaterializedViews in the same transaction.
+ *
+ * Numbers are stored as REAL, dates as YYYY-MM-DD text and other values as
+ * TEXT, which is what ColumnTable and AggregateQuery expect.
+ */
+public class IncrementalLoad {
+
+    private static final String STATE_TABLE = "saaf_load_state";
+    private static final String CHUNK_TABLE = "saaf_load_chunks";
+
+    private final Connection connection;
+    private final String table;
+    private final List<String> keys;
+    private final String watermark;
+    private final int chunkRows;
+    private List<?> views;
+    private String tracked;
+    private Set<String> trackedValues;
+
+    /**
+     * @param connection The database connection.
+     * @param table The table to load into. It is created if it does not exist.
+     * @param keys The key columns rows are upserted by.
+     * @param watermark The column whose largest value is the watermark, a number or date.
+     * @param chunkRows The mean number of rows per chunk.
+     */
+    public IncrementalLoad(Connection connection, String table, List<String> keys, String watermark, int chunkRows) {
+        this.connection = connection;
+        this.table = table;
+        this.keys = keys;
+        this.watermark = watermark;
+        this.chunkRows = Math.max(1, chunkRows);
+    }
+
+    /**
+     * Declare materialized views to create or keep with this load, see MaterializedViews.
+     *
+     * @param views View declarations, or null.
+     * @return This.
+     */
+    public IncrementalLoad withViews(List<?> views) {
+        this.views = views;
+        return this;
+    }
+
+    /**
+     * Collect the values of a column in the rows each load inserts or
+     * replaces, for example to rewrite only the changed partitions of a
+     * BlockStore.
+     *
+     * @param column The column, or null.
+     * @return This.
+     */
+    public IncrementalLoad trackValues(String column) {
+        this.tracked = column;
+        return this;
+    }
+
+    /**
+     * @return The tracked column's values in the rows the last load inserted
+     * or replaced, or null if no column is tracked or the input has no such
+     * column.
+     */
+    public Set<String> getTrackedValues() {
+        return trackedValues;
+    }
+
+    /**
+     * The version of a table's data: the number of loads into it.
+     *
+     * @param connection The database connection.
+     * @param table The table.
+     * @return The version, or -1 if the table was never loaded.
+     * @throws SQLException If the version cannot be read.
+     */
+    public static long version(Connection connection, String table) throws SQLException {
+        if (!exists(connection, STATE_TABLE)) {
+            return -1;
+        }
+        try (PreparedStatement select = connection.prepareStatement("SELECT version FROM " + STATE_TABLE
+                + " WHERE tbl = ?")) {
+            select.setString(1, table);
+            try (ResultSet rs = select.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : -1;
+            }
+        }
+    }
+
+    static boolean exists(Connection connection, String table) throws SQLException {
+        try (ResultSet rs = connection.getMetaData().getTables(null, null, table, null)) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Load a CSV file with a header row. Fields must not contain commas.
+     *
+     * loadChunks:                          Chunks in the input.
+     * loadChunksSkipped, loadChunksLoaded: Chunks that were unchanged and that were upserted.
+     * loadRowsSkipped, loadRowsLoaded:     Rows skipped, by chunk hash or watermark, and rows upserted.
+     * loadRowsReapplied:                   Rows of unchanged chunks upserted again because an earlier
+     *                                      changed chunk had the same key.
+     * loadBytesSkipped, loadBytesLoaded:   The UTF-8 size of those rows in the input.
+     * loadWatermark:                       The watermark after the load.
+     * loadWatermarkPrevious:               The watermark before the load, if there was one.
+     * loadVersion:                         The table's version after the load.
+     * loadView*:                           View maintenance, see MaterializedViews.apply.
+     *
+     * @param input The CSV file.
+     * @param appendOnly Skip rows at or below the stored watermark.
+     * @param full Ignore stored chunk hashes and upsert every row.
+     * @param inspector Receives the load statistics.
+     * @throws IOException If the file cannot be read.
+     * @throws SQLException If the database update fails. Nothing is changed then.
+     */
+    public void load(String input, boolean appendOnly, boolean full, Inspector inspector)
+            throws IOException, SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IllegalArgumentException("Input file is empty.");
+            }
+            List<String> columns = Arrays.asList(header.split(","));
+            int[] keyColumns = new int[keys.size()];
+            for (int i = 0; i < keys.size(); i++) {
+                keyColumns[i] = columns.indexOf(keys.get(i));
+                if (keyColumns[i] < 0) {
+                    throw new IllegalArgumentException("No column named " + keys.get(i));
+                }
+            }
+            trackedValues = tracked != null && columns.contains(tracked) ? new HashSet<>() : null;
+            int watermarkColumn = columns.indexOf(watermark);
+            if (watermarkColumn < 0) {
+                throw new IllegalArgumentException("No column named " + watermark);
+            }
+            createTables();
+            Set<String> known = full ? new HashSet<>() : knownChunks();
+            Double previous = storedWatermark();
+            String previousText = storedWatermarkText();
+            long previousVersion = version(connection, table);
+            long version = Math.max(0, previousVersion) + 1;
+            MaterializedViews materialized = new MaterializedViews(connection, table);
+            materialized.expect(previousVersion);
+            if (views != null) {
+                materialized.declare(views);
+            }
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] headerBytes = (header + "\n").getBytes(StandardCharsets.UTF_8);
+            String line = reader.readLine();
+            while (line != null && line.isEmpty()) {
+                line = reader.readLine();
+            }
+            if (line == null) {
+                throw new IllegalArgumentException("Input file has no records.");
+            }
+            //The first record decides the column types of a new table.
+            ColumnTable.Type[] types = types(columns.size(), line.split(",", -1));
+            ColumnTable.Type watermarkType = types[watermarkColumn];
+            if (watermarkType == ColumnTable.Type.STRING) {
+                throw new IllegalArgumentException("Watermark column " + watermark + " is not a number or date");
+            }
+            createTable(columns, types);
+            Double highest = previous;
+            String highestText = null;
+            List<String> chunk = new ArrayList<>();
+            List<String> hashes = new ArrayList<>();
+            List<long[]> sizes = new ArrayList<>();
+            long chunkBytes = 0;
+            //Keys upserted by this load, to find later rows of the same key in unchanged chunks.
+            Set<String> upserted = new HashSet<>();
+            //chunks, chunksSkipped, rowsSkipped, rowsLoaded, bytesSkipped, bytesLoaded, rowsReapplied
+            long[] counts = new long[7];
+            //Replaced rows are read only when views or tracking need them.
+            boolean selects = !materialized.isEmpty() || trackedValues != null;
+            try (PreparedStatement delete = connection.prepareStatement(deleteSql("DELETE"));
+                    PreparedStatement select = connection.prepareStatement(deleteSql("SELECT *"));
+                    PreparedStatement insert = connection.prepareStatement(insertSql(columns))) {
+                while (line != null) {
+                    String next = reader.readLine();
+                    if (!line.isEmpty()) {
+                        String[] fields = line.split(",", -1);
+                        byte[] lineBytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+                        long bytes = lineBytes.length;
+                        double mark = value(field(fields, watermarkColumn), watermarkType);
+                        if (appendOnly && previous != null && !(mark > previous)) {
+                            counts[2]++;
+                            counts[4] += bytes;
+                        } else {
+                            if (!Double.isNaN(mark) && (highest == null || mark > highest)) {
+                                highest = mark;
+                                highestText = field(fields, watermarkColumn);
+                            }
+                            if (chunk.isEmpty()) {
+                                digest.update(headerBytes);
+                            }
+                            chunk.add(line);
+                            chunkBytes += bytes;
+                            digest.update(lineBytes);
+                        }
+                    }
+                    long hash = OffHeapHashIndex.hash(line);
+                    boolean boundary = chunk.size() >= chunkRows / 4 && Long.remainderUnsigned(hash, chunkRows) == 0
+                            || chunk.size() >= 4 * chunkRows;
+                    if (!chunk.isEmpty() && (boundary || next == null)) {
+                        String hex = hex(digest.digest());
+                        hashes.add(hex);
+                        sizes.add(new long[]{chunk.size(), chunkBytes});
+                        counts[0]++;
+                        if (known.contains(hex)) {
+                            counts[1]++;
+                            counts[2] += chunk.size();
+                            counts[4] += chunkBytes;
+                            List<String> reapply = new ArrayList<>();
+                            for (int i = 0; i < chunk.size() && !upserted.isEmpty(); i++) {
+                                if (upserted.contains(key(chunk.get(i).split(",", -1), keyColumns))) {
+                                    reapply.add(chunk.get(i));
+                                }
+                            }
+                            if (!reapply.isEmpty()) {
+                                upsert(reapply, columns, keyColumns, types, delete, insert,
+                                        selects ? select : null, materialized, upserted);
+                                counts[6] += reapply.size();
+                            }
+                        } else {
+                            upsert(chunk, columns, keyColumns, types, delete, insert,
+                                    selects ? select : null, materialized, upserted);
+                            counts[3] += chunk.size();
+                            counts[5] += chunkBytes;
+                        }
+                        chunk.clear();
+                        chunkBytes = 0;
+                    }
+                    line = next;
+                }
+            }
+            String text = highestText == null ? previousText : watermarkType == ColumnTable.Type.DATE
+                    ? ColumnTable.formatDate(highest.intValue()) : highestText;
+            //Append only loads do not see the older chunks, so their hashes are kept.
+            saveState(hashes, sizes, !appendOnly, highest, text, version);
+            materialized.apply(version, inspector);
+            inspector.addAttribute("loadVersion", version);
+            connection.commit();
+
+            inspector.addAttribute("loadChunks", counts[0]);
+            inspector.addAttribute("loadChunksSkipped", counts[1]);
+            inspector.addAttribute("loadChunksLoaded", counts[0] - counts[1]);
+            inspector.addAttribute("loadRowsSkipped", counts[2]);
+            inspector.addAttribute("loadRowsLoaded", counts[3]);
+            inspector.addAttribute("loadRowsReapplied", counts[6]);
+            inspector.addAttribute("loadBytesSkipped", counts[4]);
+            inspector.addAttribute("loadBytesLoaded", counts[5]);
+            inspector.addAttribute("loadWatermark", text);
+            if (previousText != null) {
+                inspector.addAttribute("loadWatermarkPrevious", previousText);
+            }
+        } catch (NoSuchAlgorithmException e) {
+            connection.rollback();
+            throw new IllegalStateException(e);
+        } catch (IOException | SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private void upsert(List<String> chunk, List<String> columns, int[] keyColumns, ColumnTable.Type[] types,
+            PreparedStatement delete, PreparedStatement insert, PreparedStatement select, MaterializedViews views,
+            Set<String> upserted) throws SQLException {
+        //The last row of a key in the chunk wins.
+        Map<String, String[]> rows = new LinkedHashMap<>();
+        for (String line : chunk) {
+            String[] fields = line.split(",", -1);
+            String key = key(fields, keyColumns);
+            rows.remove(key);
+            rows.put(key, fields);
+        }
+        upserted.addAll(rows.keySet());
+        for (String[] fields : rows.values()) {
+            for (int i = 0; i < keyColumns.length; i++) {
+                bind(delete, i + 1, field(fields, keyColumns[i]), types[keyColumns[i]]);
+            }
+            delete.addBatch();
+            if (select != null) {
+                //Views subtract the row being replaced and add the new one.
+                for (int i = 0; i < keyColumns.length; i++) {
+                    bind(select, i + 1, field(fields, keyColumns[i]), types[keyColumns[i]]);
+                }
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        Map<String, String> old = new HashMap<>();
+                        for (int i = 0; i < columns.size(); i++) {
+                            old.put(columns.get(i), rs.getString(columns.get(i)));
+                        }
+                        if (trackedValues != null) {
+                            trackedValues.add(old.get(tracked));
+                        }
+                        if (!views.isEmpty()) {
+                            views.change(old, -1);
+                        }
+                    }
+                }
+                Map<String, String> row = new HashMap<>();
+                for (int i = 0; i < columns.size(); i++) {
+                    row.put(columns.get(i), field(fields, i));
+                }
+                if (trackedValues != null) {
+                    trackedValues.add(row.get(tracked));
+                }
+                if (!views.isEmpty()) {
+                    views.change(row, 1);
+                }
+            }
+            for (int i = 0; i < types.length; i++) {
+                bind(insert, i + 1, field(fields, i), types[i]);
+            }
+            insert.addBatch();
+        }
+        delete.executeBatch();
+        insert.executeBatch();
+    }
+
+    private static String key(String[] fields, int[] keyColumns) {
+        StringBuilder key = new StringBuilder();
+        for (int column : keyColumns) {
+            key.append(field(fields, column)).append(',');
+        }
+        return key.toString();
+    }
+
+    private static void bind(PreparedStatement statement, int index, String value, ColumnTable.Type type)
+            throws SQLException {
+        if (type == ColumnTable.Type.NUMBER) {
+            double number = ColumnTable.Builder.parseNumber(value);
+            if (Double.isNaN(number)) {
+                statement.setNull(index, java.sql.Types.REAL);
+            } else {
+                statement.setDouble(index, number);
+            }
+        } else if (type == ColumnTable.Type.DATE) {
+            int day = ColumnTable.parseDate(value);
+            statement.setString(index, day == Integer.MIN_VALUE ? value : ColumnTable.formatDate(day));
+        } else {
+            statement.setString(index, value);
+        }
+    }
+
+    private static ColumnTable.Type[] types(int count, String[] fields) {
+        ColumnTable.Type[] types = new ColumnTable.Type[count];
+        for (int i = 0; i < count; i++) {
+            types[i] = ColumnTable.typeOf(field(fields, i));
+        }
+        return types;
+    }
+
+    private static String field(String[] fields, int column) {
+        return column < fields.length ? fields[column] : null;
+    }
+
+    private static double value(String value, ColumnTable.Type type) {
+        if (type == ColumnTable.Type.DATE) {
+            int day = ColumnTable.parseDate(value);
+            return day == Integer.MIN_VALUE ? Double.NaN : day;
+        }
+        return ColumnTable.Builder.parseNumber(value);
+    }
+
+    private String deleteSql(String statement) {
+        List<String> conditions = new ArrayList<>();
+        for (String key : keys) {
+            conditions.add(ColumnTable.quote(key) + " = ?");
+        }
+        return statement + " FROM " + ColumnTable.quote(table) + " WHERE " + String.join(" AND ", conditions);
+    }
+
+    private String insertSql(List<String> columns) {
+        List<String> names = new ArrayList<>();
+        List<String> marks = new ArrayList<>();
+        for (String column : columns) {
+            names.add(ColumnTable.quote(column));
+            marks.add("?");
+        }
+        return "INSERT INTO " + ColumnTable.quote(table) + " (" + String.join(", ", names) + ") VALUES ("
+                + String.join(", ", marks) + ")";
+    }
+
+    private void createTables() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + STATE_TABLE
+                    + " (tbl TEXT PRIMARY KEY, watermark REAL, watermark_text TEXT, version INTEGER, loaded_at INTEGER)");
+            statement.execute("CREATE TABLE IF NOT EXISTS " + CHUNK_TABLE
+                    + " (tbl TEXT, hash TEXT, rows INTEGER, bytes INTEGER)");
+        }
+    }
+
+    private void createTable(List<String> columns, ColumnTable.Type[] types) throws SQLException {
+        List<String> definitions = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++) {
+            definitions.add(ColumnTable.quote(columns.get(i)) + (types[i] == ColumnTable.Type.NUMBER ? " REAL" : " TEXT"));
+        }
+        List<String> keyNames = new ArrayList<>();
+        for (String key : keys) {
+            keyNames.add(ColumnTable.quote(key));
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + ColumnTable.quote(table)
+                    + " (" + String.join(", ", definitions) + ")");
+            statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS " + ColumnTable.quote(table + "_key")
+                    + " ON " + ColumnTable.quote(table) + " (" + String.join(", ", keyNames) + ")");
+        }
+    }
+
+    private Set<String> knownChunks() throws SQLException {
+        Set<String> known = new HashSet<>();
+        try (PreparedStatement select = connection.prepareStatement("SELECT hash FROM " + CHUNK_TABLE
+                + " WHERE tbl = ?")) {
+            select.setString(1, table);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    known.add(rs.getString(1));
+                }
+            }
+        }
+        return known;
+    }
+
+    private Double storedWatermark() throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement("SELECT watermark FROM " + STATE_TABLE
+                + " WHERE tbl = ?")) {
+            select.setString(1, table);
+            try (ResultSet rs = select.executeQuery()) {
+                if (rs.next()) {
+                    double value = rs.getDouble(1);
+                    return rs.wasNull() ? null : value;
+                }
+                return null;
+            }
+        }
+    }
+
+    private String storedWatermarkText() throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement("SELECT watermark_text FROM " + STATE_TABLE
+                + " WHERE tbl = ?")) {
+            select.setString(1, table);
+            try (ResultSet rs = select.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    private void saveState(List<String> hashes, List<long[]> sizes, boolean replace, Double highest, String text,
+            long version) throws SQLException {
+        try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + CHUNK_TABLE + " WHERE tbl = ?");
+                PreparedStatement insert = connection.prepareStatement("INSERT INTO " + CHUNK_TABLE
+                        + " (tbl, hash, rows, bytes) VALUES (?, ?, ?, ?)")) {
+            if (replace) {
+                delete.setString(1, table);
+                delete.executeUpdate();
+            }
+            for (int i = 0; i < hashes.size(); i++) {
+                insert.setString(1, table);
+                insert.setString(2, hashes.get(i));
+                insert.setLong(3, sizes.get(i)[0]);
+                insert.setLong(4, sizes.get(i)[1]);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+        try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + STATE_TABLE + " WHERE tbl = ?");
+                PreparedStatement insert = connection.prepareStatement("INSERT INTO " + STATE_TABLE
+                        + " (tbl, watermark, watermark_text, version, loaded_at) VALUES (?, ?, ?, ?, ?)")) {
+            delete.setString(1, table);
+            delete.executeUpdate();
+            insert.setString(1, table);
+            if (highest == null) {
+                insert.setNull(2, java.sql.Types.REAL);
+            } else {
+                insert.setDouble(2, highest);
+            }
+            insert.setString(3, text);
+            insert.setLong(4, version);
+            insert.setLong(5, System.currentTimeMillis());
+            insert.executeUpdate();
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
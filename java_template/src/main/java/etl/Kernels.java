@@ -0,0 +1,196 @@
+package etl;
+
+/**
+ * Filter and aggregation loops over primitive column arrays. Each loop has a
+ * variant for all rows and for a selection vector of row numbers, so the
+ * common unfiltered case runs without indirection and with simple enough
+ * bodies for the JIT to unroll and vectorize.
+ *
+ * A selection is an int[] of ascending row numbers and its length n; a null
+ * selection with n rows means every row.
+ */
+final class Kernels {
+
+    private Kernels() {}
+
+    /**
+     * Select rows whose int value lies in [lo, hi].
+     *
+     * @return The number of rows written to out.
+     */
+    static int selectRange(int[] column, int lo, int hi, int[] sel, int n, int[] out) {
+        int k = 0;
+        //One unsigned compare per row and no branch on the outcome.
+        long range = (long) hi - lo;
+        if (sel == null) {
+            for (int i = 0; i < n; i++) {
+                out[k] = i;
+                k += (((long) column[i] - lo) & 0xffffffffL) <= range ? 1 : 0;
+            }
+        } else {
+            for (int j = 0; j < n; j++) {
+                int i = sel[j];
+                out[k] = i;
+                k += (((long) column[i] - lo) & 0xffffffffL) <= range ? 1 : 0;
+            }
+        }
+        return k;
+    }
+
+    /**
+     * Select rows whose double value lies in [lo, hi].
+     *
+     * @return The number of rows written to out.
+     */
+    static int selectRange(double[] column, double lo, double hi, int[] sel, int n, int[] out) {
+        int k = 0;
+        if (sel == null) {
+            for (int i = 0; i < n; i++) {
+                double v = column[i];
+                out[k] = i;
+                k += v >= lo & v <= hi ? 1 : 0;
+            }
+        } else {
+            for (int j = 0; j < n; j++) {
+                int i = sel[j];
+                double v = column[i];
+                out[k] = i;
+                k += v >= lo & v <= hi ? 1 : 0;
+            }
+        }
+        return k;
+    }
+
+    /**
+     * Select rows whose dictionary code is wanted.
+     *
+     * @return The number of rows written to out.
+     */
+    static int selectCodes(int[] column, boolean[] wanted, int[] sel, int n, int[] out) {
+        int k = 0;
+        if (sel == null) {
+            for (int i = 0; i < n; i++) {
+                out[k] = i;
+                k += wanted[column[i]] ? 1 : 0;
+            }
+        } else {
+            for (int j = 0; j < n; j++) {
+                int i = sel[j];
+                out[k] = i;
+                k += wanted[column[i]] ? 1 : 0;
+            }
+        }
+        return k;
+    }
+
+    /**
+     * Combine a dictionary column into group ids: groups = groups * cardinality + code.
+     */
+    static void groupIds(int[] column, int cardinality, int[] sel, int n, int[] groups) {
+        if (sel == null) {
+            for (int i = 0; i < n; i++) {
+                groups[i] = groups[i] * cardinality + column[i];
+            }
+        } else {
+            for (int j = 0; j < n; j++) {
+                groups[j] = groups[j] * cardinality + column[sel[j]];
+            }
+        }
+    }
+
+    /**
+     * Count rows per group.
+     */
+    static void count(int[] groups, int n, long[] out) {
+        if (groups == null) {
+            out[0] += n;
+            return;
+        }
+        for (int j = 0; j < n; j++) {
+            out[groups[j]]++;
+        }
+    }
+
+    /**
+     * Count the values of a column per group, skipping NaN.
+     */
+    static void count(double[] column, int[] sel, int[] groups, int n, long[] out) {
+        if (groups == null) {
+            long k = 0;
+            if (sel == null) {
+                for (int i = 0; i < n; i++) {
+                    k += column[i] == column[i] ? 1 : 0;
+                }
+            } else {
+                for (int j = 0; j < n; j++) {
+                    k += column[sel[j]] == column[sel[j]] ? 1 : 0;
+                }
+            }
+            out[0] += k;
+        } else if (sel == null) {
+            for (int i = 0; i < n; i++) {
+                out[groups[i]] += column[i] == column[i] ? 1 : 0;
+            }
+        } else {
+            for (int j = 0; j < n; j++) {
+                out[groups[j]] += column[sel[j]] == column[sel[j]] ? 1 : 0;
+            }
+        }
+    }
+
+    /**
+     * Sum a column per group, skipping NaN.
+     */
+    static void sum(double[] column, int[] sel, int[] groups, int n, double[] out) {
+        if (groups == null && sel == null) {
+            //Four independent accumulators so additions do not wait on each other.
+            double s0 = 0;
+            double s1 = 0;
+            double s2 = 0;
+            double s3 = 0;
+            int i = 0;
+            for (; i + 3 < n; i += 4) {
+                s0 += clean(column[i]);
+                s1 += clean(column[i + 1]);
+                s2 += clean(column[i + 2]);
+                s3 += clean(column[i + 3]);
+            }
+            for (; i < n; i++) {
+                s0 += clean(column[i]);
+            }
+            out[0] += s0 + s1 + s2 + s3;
+        } else if (groups == null) {
+            double s = 0;
+            for (int j = 0; j < n; j++) {
+                s += clean(column[sel[j]]);
+            }
+            out[0] += s;
+        } else if (sel == null) {
+            for (int i = 0; i < n; i++) {
+                out[groups[i]] += clean(column[i]);
+            }
+        } else {
+            for (int j = 0; j < n; j++) {
+                out[groups[j]] += clean(column[sel[j]]);
+            }
+        }
+    }
+
+    /**
+     * Minimum (max false) or maximum (max true) of a column per group. out
+     * must be filled with +Infinity or -Infinity.
+     */
+    static void extreme(double[] column, int[] sel, int[] groups, int n, boolean max, double[] out) {
+        for (int j = 0; j < n; j++) {
+            double v = column[sel == null ? j : sel[j]];
+            int g = groups == null ? 0 : groups[j];
+            if (max ? v > out[g] : v < out[g]) {
+                out[g] = v;
+            }
+        }
+    }
+
+    private static double clean(double v) {
+        return v == v ? v : 0;
+    }
+}
@@ -0,0 +1,607 @@
+package etl;
+
+import com.google.gson.Gson;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import saaf.Inspector;
+
+/**
+ * Aggregate tables of a table, kept up to date by IncrementalLoad and used by
+ * Query to answer matching aggregate queries with a lookup.
+ *
+ * A view is declared like an AggregateQuery without filters, with a name:
+ * {"name": "revenue_by_region", "groupBy": ["Region"], "aggregates": ["SUM(Total Revenue)"]}.
+ * Its rows are stored in the table saaf_view_{name}, one per group, as the
+ * partial aggregates of AggregateQuery.executePartial: sums for SUM and AVG,
+ * MIN and MAX, the group's row count and the value count of every aggregated
+ * column, so COUNT(column) and AVG skip empty values as SQL does. Group
+ * columns should be text or date columns.
+ *
+ * Loads add the rows they insert to the views and subtract the rows they
+ * replace, so maintenance costs time in proportion to the changed rows. When
+ * a replaced row held a group's MIN or MAX, that group is recomputed from the
+ * table. Each load stamps the views with its version; a view whose version is
+ * not the table's last load version is stale and not used. Views stored in
+ * an older table layout are recreated by the next load.
+ */
+public class MaterializedViews {
+
+    private static final String VIEW_TABLE = "saaf_views";
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_]+");
+    private static final Gson GSON = new Gson();
+    //The layout of the view tables, stored in each definition and bumped when it changes.
+    private static final int FORMAT = 2;
+
+    private final Connection connection;
+    private final String table;
+    private final List<View> views = new ArrayList<>();
+
+    /**
+     * Read the views declared for a table.
+     *
+     * @param connection The database connection.
+     * @param table The table.
+     * @throws SQLException If the declarations cannot be read.
+     */
+    MaterializedViews(Connection connection, String table) throws SQLException {
+        this.connection = connection;
+        this.table = table;
+        if (!IncrementalLoad.exists(connection, VIEW_TABLE)) {
+            return;
+        }
+        try (PreparedStatement select = connection.prepareStatement("SELECT name, definition, version FROM "
+                + VIEW_TABLE + " WHERE tbl = ?")) {
+            select.setString(1, table);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    views.add(new View(rs.getString(1), rs.getString(2), rs.getLong(3)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Declare views. A view that is new or whose definition changed is built
+     * from the table by apply.
+     *
+     * @param declarations View declarations, see the class description.
+     * @throws SQLException If the declarations cannot be stored.
+     * @throws IllegalArgumentException If a declaration is invalid.
+     */
+    @SuppressWarnings("unchecked")
+    void declare(List<?> declarations) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + VIEW_TABLE
+                    + " (tbl TEXT, name TEXT PRIMARY KEY, definition TEXT, version INTEGER)");
+        }
+        for (Object declaration : declarations) {
+            if (!(declaration instanceof Map)) {
+                throw new IllegalArgumentException("A view declaration must be an object.");
+            }
+            Map<String, Object> map = (Map<String, Object>) declaration;
+            String name = String.valueOf(map.get("name"));
+            if (!NAME.matcher(name).matches()) {
+                throw new IllegalArgumentException("Invalid view name " + name);
+            }
+            View view = new View(name, definition(AggregateQuery.parse(map)), -1);
+            View existing = null;
+            for (View v : views) {
+                if (v.name.equals(name)) {
+                    existing = v;
+                }
+            }
+            if (existing != null && existing.definition.equals(view.definition) && !existing.legacy) {
+                continue;
+            }
+            views.remove(existing);
+            views.add(view);
+            create(view);
+        }
+    }
+
+    /**
+     * Rebuild the views that were not maintained by the previous load, as
+     * their rows cannot be updated incrementally, and recreate the views
+     * stored in an older layout.
+     *
+     * @param version The version of the table before this load.
+     * @throws SQLException If a view table cannot be recreated.
+     */
+    void expect(long version) throws SQLException {
+        for (View view : views) {
+            if (view.legacy) {
+                create(view);
+            } else if (view.version != version) {
+                view.rebuild = true;
+            }
+        }
+    }
+
+    /**
+     * Store a view's definition and create its empty table, to be built by apply.
+     */
+    private void create(View view) throws SQLException {
+        view.rebuild = true;
+        view.legacy = false;
+        try (Statement statement = connection.createStatement();
+                PreparedStatement delete = connection.prepareStatement("DELETE FROM " + VIEW_TABLE
+                        + " WHERE name = ?");
+                PreparedStatement insert = connection.prepareStatement("INSERT INTO " + VIEW_TABLE
+                        + " (tbl, name, definition, version) VALUES (?, ?, ?, -1)")) {
+            delete.setString(1, view.name);
+            delete.executeUpdate();
+            insert.setString(1, table);
+            insert.setString(2, view.name);
+            insert.setString(3, view.definition);
+            insert.executeUpdate();
+            statement.execute("DROP TABLE IF EXISTS " + view.storage());
+            List<String> columns = new ArrayList<>();
+            for (String column : view.query.getGroupBy()) {
+                columns.add(ColumnTable.quote(column) + " TEXT");
+            }
+            for (String column : view.storedColumns()) {
+                columns.add(ColumnTable.quote(column) + " REAL");
+            }
+            statement.execute("CREATE TABLE " + view.storage() + " (" + String.join(", ", columns) + ")");
+        }
+    }
+
+    private static String definition(AggregateQuery query) {
+        Map<String, Object> definition = new LinkedHashMap<>();
+        definition.put("groupBy", query.getGroupBy());
+        definition.put("aggregates", query.getAggregateNames());
+        definition.put("format", FORMAT);
+        return GSON.toJson(definition);
+    }
+
+    /**
+     * @return Whether the table has views.
+     */
+    boolean isEmpty() {
+        return views.isEmpty();
+    }
+
+    /**
+     * Add a row to the pending changes of every view.
+     *
+     * @param row The row's values by column name.
+     * @param sign 1 for an inserted row, -1 for a replaced one.
+     */
+    void change(Map<String, String> row, int sign) {
+        for (View view : views) {
+            if (!view.rebuild) {
+                view.change(row, sign);
+            }
+        }
+    }
+
+    /**
+     * Write the pending changes to the view tables and stamp the views with
+     * the load's version. Runs in the load's transaction.
+     *
+     * loadViews:               Views of the table.
+     * loadViewsRebuilt:        Views built from the whole table.
+     * loadViewGroupsUpdated:   Group rows changed incrementally.
+     * loadViewGroupsRecomputed: Group rows recomputed from the table.
+     *
+     * @param version The load version.
+     * @param inspector Receives the statistics.
+     * @throws SQLException If a view cannot be updated.
+     */
+    void apply(long version, Inspector inspector) throws SQLException {
+        int rebuilt = 0;
+        long updated = 0;
+        long recomputed = 0;
+        for (View view : views) {
+            if (view.rebuild) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("DELETE FROM " + view.storage());
+                    statement.execute("INSERT INTO " + view.storage() + " " + view.aggregateSql(false));
+                }
+                rebuilt++;
+            } else {
+                for (Map.Entry<List<String>, double[]> delta : view.deltas.entrySet()) {
+                    if (view.update(delta.getKey(), delta.getValue())) {
+                        recomputed++;
+                    } else {
+                        updated++;
+                    }
+                }
+            }
+            view.deltas.clear();
+            view.rebuild = false;
+            try (PreparedStatement stamp = connection.prepareStatement("UPDATE " + VIEW_TABLE
+                    + " SET version = ? WHERE name = ?")) {
+                stamp.setLong(1, version);
+                stamp.setString(2, view.name);
+                stamp.executeUpdate();
+            }
+            view.version = version;
+        }
+        inspector.addAttribute("loadViews", views.size());
+        inspector.addAttribute("loadViewsRebuilt", rebuilt);
+        inspector.addAttribute("loadViewGroupsUpdated", updated);
+        inspector.addAttribute("loadViewGroupsRecomputed", recomputed);
+    }
+
+    /**
+     * Answer a query from a fresh view of the table, preferring the view with
+     * the fewest groups. The query may group by and filter on the view's
+     * group columns and use its aggregates; AVG can use a SUM of the same
+     * column and COUNT any view.
+     *
+     * queryViewServed: Whether a view answered the query.
+     * queryView:       The view that answered it.
+     * queryViewStale:  Views that matched but were not maintained by the last load.
+     *
+     * @param connection The database connection.
+     * @param table The table.
+     * @param query The query.
+     * @param inspector Receives the attributes.
+     * @return The result rows, or null if no fresh view matches.
+     * @throws SQLException If a view cannot be read.
+     */
+    public static List<Map<String, Object>> answer(Connection connection, String table, AggregateQuery query,
+            Inspector inspector) throws SQLException {
+        MaterializedViews views = new MaterializedViews(connection, table);
+        List<View> matches = new ArrayList<>();
+        for (View view : views.views) {
+            if (view.columns(query) != null) {
+                matches.add(view);
+            }
+        }
+        matches.sort(Comparator.comparingInt(view -> view.query.getGroupBy().size()));
+        List<String> stale = new ArrayList<>();
+        long version = matches.isEmpty() ? -1 : IncrementalLoad.version(connection, table);
+        List<Map<String, Object>> rows = null;
+        for (View view : matches) {
+            if (view.version != version || view.legacy) {
+                stale.add(view.name);
+            } else if (rows == null) {
+                rows = view.answer(query, connection);
+                inspector.addAttribute("queryView", view.name);
+            }
+        }
+        inspector.addAttribute("queryViewServed", rows != null);
+        if (!stale.isEmpty()) {
+            inspector.addAttribute("queryViewStale", stale);
+        }
+        return rows;
+    }
+
+    private static String normalize(String value) {
+        if (value == null) {
+            return "";
+        }
+        int day = ColumnTable.parseDate(value);
+        return day == Integer.MIN_VALUE ? value : ColumnTable.formatDate(day);
+    }
+
+    private static double number(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return value == null ? Double.NaN : ColumnTable.Builder.parseNumber(String.valueOf(value));
+    }
+
+    private static boolean matches(String value, Object condition) {
+        if (condition instanceof Map) {
+            Map<?, ?> range = (Map<?, ?>) condition;
+            return inRange(value, range.get("from"), 1) && inRange(value, range.get("to"), -1);
+        }
+        for (Object wanted : condition instanceof List ? (List<?>) condition : Collections.singletonList(condition)) {
+            if (normalize(String.valueOf(wanted)).equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean inRange(String value, Object bound, int direction) {
+        if (bound == null) {
+            return true;
+        }
+        int day = ColumnTable.parseDate(value);
+        int limit = ColumnTable.parseDate(String.valueOf(bound));
+        double compare = day != Integer.MIN_VALUE && limit != Integer.MIN_VALUE ? Integer.compare(day, limit)
+                : Double.compare(number(value), number(bound));
+        return compare * direction >= 0;
+    }
+
+    /**
+     * A declared view and its pending changes.
+     */
+    private final class View {
+        final String name;
+        final String definition;
+        final AggregateQuery query;
+        final List<String[]> aggregates;
+        //The columns whose values are counted.
+        final List<String> counted;
+        long version;
+        boolean rebuild = false;
+        //Whether the view's table has an older layout.
+        boolean legacy;
+        //Per group: row count, then per aggregate the added sum or extreme and the removed extreme, then per
+        //counted column the change in its value count.
+        final Map<List<String>, double[]> deltas = new HashMap<>();
+
+        @SuppressWarnings("unchecked")
+        View(String name, String stored, long version) {
+            this.name = name;
+            this.version = version;
+            this.query = AggregateQuery.parse(GSON.fromJson(stored, Map.class));
+            this.aggregates = query.getAggregates();
+            this.counted = query.countedColumns();
+            this.definition = definition(query);
+            this.legacy = !definition.equals(stored);
+        }
+
+        String storage() {
+            return ColumnTable.quote("saaf_view_" + name);
+        }
+
+        /**
+         * @return The names of the table's columns after the group columns.
+         */
+        List<String> storedColumns() {
+            List<String> columns = new ArrayList<>();
+            columns.add(AggregateQuery.PARTIAL_ROWS);
+            columns.addAll(query.getAggregateNames());
+            for (String column : counted) {
+                columns.add(AggregateQuery.partialCount(column));
+            }
+            return columns;
+        }
+
+        void change(Map<String, String> row, int sign) {
+            List<String> key = new ArrayList<>(query.getGroupBy().size());
+            for (String column : query.getGroupBy()) {
+                key.add(normalize(row.get(column)));
+            }
+            double[] delta = deltas.get(key);
+            if (delta == null) {
+                delta = new double[1 + 2 * aggregates.size() + counted.size()];
+                for (int a = 0; a < aggregates.size(); a++) {
+                    String function = aggregates.get(a)[0];
+                    double start = function.equals("MIN") ? Double.POSITIVE_INFINITY
+                            : function.equals("MAX") ? Double.NEGATIVE_INFINITY : 0;
+                    delta[1 + 2 * a] = start;
+                    delta[2 + 2 * a] = start;
+                }
+                deltas.put(key, delta);
+            }
+            delta[0] += sign;
+            for (int a = 0; a < aggregates.size(); a++) {
+                String[] aggregate = aggregates.get(a);
+                if (aggregate[0].equals("COUNT")) {
+                    continue;
+                }
+                double v = number(row.get(aggregate[1]));
+                int slot = sign > 0 ? 1 + 2 * a : 2 + 2 * a;
+                if (aggregate[0].equals("MIN")) {
+                    delta[slot] = v < delta[slot] ? v : delta[slot];
+                } else if (aggregate[0].equals("MAX")) {
+                    delta[slot] = v > delta[slot] ? v : delta[slot];
+                } else if (v == v) {
+                    delta[1 + 2 * a] += sign * v;
+                }
+            }
+            for (int c = 0; c < counted.size(); c++) {
+                double v = number(row.get(counted.get(c)));
+                delta[1 + 2 * aggregates.size() + c] += v == v ? sign : 0;
+            }
+        }
+
+        /**
+         * Apply one group's changes.
+         *
+         * @return Whether the group was recomputed from the table.
+         */
+        boolean update(List<String> key, double[] delta) throws SQLException {
+            String where = groupCondition();
+            double[] current = null;
+            try (PreparedStatement select = connection.prepareStatement("SELECT * FROM " + storage() + where)) {
+                bind(select, key);
+                try (ResultSet rs = select.executeQuery()) {
+                    if (rs.next()) {
+                        current = new double[1 + aggregates.size() + counted.size()];
+                        int offset = query.getGroupBy().size();
+                        for (int i = 0; i < current.length; i++) {
+                            current[i] = rs.getDouble(offset + i + 1);
+                            if (rs.wasNull()) {
+                                current[i] = Double.NaN;
+                            }
+                        }
+                    }
+                }
+            }
+            double rows = (current == null ? 0 : current[0]) + delta[0];
+            boolean recompute = false;
+            double[] next = new double[1 + aggregates.size() + counted.size()];
+            next[0] = rows;
+            for (int c = 1 + aggregates.size(); c < next.length; c++) {
+                double stored = current == null ? Double.NaN : current[c];
+                next[c] = (stored == stored ? stored : 0) + delta[aggregates.size() + c];
+            }
+            for (int a = 0; a < aggregates.size(); a++) {
+                String[] aggregate = aggregates.get(a);
+                String function = aggregate[0];
+                double stored = current == null ? Double.NaN : current[1 + a];
+                double added = delta[1 + 2 * a];
+                double removed = delta[2 + 2 * a];
+                double values = aggregate[1].equals("*") ? rows
+                        : next[1 + aggregates.size() + counted.indexOf(aggregate[1])];
+                if (function.equals("COUNT")) {
+                    next[1 + a] = values;
+                } else if (values <= 0) {
+                    //As in SQL, a group without values has no SUM, AVG, MIN or MAX.
+                    next[1 + a] = Double.NaN;
+                } else if (function.equals("MIN") || function.equals("MAX")) {
+                    boolean min = function.equals("MIN");
+                    //A replaced row may have held the extreme, which only the table can tell.
+                    if (stored == stored && (min ? removed <= stored : removed >= stored)) {
+                        recompute = true;
+                    }
+                    double best = stored == stored ? stored : min ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+                    best = min ? Math.min(best, added) : Math.max(best, added);
+                    next[1 + a] = Double.isInfinite(best) ? Double.NaN : best;
+                } else {
+                    next[1 + a] = (stored == stored ? stored : 0) + added;
+                }
+            }
+
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + storage() + where)) {
+                bind(delete, key);
+                delete.executeUpdate();
+            }
+            if (recompute) {
+                try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + storage() + " "
+                        + aggregateSql(true))) {
+                    bind(insert, key);
+                    insert.executeUpdate();
+                }
+                return true;
+            }
+            if (rows > 0) {
+                List<String> marks = new ArrayList<>(Collections.nCopies(key.size() + next.length, "?"));
+                try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + storage()
+                        + " VALUES (" + String.join(", ", marks) + ")")) {
+                    bind(insert, key);
+                    for (int i = 0; i < next.length; i++) {
+                        if (next[i] == next[i]) {
+                            insert.setDouble(key.size() + i + 1, next[i]);
+                        } else {
+                            insert.setNull(key.size() + i + 1, java.sql.Types.REAL);
+                        }
+                    }
+                    insert.executeUpdate();
+                }
+            }
+            return false;
+        }
+
+        /**
+         * SQL that aggregates the table into the view's rows, for one group
+         * if group is true.
+         */
+        String aggregateSql(boolean group) {
+            List<String> select = new ArrayList<>();
+            for (String column : query.getGroupBy()) {
+                select.add(ColumnTable.quote(column));
+            }
+            select.add("COUNT(*)");
+            for (String[] aggregate : aggregates) {
+                String function = aggregate[0].equals("AVG") ? "SUM" : aggregate[0];
+                select.add(function + "(" + (aggregate[1].equals("*") ? "*" : ColumnTable.quote(aggregate[1])) + ")");
+            }
+            for (String column : counted) {
+                select.add("COUNT(" + ColumnTable.quote(column) + ")");
+            }
+            String sql = "SELECT " + String.join(", ", select) + " FROM " + ColumnTable.quote(table);
+            if (group) {
+                sql += groupCondition();
+            }
+            if (!query.getGroupBy().isEmpty()) {
+                sql += " GROUP BY " + String.join(", ", select.subList(0, query.getGroupBy().size()));
+            }
+            return sql;
+        }
+
+        private String groupCondition() {
+            List<String> conditions = new ArrayList<>();
+            for (String column : query.getGroupBy()) {
+                conditions.add("COALESCE(" + ColumnTable.quote(column) + ", '') = ?");
+            }
+            return conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions);
+        }
+
+        private void bind(PreparedStatement statement, List<String> key) throws SQLException {
+            for (int i = 0; i < key.size(); i++) {
+                statement.setString(i + 1, key.get(i));
+            }
+        }
+
+        /**
+         * @return The view column of each query aggregate, or null if the view cannot answer the query.
+         */
+        String[] columns(AggregateQuery other) {
+            List<String> groupBy = query.getGroupBy();
+            if (!groupBy.containsAll(other.getGroupBy()) || !groupBy.containsAll(other.getWhere().keySet())) {
+                return null;
+            }
+            Set<String> available = new HashSet<>(query.getAggregateNames());
+            List<String[]> wanted = other.getAggregates();
+            String[] columns = new String[wanted.size()];
+            for (int a = 0; a < wanted.size(); a++) {
+                String[] aggregate = wanted.get(a);
+                String column = null;
+                if (aggregate[0].equals("COUNT")) {
+                    column = aggregate[1].equals("*") ? AggregateQuery.PARTIAL_ROWS
+                            : counted.contains(aggregate[1]) ? AggregateQuery.partialCount(aggregate[1]) : null;
+                } else {
+                    List<String> functions = aggregate[0].equals("SUM") || aggregate[0].equals("AVG")
+                            ? Arrays.asList("SUM", "AVG") : Collections.singletonList(aggregate[0]);
+                    for (String[] own : aggregates) {
+                        if (functions.contains(own[0]) && own[1].equals(aggregate[1]) && available.contains(own[2])) {
+                            column = own[2];
+                        }
+                    }
+                }
+                if (column == null) {
+                    return null;
+                }
+                columns[a] = column;
+            }
+            return columns;
+        }
+
+        List<Map<String, Object>> answer(AggregateQuery other, Connection connection) throws SQLException {
+            String[] columns = columns(other);
+            List<String[]> wanted = other.getAggregates();
+            List<String> stored = storedColumns();
+            List<Map<String, Object>> partial = new ArrayList<>();
+            try (Statement statement = connection.createStatement();
+                    ResultSet rs = statement.executeQuery("SELECT * FROM " + storage())) {
+                rows:
+                while (rs.next()) {
+                    Map<String, Object> row = new HashMap<>();
+                    for (int c = 0; c < query.getGroupBy().size(); c++) {
+                        row.put(query.getGroupBy().get(c), rs.getString(c + 1));
+                    }
+                    for (Map.Entry<String, Object> filter : other.getWhere().entrySet()) {
+                        if (!matches((String) row.get(filter.getKey()), filter.getValue())) {
+                            continue rows;
+                        }
+                    }
+                    int offset = query.getGroupBy().size() + 1;
+                    row.put(AggregateQuery.PARTIAL_ROWS, rs.getDouble(offset));
+                    for (int a = 0; a < wanted.size(); a++) {
+                        double value = rs.getDouble(offset + stored.indexOf(columns[a]));
+                        row.put(wanted.get(a)[2], rs.wasNull() ? null : value);
+                    }
+                    for (String column : other.countedColumns()) {
+                        row.put(AggregateQuery.partialCount(column),
+                                rs.getDouble(offset + stored.indexOf(AggregateQuery.partialCount(column))));
+                    }
+                    partial.add(row);
+                }
+            }
+            return other.merge(Collections.singletonList(partial));
+        }
+    }
+}
@@ -0,0 +1,501 @@
+package etl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import saaf.Inspector;
+
+/**
+ * Memory bounded hash index from 64-bit key hashes to long values, for
+ * deduplicating records or joining them to a lookup table without a HashMap
+ * of millions of keys on the heap.
+ *
+ * Keys are split into 16 partitions, each an open addressing table with
+ * linear probing in a direct ByteBuffer (16 bytes per slot). When growing a
+ * table would exceed the memory budget, the largest partition is written to
+ * a file in the spill directory and dropped from memory. putIfAbsent then
+ * returns SPILLED for its keys and the caller passes the record to spill().
+ * processSpilled() reloads each spilled partition on its own, splitting it
+ * again on the next hash bits if it still does not fit, and hands the
+ * spilled records back in the same way, like a hybrid hash join.
+ *
+ * <pre>
+ * if (index.putIfAbsent(key, row) == OffHeapHashIndex.SPILLED) {
+ *     index.spill(key, record);
+ * }
+ * </pre>
+ *
+ * Keys are assumed to be good 64-bit hashes, see hash(); two keys with the
+ * same hash are treated as the same key. Not thread safe.
+ */
+public class OffHeapHashIndex implements AutoCloseable {
+
+    public static final int ADDED = 1;
+    public static final int PRESENT = 0;
+    public static final int SPILLED = -1;
+    public static final long NOT_FOUND = Long.MIN_VALUE;
+
+    private static final int SLOT = 16;
+    private static final int PARTITION_BITS = 4;
+    private static final int PARTITIONS = 1 << PARTITION_BITS;
+    //The last level uses the lowest hash bits and keeps growing past the budget.
+    private static final int MAX_LEVEL = 64 / PARTITION_BITS - 1;
+    private static final int INITIAL_SLOTS = 1024;
+    private static final int MAX_SLOTS = 1 << 26;
+    private static final double LOAD_FACTOR = 0.7;
+
+    /**
+     * Receives spilled records from processSpilled.
+     */
+    public interface SpillHandler {
+        /**
+         * @param index The index holding the record's partition. Call
+         * putIfAbsent, get and spill on it as in the first pass.
+         * @param key The key passed to spill.
+         * @param record The record passed to spill.
+         */
+        void accept(OffHeapHashIndex index, long key, byte[] record) throws IOException;
+    }
+
+    private final long budget;
+    private final File directory;
+    private final int level;
+    private final Stats stats;
+    private final Partition[] partitions = new Partition[PARTITIONS];
+    private long used = 0;
+
+    /**
+     * @param budget The memory budget in bytes for the hash tables.
+     * @param directory The directory spilled partitions are written to.
+     */
+    public OffHeapHashIndex(long budget, File directory) {
+        this(budget, directory, 0, new Stats());
+    }
+
+    private OffHeapHashIndex(long budget, File directory, int level, Stats stats) {
+        this.budget = budget;
+        this.directory = directory;
+        this.level = level;
+        this.stats = stats;
+        for (int i = 0; i < PARTITIONS; i++) {
+            partitions[i] = new Partition();
+        }
+    }
+
+    /**
+     * Hash key columns into a 64-bit key with FNV-1a and a murmur3 finalizer.
+     *
+     * @param columns The key column values.
+     * @return The key.
+     */
+    public static long hash(CharSequence... columns) {
+        long h = 0xcbf29ce484222325L;
+        for (CharSequence column : columns) {
+            for (int i = 0; i < column.length(); i++) {
+                h = (h ^ column.charAt(i)) * 0x100000001b3L;
+            }
+            //Separate columns so ("ab", "c") and ("a", "bc") differ.
+            h = (h ^ 0x1f) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Add a key unless it is already present.
+     *
+     * @param key The key.
+     * @param value The value to store with a new key.
+     * @return ADDED, PRESENT, or SPILLED if the key's partition is on disk
+     * and the record must be passed to spill().
+     */
+    public int putIfAbsent(long key, long value) {
+        int result = insert(key, value);
+        if (result == ADDED) {
+            stats.keys++;
+        }
+        return result;
+    }
+
+    /**
+     * Look up a key.
+     *
+     * @param key The key.
+     * @return The key's value, or NOT_FOUND.
+     * @throws IllegalStateException If the key's partition is spilled.
+     */
+    public long get(long key) {
+        long mixed = mix(key);
+        Partition p = partitions[partitionOf(mixed)];
+        if (p.table == null) {
+            if (p.keys != null) {
+                throw new IllegalStateException("Partition of key " + key + " is spilled");
+            }
+            return NOT_FOUND;
+        }
+        if (key == 0) {
+            return p.hasZero ? p.zeroValue : NOT_FOUND;
+        }
+        int slot = (int) mixed & p.mask;
+        int probes = 1;
+        while (true) {
+            long k = p.table.getLong(slot * SLOT);
+            if (k == key || k == 0) {
+                stats.probe(probes);
+                return k == 0 ? NOT_FOUND : p.table.getLong(slot * SLOT + 8);
+            }
+            slot = (slot + 1) & p.mask;
+            probes++;
+        }
+    }
+
+    /**
+     * @param key The key.
+     * @return Whether the key's partition has been written to disk.
+     */
+    public boolean isSpilled(long key) {
+        return partitions[partitionOf(mix(key))].keys != null;
+    }
+
+    /**
+     * Defer a record whose key is in a spilled partition until processSpilled.
+     *
+     * @param key The key.
+     * @param record The record to hand back.
+     */
+    public void spill(long key, byte[] record) {
+        Partition p = partitions[partitionOf(mix(key))];
+        if (p.keys == null) {
+            throw new IllegalStateException("Partition of key " + key + " is not spilled");
+        }
+        try {
+            if (p.recordsOut == null) {
+                p.records = File.createTempFile("index-records-", ".bin", directory);
+                p.recordsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(p.records), 65536));
+            }
+            p.recordsOut.writeLong(key);
+            p.recordsOut.writeInt(record.length);
+            p.recordsOut.write(record);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        stats.spilledRecords++;
+        stats.spilledBytes += 12 + record.length;
+    }
+
+    /**
+     * Process the records passed to spill(), one spilled partition at a time.
+     * This ends the first pass: partitions still in memory are released so
+     * each spilled partition can use the whole budget.
+     *
+     * @param handler Receives each spilled record.
+     * @throws IOException If a spill file cannot be read.
+     */
+    public void processSpilled(SpillHandler handler) throws IOException {
+        for (Partition p : partitions) {
+            release(p);
+        }
+        for (Partition p : partitions) {
+            if (p.keys == null) {
+                continue;
+            }
+            p.keysOut.close();
+            if (p.recordsOut != null) {
+                p.recordsOut.close();
+            }
+            try (OffHeapHashIndex child = new OffHeapHashIndex(budget, directory, level + 1, stats)) {
+                try (DataInputStream in = open(p.keys)) {
+                    while (true) {
+                        long key;
+                        try {
+                            key = in.readLong();
+                        } catch (EOFException eofe) {
+                            break;
+                        }
+                        long value = in.readLong();
+                        if (child.insert(key, value) == SPILLED) {
+                            child.partitions[child.partitionOf(mix(key))].keysOut.writeLong(key);
+                            child.partitions[child.partitionOf(mix(key))].keysOut.writeLong(value);
+                        }
+                    }
+                }
+                if (p.records != null) {
+                    try (DataInputStream in = open(p.records)) {
+                        while (true) {
+                            long key;
+                            try {
+                                key = in.readLong();
+                            } catch (EOFException eofe) {
+                                break;
+                            }
+                            byte[] record = new byte[in.readInt()];
+                            in.readFully(record);
+                            if (child.isSpilled(key)) {
+                                child.spill(key, record);
+                            } else {
+                                handler.accept(child, key, record);
+                            }
+                        }
+                    }
+                }
+                child.processSpilled(handler);
+            }
+            delete(p);
+        }
+    }
+
+    /**
+     * Add the index statistics to the Inspector's output.
+     *
+     * {prefix}Keys:              Distinct keys added.
+     * {prefix}IndexBytes:        Peak off-heap memory used by the tables.
+     * {prefix}ProbeMean:         Mean number of slots probed per operation.
+     * {prefix}ProbeMax:          Longest probe sequence.
+     * {prefix}SpilledPartitions: Partitions written to disk, at any level.
+     * {prefix}SpilledKeys:       Keys written to disk with their partition.
+     * {prefix}SpilledRecords:    Records deferred with spill().
+     * {prefix}SpilledBytes:      Bytes of deferred records written to disk.
+     *
+     * @param inspector The Inspector of the invocation.
+     * @param prefix The attribute name prefix, e.g. dedup.
+     */
+    public void report(Inspector inspector, String prefix) {
+        inspector.addAttribute(prefix + "Keys", stats.keys);
+        inspector.addAttribute(prefix + "IndexBytes", stats.peakBytes);
+        inspector.addAttribute(prefix + "ProbeMean", stats.operations == 0 ? 0.0
+                : (double) stats.probes / stats.operations);
+        inspector.addAttribute(prefix + "ProbeMax", stats.maxProbe);
+        inspector.addAttribute(prefix + "SpilledPartitions", stats.spilledPartitions);
+        inspector.addAttribute(prefix + "SpilledKeys", stats.spilledKeys);
+        inspector.addAttribute(prefix + "SpilledRecords", stats.spilledRecords);
+        inspector.addAttribute(prefix + "SpilledBytes", stats.spilledBytes);
+    }
+
+    /**
+     * Release the tables and delete all spill files.
+     */
+    @Override
+    public void close() {
+        for (Partition p : partitions) {
+            release(p);
+            try {
+                if (p.keysOut != null) {
+                    p.keysOut.close();
+                }
+                if (p.recordsOut != null) {
+                    p.recordsOut.close();
+                }
+            } catch (IOException ioe) {
+                //The files are deleted either way.
+            }
+            delete(p);
+        }
+    }
+
+    private int insert(long key, long value) {
+        long mixed = mix(key);
+        Partition p = partitions[partitionOf(mixed)];
+        if (p.keys != null) {
+            return SPILLED;
+        }
+        if (key == 0) {
+            if (p.hasZero) {
+                return PRESENT;
+            }
+            p.hasZero = true;
+            p.zeroValue = value;
+            return ADDED;
+        }
+        if ((p.table == null || p.size >= p.threshold) && !grow(p)) {
+            return SPILLED;
+        }
+        int slot = (int) mixed & p.mask;
+        int probes = 1;
+        while (true) {
+            long k = p.table.getLong(slot * SLOT);
+            if (k == 0) {
+                p.table.putLong(slot * SLOT, key);
+                p.table.putLong(slot * SLOT + 8, value);
+                p.size++;
+                stats.probe(probes);
+                return ADDED;
+            } else if (k == key) {
+                stats.probe(probes);
+                return PRESENT;
+            }
+            slot = (slot + 1) & p.mask;
+            probes++;
+        }
+    }
+
+    /**
+     * Double a partition's table, spilling the largest partitions while the
+     * new table would not fit in the budget.
+     *
+     * @return false if the partition itself was spilled.
+     */
+    private boolean grow(Partition p) {
+        if (p.table != null && p.mask + 1 >= MAX_SLOTS) {
+            if (level == MAX_LEVEL) {
+                throw new IllegalStateException("Hash index partition is full");
+            }
+            spillPartition(p);
+            return false;
+        }
+        int slots = p.table == null ? INITIAL_SLOTS : (p.mask + 1) * 2;
+        long bytes = (long) slots * SLOT;
+        while (used + bytes > budget && level < MAX_LEVEL) {
+            Partition victim = null;
+            for (Partition candidate : partitions) {
+                if (candidate.table != null && (victim == null || candidate.size > victim.size)) {
+                    victim = candidate;
+                }
+            }
+            if (victim == null || victim == p) {
+                spillPartition(p);
+                return false;
+            }
+            spillPartition(victim);
+        }
+        ByteBuffer old = p.table;
+        int oldMask = p.mask;
+        p.table = ByteBuffer.allocateDirect(slots * SLOT).order(ByteOrder.nativeOrder());
+        p.mask = slots - 1;
+        p.threshold = (int) (slots * LOAD_FACTOR);
+        allocate(bytes);
+        if (old != null) {
+            for (int i = 0; i <= oldMask; i++) {
+                long k = old.getLong(i * SLOT);
+                if (k != 0) {
+                    int slot = (int) mix(k) & p.mask;
+                    while (p.table.getLong(slot * SLOT) != 0) {
+                        slot = (slot + 1) & p.mask;
+                    }
+                    p.table.putLong(slot * SLOT, k);
+                    p.table.putLong(slot * SLOT + 8, old.getLong(i * SLOT + 8));
+                }
+            }
+            allocate(-(long) old.capacity());
+        }
+        return true;
+    }
+
+    /**
+     * Write a partition's keys to disk and drop its table.
+     */
+    private void spillPartition(Partition p) {
+        try {
+            p.keys = File.createTempFile("index-keys-", ".bin", directory);
+            p.keysOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(p.keys), 65536));
+            if (p.hasZero) {
+                p.keysOut.writeLong(0);
+                p.keysOut.writeLong(p.zeroValue);
+            }
+            if (p.table != null) {
+                for (int i = 0; i <= p.mask; i++) {
+                    long k = p.table.getLong(i * SLOT);
+                    if (k != 0) {
+                        p.keysOut.writeLong(k);
+                        p.keysOut.writeLong(p.table.getLong(i * SLOT + 8));
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        stats.spilledPartitions++;
+        stats.spilledKeys += p.size + (p.hasZero ? 1 : 0);
+        release(p);
+    }
+
+    private void release(Partition p) {
+        if (p.table != null) {
+            allocate(-(long) p.table.capacity());
+            p.table = null;
+        }
+        p.size = 0;
+        p.hasZero = false;
+    }
+
+    private void allocate(long bytes) {
+        used += bytes;
+        stats.currentBytes += bytes;
+        stats.peakBytes = Math.max(stats.peakBytes, stats.currentBytes);
+    }
+
+    private static void delete(Partition p) {
+        if (p.keys != null && !p.keys.delete()) {
+            p.keys.deleteOnExit();
+        }
+        if (p.records != null && !p.records.delete()) {
+            p.records.deleteOnExit();
+        }
+        p.keys = null;
+        p.keysOut = null;
+        p.records = null;
+        p.recordsOut = null;
+    }
+
+    private static DataInputStream open(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+    }
+
+    private int partitionOf(long mixed) {
+        return (int) (mixed >>> (64 - PARTITION_BITS * (level + 1))) & (PARTITIONS - 1);
+    }
+
+    /**
+     * murmur3 fmix64, so sequential ids spread over slots and partitions.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static class Partition {
+        private ByteBuffer table;
+        private int mask;
+        private int size;
+        private int threshold;
+        private boolean hasZero;
+        private long zeroValue;
+        private File keys;
+        private DataOutputStream keysOut;
+        private File records;
+        private DataOutputStream recordsOut;
+    }
+
+    /**
+     * Counters shared by an index and the indexes that process its spilled partitions.
+     */
+    private static class Stats {
+        private long keys;
+        private long operations;
+        private long probes;
+        private long maxProbe;
+        private long currentBytes;
+        private long peakBytes;
+        private long spilledPartitions;
+        private long spilledKeys;
+        private long spilledRecords;
+        private long spilledBytes;
+
+        private void probe(int length) {
+            operations++;
+            probes += length;
+            maxProbe = Math.max(maxProbe, length);
+        }
+    }
+}
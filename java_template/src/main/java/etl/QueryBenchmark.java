@@ -0,0 +1,146 @@
+package etl;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compare the columnar query path with SQL.
+ *
+ * Usage: java etl.QueryBenchmark {ROWS}... [--jdbc {URL}]
+ *
+ * For each row count a synthetic sales table is generated and the same
+ * query, revenue, units and order count by region for one year of orders, is
+ * timed on the columnar copy. With --jdbc the table is also written to the
+ * database, which needs its JDBC driver on the class path, and the query is
+ * timed as SQL. Run with a large heap for 50M rows, e.g. -Xmx4g.
+ */
+public class QueryBenchmark {
+
+    static final String[] REGIONS = {"Asia", "Australia and Oceania", "Central America and the Caribbean",
+        "Europe", "Middle East and North Africa", "North America", "Sub-Saharan Africa"};
+    static final String[] ITEMS = {"Baby Food", "Beverages", "Cereal", "Clothes", "Cosmetics", "Fruits",
+        "Household", "Meat", "Office Supplies", "Personal Care", "Snacks", "Vegetables"};
+    private static final List<String> COLUMNS = Arrays.asList("Region", "Item Type", "Order Date", "Units Sold",
+            "Total Revenue");
+
+    public static void main(String[] args) throws SQLException {
+        List<Integer> sizes = new ArrayList<>();
+        String jdbc = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--jdbc") && i + 1 < args.length) {
+                jdbc = args[++i];
+            } else {
+                sizes.add((int) Double.parseDouble(args[i]));
+            }
+        }
+        if (sizes.isEmpty()) {
+            sizes.add(1000000);
+        }
+
+        Map<String, Object> request = new HashMap<>();
+        request.put("groupBy", "Region");
+        request.put("aggregates", Arrays.asList("SUM(Total Revenue)", "AVG(Units Sold)", "COUNT(*)"));
+        Map<String, Object> range = new HashMap<>();
+        range.put("from", "2015-01-01");
+        range.put("to", "2015-12-31");
+        Map<String, Object> where = new HashMap<>();
+        where.put("Order Date", range);
+        request.put("where", where);
+        AggregateQuery query = AggregateQuery.parse(request);
+
+        System.out.println("Rows        Engine      ms/query   Mrows/s");
+        for (int rows : sizes) {
+            ColumnTable table = generate(rows);
+            report(rows, "columnar", time(() -> query.execute(table)));
+            if (jdbc != null) {
+                try (Connection connection = DriverManager.getConnection(jdbc)) {
+                    write(connection, table);
+                    report(rows, "sql", time(() -> query.execute(connection, "benchmark")));
+                }
+            }
+        }
+    }
+
+    private static ColumnTable generate(int rows) {
+        Random random = new Random(42);
+        ColumnTable.Type[] types = {ColumnTable.Type.STRING, ColumnTable.Type.STRING, ColumnTable.Type.DATE,
+            ColumnTable.Type.NUMBER, ColumnTable.Type.NUMBER};
+        ColumnTable.Builder builder = new ColumnTable.Builder(COLUMNS)
+                .withTypes(types, new String[][]{REGIONS, ITEMS, null, null, null}, rows);
+        int firstDay = ColumnTable.parseDate("2010-01-01");
+        double[] numbers = new double[types.length];
+        int[] ints = new int[types.length];
+        for (int i = 0; i < rows; i++) {
+            ints[0] = random.nextInt(REGIONS.length);
+            ints[1] = random.nextInt(ITEMS.length);
+            ints[2] = firstDay + random.nextInt(8 * 365);
+            numbers[3] = 1 + random.nextInt(10000);
+            numbers[4] = numbers[3] * (5 + random.nextInt(600));
+            builder.addTypedRow(numbers, ints);
+        }
+        return builder.build();
+    }
+
+    private static void write(Connection connection, ColumnTable table) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS benchmark");
+            statement.execute("CREATE TABLE benchmark (\"Region\" TEXT, \"Item Type\" TEXT, \"Order Date\" TEXT, "
+                    + "\"Units Sold\" REAL, \"Total Revenue\" REAL)");
+        }
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO benchmark VALUES (?, ?, ?, ?, ?)")) {
+            ColumnTable.Column region = table.column("Region");
+            ColumnTable.Column item = table.column("Item Type");
+            int[] dates = table.column("Order Date").codes;
+            double[] units = table.column("Units Sold").values;
+            double[] revenue = table.column("Total Revenue").values;
+            for (int i = 0; i < table.getRows(); i++) {
+                insert.setString(1, region.dictionary[region.codes[i]]);
+                insert.setString(2, item.dictionary[item.codes[i]]);
+                insert.setString(3, ColumnTable.formatDate(dates[i]));
+                insert.setDouble(4, units[i]);
+                insert.setDouble(5, revenue[i]);
+                insert.addBatch();
+                if (i % 10000 == 9999) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static double time(Run run) throws SQLException {
+        //Warm up, then take the best of five runs.
+        for (int i = 0; i < 3; i++) {
+            run.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            run.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1000000.0;
+    }
+
+    private static void report(int rows, String engine, double ms) {
+        System.out.println(String.format("%-11d %-10s %9.2f %9.1f", rows, engine, ms, rows / ms / 1000));
+    }
+
+    private interface Run {
+        void run() throws SQLException;
+    }
+}
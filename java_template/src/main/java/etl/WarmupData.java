@@ -0,0 +1,123 @@
+package etl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import saaf.Inspector;
+
+/**
+ * Synthetic requests for the JIT warm-up of the ETL handlers, see
+ * saaf.Warmup. They run the handlers' real code paths on a small generated
+ * sales file and a scratch SQLite database in /tmp/saaf-warmup, so the
+ * warm-up never touches the function's own data.
+ */
+public final class WarmupData {
+
+    private static final File DIRECTORY = new File("/tmp/saaf-warmup");
+    private static final File CSV = new File(DIRECTORY, "sales.csv");
+    private static final String DATABASE = "jdbc:sqlite:" + new File(DIRECTORY, "sales.db").getPath();
+    private static final int ROWS = 1000;
+
+    private static boolean written = false;
+    private static boolean loaded = false;
+
+    private WarmupData() {}
+
+    /**
+     * @return A request that deduplicates the generated file.
+     */
+    public static HashMap<String, Object> transform() {
+        HashMap<String, Object> request = new HashMap<>();
+        request.put("input", csv());
+        request.put("output", new File(DIRECTORY, "sales.transformed.csv").getPath());
+        return request;
+    }
+
+    /**
+     * @return A request that upserts every row of the generated file into the scratch database.
+     */
+    public static HashMap<String, Object> load() {
+        HashMap<String, Object> request = new HashMap<>();
+        request.put("input", csv());
+        request.put("database", DATABASE);
+        request.put("full", true);
+        return request;
+    }
+
+    /**
+     * Load the scratch database once and build an aggregate query over it.
+     *
+     * @return A request for a filtered group-by query on the columnar engine.
+     */
+    public static HashMap<String, Object> query() {
+        synchronized (WarmupData.class) {
+            if (!loaded) {
+                try (Connection connection = DriverManager.getConnection(DATABASE)) {
+                    new IncrementalLoad(connection, "sales", Collections.singletonList("Order ID"), "Order Date",
+                            ROWS).load(csv(), false, true, Inspector.forItem());
+                    loaded = true;
+                } catch (IOException | SQLException e) {
+                    //The warm-up queries then report the missing table as their error.
+                }
+            }
+        }
+        HashMap<String, Object> range = new HashMap<>();
+        range.put("from", "2012-01-01");
+        range.put("to", "2015-12-31");
+        HashMap<String, Object> where = new HashMap<>();
+        where.put("Order Date", range);
+        HashMap<String, Object> request = new HashMap<>();
+        request.put("database", DATABASE);
+        request.put("groupBy", "Region");
+        request.put("aggregates", Arrays.asList("SUM(Total Revenue)", "AVG(Units Sold)", "MAX(Unit Price)",
+                "COUNT(*)"));
+        request.put("where", where);
+        request.put("views", false);
+        return request;
+    }
+
+    /**
+     * Write the generated sales file once.
+     *
+     * @return Its path.
+     */
+    private static synchronized String csv() {
+        if (!written) {
+            if (!DIRECTORY.isDirectory() && !DIRECTORY.mkdirs()) {
+                throw new UncheckedIOException(new IOException("Could not create " + DIRECTORY));
+            }
+            Random random = new Random(42);
+            try (Writer writer = Files.newBufferedWriter(CSV.toPath(), StandardCharsets.UTF_8)) {
+                writer.write("Region,Country,Item Type,Sales Channel,Order Priority,Order Date,Order ID,Ship Date,"
+                        + "Units Sold,Unit Price,Unit Cost,Total Revenue,Total Cost,Total Profit\n");
+                for (int i = 0; i < ROWS; i++) {
+                    int units = random.nextInt(10000);
+                    double price = 1 + random.nextInt(60000) / 100.0;
+                    double cost = price * 0.7;
+                    String date = (1 + random.nextInt(12)) + "/" + (1 + random.nextInt(28)) + "/"
+                            + (2010 + random.nextInt(8));
+                    String region = QueryBenchmark.REGIONS[random.nextInt(QueryBenchmark.REGIONS.length)];
+                    String item = QueryBenchmark.ITEMS[random.nextInt(QueryBenchmark.ITEMS.length)];
+                    writer.write(region + ",Country" + random.nextInt(50) + "," + item + ","
+                            + (random.nextBoolean() ? "Online" : "Offline") + ",M," + date + "," + (100000 + i)
+                            + "," + date + "," + units + "," + price + "," + cost + "," + units * price + ","
+                            + units * cost + "," + units * (price - cost) + "\n");
+                }
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+            written = true;
+        }
+        return CSV.getPath();
+    }
+}
@@ -1,41 +1,26 @@
 package ibm;
+import adapter.Handler;
+import adapter.HelloHandler;
+import adapter.IbmAdapter;
 import com.google.gson.*;
-import saaf.Inspector;
-import java.util.HashMap;
 
 /**
+ * The function itself is adapter.HelloHandler, shared by every platform.
+ *
  * @author Robert Cordingly
  */
 public class Hello {
-   
+
+    private static final Handler HANDLER = new HelloHandler();
+
     /**
      * IBM Cloud Functions default handler.
-     * 
+     *
      * @param args JsonObject of input Json.
      * @return JsonObject of output.
      */
     public static JsonObject main(JsonObject args) {
-        //Collect data
-        Inspector inspector = new Inspector();
-        inspector.inspectAll();
-        
-        //Add custom message and finish the function
-        String name = "World";
-        JsonPrimitive input = args.getAsJsonPrimitive("name");
-        if (input != null) {
-            name = input.getAsString();
-        }
-        inspector.addAttribute("message", "Hello " + name + "!");
-        
-        //Calculate CPU deltas.
-        inspector.inspectAllDeltas();
-        
-        //Convert Inspector Hashmap to JsonObject
-        JsonObject output = new JsonObject();
-        HashMap<String, Object> results = inspector.finish();
-        results.keySet().forEach((s) -> {
-            output.addProperty(s, String.valueOf(results.get(s)));
-        });
-        return output;
+        //Collect data, run the handler, calculate CPU deltas and convert the Inspector output to a JsonObject.
+        return IbmAdapter.invoke(HANDLER, args);
     }
 }
@@ -2,18 +2,23 @@ package lambda;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
-import saaf.Inspector;
-import saaf.Response;
+import adapter.Handler;
+import adapter.HelloHandler;
 import java.util.HashMap;
 
 /**
  * uwt.lambda_test::handleRequest
  *
+ * The function itself is adapter.HelloHandler, shared by every platform.
+ *
  * @author Wes Lloyd
  * @author Robert Cordingly
  */
 public class Hello implements RequestHandler<HashMap<String, Object>, HashMap<String, Object>> {
 
+    //Opt-in JIT warm-up during the init phase, enabled by SAAF_WARMUP.
+    private static final Handler HANDLER = Handler.warmedUp(new HelloHandler());
+
     /**
      * Lambda Function Handler
      * 
@@ -23,27 +28,7 @@ public class Hello implements RequestHandler<HashMap<String, Object>, HashMap<St
      */
     public HashMap<String, Object> handleRequest(HashMap<String, Object> request, Context context) {
         
-        //Collect initial data.
-        Inspector inspector = new Inspector();
-        inspector.inspectAll();
-        
-        //****************START FUNCTION IMPLEMENTATION*************************
-        
-        //Add custom key/value attribute to SAAF's output. (OPTIONAL)
-        inspector.addAttribute("message", "Hello " + request.get("name")
-                + "! This is a custom attribute added as output from SAAF!");
-        
-        //Create and populate a separate response object for function output. (OPTIONAL)
-        Response response = new Response();
-        response.setValue("Hello " + request.get("name")
-                + "! This is from a response object!");
-        
-        inspector.consumeResponse(response);
-        
-        //****************END FUNCTION IMPLEMENTATION***************************
-                
-        //Collect final information such as total runtime and cpu deltas.
-        inspector.inspectAllDeltas();
-        return inspector.finish();
+        //Collect initial data, run the handler and collect final information.
+        return HANDLER.invoke(request);
     }
 }
@@ -28,6 +28,7 @@ public class HelloMain implements RequestHandler<HashMap<String, Object>, HashMa
         
         //Collect inital data.
         Inspector inspector = new Inspector();
+        inspector.configure(request);
         inspector.inspectAll();
         
         //****************START FUNCTION IMPLEMENTATION*************************
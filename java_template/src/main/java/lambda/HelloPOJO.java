@@ -2,18 +2,22 @@ package lambda;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
-import saaf.Inspector;
-import saaf.Response;
+import adapter.Handler;
+import adapter.HelloHandler;
 import java.util.HashMap;
 
 /**
  * uwt.lambda_test::handleRequest
  *
+ * The function itself is adapter.HelloHandler, shared by every platform.
+ *
  * @author Wes Lloyd
  * @author Robert Cordingly
  */
 public class HelloPOJO implements RequestHandler<Request, HashMap<String, Object>> {
 
+    private static final Handler HANDLER = new HelloHandler();
+
     /**
      * Lambda Function Handler
      * 
@@ -23,27 +27,9 @@ public class HelloPOJO implements RequestHandler<Request, HashMap<String, Object
      */
     public HashMap<String, Object> handleRequest(Request request, Context context) {
         
-        //Collect inital data.
-        Inspector inspector = new Inspector();
-        inspector.inspectAll();
-        
-        //****************START FUNCTION IMPLEMENTATION*************************
-        //Add custom key/value attribute to SAAF's output. (OPTIONAL)
-        inspector.addAttribute("message", "Hello " + request.getName() 
-                + "! This is an attributed added to the Inspector!");
-        
-        
-        //Create and populate a separate response object for function output. (OPTIONAL)
-        Response response = new Response();
-        response.setValue("Hello " + request.getNameALLCAPS()
-                + "! This is from a response object!");
-        
-        inspector.consumeResponse(response);
-        
-        //****************END FUNCTION IMPLEMENTATION***************************
-        
-        //Collect final information such as total runtime and cpu deltas.
-        inspector.inspectAllDeltas();
-        return inspector.finish();
+        //Collect inital data, run the handler and collect final information.
+        HashMap<String, Object> attributes = new HashMap<>();
+        attributes.put("name", request.getName());
+        return HANDLER.invoke(attributes);
     }
 }
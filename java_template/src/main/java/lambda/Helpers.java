@@ -39,8 +39,9 @@ public class Helpers {
         meta.setContentLength(bytes.length); 
         meta.setContentType("application/json");
         
-        // Create new file on S3
-        AmazonS3 s3Client = AmazonS3ClientBuilder.standard().build(); s3Client.putObject(bucketName, "run " + uuid + ".json", is, meta);
+        // Create new file on S3, reusing the client across warm invocations.
+        AmazonS3 s3Client = inspector.resource("s3", AmazonS3ClientBuilder.standard()::build);
+        s3Client.putObject(bucketName, "run " + uuid + ".json", is, meta);
         */
     }
 }
\ No newline at end of file
@@ -1,4 +1,55 @@
-public class Load implements RequestHandler<HashMap<String, Object>, HashMap<String, Object>> {
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import adapter.Handler;
+import etl.BlockStore;
+import etl.IncrementalLoad;
+import etl.WarmupData;
+import saaf.Inspector;
+import saaf.Warmup;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Load stage: load a transformed CSV file into the sales table incrementally.
+ *
+ * Request attributes:
+ * input:      Path of the CSV file, with a header row.
+ * database:   JDBC URL of the database, jdbc:sqlite:/tmp/sales.db by default.
+ * table:      The table name, sales by default.
+ * keys:       Comma separated key column names rows are upserted by, "Order ID" by default.
+ * watermark:  The watermark column, "Order Date" by default.
+ * chunkRows:  The mean rows per hashed chunk, 10000 by default.
+ * appendOnly: Skip rows at or below the stored watermark without hashing them.
+ * full:       Ignore the stored chunk hashes and upsert every row.
+ * views:      Materialized views to create or keep, see MaterializedViews.
+ * store:      Also update this BlockStore directory after loading. Only the
+ *             partitions holding changed rows are rewritten, unless the store
+ *             is new, has other settings or missed a load.
+ * partitionBy: The store's partition column, "Region" by default.
+ * sortBy:     The column the store's partitions are sorted by, "Order Date" by default.
+ * blockRows:  The rows per store block, 65536 by default.
+ *
+ * Only new or changed chunks of the input are written, see IncrementalLoad,
+ * and the table's materialized views are updated with the changed rows.
+ *
+ * Load is also an adapter.Handler, so a request with a "batch" array loads
+ * every file in it with one round of data collection, see adapter.Batch.
+ * Loads that share a database connection run one at a time.
+ */
+public class Load implements RequestHandler<HashMap<String, Object>, HashMap<String, Object>>, Handler {
+
+    static {
+        //Opt-in JIT warm-up during the init phase, enabled by SAAF_WARMUP.
+        Warmup.run(() -> new Load().handleRequest(new Load().warmupPayload(), null));
+    }
 
     /**
      * Lambda Function Handler
@@ -9,27 +60,66 @@ public class Load implements RequestHandler<HashMap<String, Object>, HashMap<Str
      */
     public HashMap<String, Object> handleRequest(HashMap<String, Object> request, Context context) {
         
-        //Collect initial data.
-        Inspector inspector = new Inspector();
-        inspector.inspectAll();
+        //Collect initial data, run handle() or a batch of it and collect final information.
+        return invoke(request);
+    }
+
+    /**
+     * @return SAAF_WARMUP_PAYLOAD, or a request loading a generated file into a scratch database.
+     */
+    @Override
+    public HashMap<String, Object> warmupPayload() {
+        return Warmup.payload(WarmupData.load());
+    }
+
+    /**
+     * Function implementation, called between inspectAll and inspectAllDeltas.
+     *
+     * @param request Map containing request JSON attributes.
+     * @param inspector The Inspector of this invocation or batch item.
+     */
+    @Override
+    public void handle(Map<String, Object> request, Inspector inspector) {
         
         //****************START FUNCTION IMPLEMENTATION*************************
         
-        //Add custom key/value attribute to SAAF's output. (OPTIONAL)
-        inspector.addAttribute("message", "Hello " + request.get("name")
-                + "! This is a custom attribute added as output from SAAF!");
-        
-        //Create and populate a separate response object for function output. (OPTIONAL)
-        Response response = new Response();
-        response.setValue("Hello " + request.get("name")
-                + "! This is from a response object!");
-        
-        inspector.consumeResponse(response);
+        Object input = request.get("input");
+        if (input == null) {
+            inspector.addAttribute("error", "No input file given.");
+        } else {
+            String database = String.valueOf(request.getOrDefault("database", "jdbc:sqlite:/tmp/sales.db"));
+            String table = String.valueOf(request.getOrDefault("table", "sales"));
+            List<String> keys = new ArrayList<>();
+            for (String key : String.valueOf(request.getOrDefault("keys", "Order ID")).split(",")) {
+                keys.add(key.trim());
+            }
+            String watermark = String.valueOf(request.getOrDefault("watermark", "Order Date"));
+            try {
+                int chunkRows = (int) Double.parseDouble(String.valueOf(request.getOrDefault("chunkRows", 10000)));
+                Connection connection = inspector.resource("db:" + database, () -> DriverManager.getConnection(database));
+                //Batch items run in parallel but each load is one transaction on the shared connection.
+                synchronized (connection) {
+                    long start = System.nanoTime();
+                    Object views = request.get("views");
+                    String partitionBy = String.valueOf(request.getOrDefault("partitionBy", "Region"));
+                    IncrementalLoad load = new IncrementalLoad(connection, table, keys, watermark, chunkRows)
+                            .withViews(views instanceof List ? (List<?>) views : null)
+                            .trackValues(request.get("store") != null ? partitionBy : null);
+                    load.load(String.valueOf(input), Boolean.parseBoolean(String.valueOf(request.get("appendOnly"))),
+                            Boolean.parseBoolean(String.valueOf(request.get("full"))), inspector);
+                    inspector.addAttribute("loadTime", (System.nanoTime() - start) / 1000000.0);
+                    if (request.get("store") != null) {
+                        BlockStore.update(connection, table, String.valueOf(request.get("store")), partitionBy,
+                                String.valueOf(request.getOrDefault("sortBy", "Order Date")),
+                                (int) Double.parseDouble(String.valueOf(request.getOrDefault("blockRows", 65536))),
+                                load.getTrackedValues(), inspector);
+                    }
+                }
+            } catch (IOException | SQLException | IllegalArgumentException | IllegalStateException e) {
+                inspector.addAttribute("error", e.getCause() == null ? e.toString() : e + ": " + e.getCause());
+            }
+        }
         
         //****************END FUNCTION IMPLEMENTATION***************************
-                
-        //Collect final information such as total runtime and cpu deltas.
-        inspector.inspectAllDeltas();
-        return inspector.finish();
     }
-}
\ No newline at end of file
+}
@@ -1,35 +1,258 @@
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import etl.AggregateQuery;
+import etl.BlockStore;
+import etl.ColumnTable;
+import etl.FanOut;
+import etl.IncrementalLoad;
+import etl.MaterializedViews;
+import etl.WarmupData;
+import saaf.Inspector;
+import saaf.Warmup;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Query stage: answer aggregate queries over the loaded sales table.
+ *
+ * Request attributes:
+ * database:   JDBC URL of the database, jdbc:sqlite:/tmp/sales.db by default.
+ * table:      The table name, sales by default.
+ * groupBy, aggregates, where: An aggregate query, see AggregateQuery.
+ * engine:     columnar (default) or sql to force the database.
+ * views:      false to skip the materialized views.
+ * store:      Read the table from this BlockStore directory instead of the database.
+ * refresh:    Reload the columnar copy of the table.
+ * partitions: Split the query over this many workers and merge their results.
+ * workerUrls: Endpoints of the workers, by default they run in this process.
+ *
+ * Aggregate queries run on a columnar copy of the table that is loaded on
+ * first use and kept for warm invocations. Queries it cannot answer fall
+ * back to SQL. Queries a fresh materialized view can answer are read from the
+ * view instead, see MaterializedViews. A request with "partition" is a worker's share of a fanned
+ * out query and returns a partial result, see FanOut.
+ */
 public class Query implements RequestHandler<HashMap<String, Object>, HashMap<String, Object>> {
 
+    //Columnar copies of tables by database and table name, kept across warm invocations.
+    private static final Map<String, ColumnTable> TABLES = new HashMap<>();
+    //The load version of each columnar copy, see IncrementalLoad.version.
+    private static final Map<String, Long> VERSIONS = new HashMap<>();
+
+    static {
+        //Opt-in JIT warm-up during the init phase, enabled by SAAF_WARMUP. It runs after the
+        //static fields above are initialized.
+        Warmup.run(() -> new Query().handleRequest(Warmup.payload(WarmupData.query()), null));
+    }
+
     /**
      * Lambda Function Handler
-     * 
+     *
      * @param request Hashmap containing request JSON attributes.
-     * @param context 
+     * @param context
      * @return HashMap that Lambda will automatically convert into JSON.
      */
     public HashMap<String, Object> handleRequest(HashMap<String, Object> request, Context context) {
-        
+
         //Collect initial data.
         Inspector inspector = new Inspector();
+        inspector.configure(request);
         inspector.inspectAll();
-        
+
         //****************START FUNCTION IMPLEMENTATION*************************
-        
-        //Add custom key/value attribute to SAAF's output. (OPTIONAL)
-        inspector.addAttribute("message", "Hello " + request.get("name")
-                + "! This is a custom attribute added as output from SAAF!");
-        
-        //Create and populate a separate response object for function output. (OPTIONAL)
-        Response response = new Response();
-        response.setValue("Hello " + request.get("name")
-                + "! This is from a response object!");
-        
-        inspector.consumeResponse(response);
-        
+
+        String database = String.valueOf(request.getOrDefault("database", "jdbc:sqlite:/tmp/sales.db"));
+        String table = String.valueOf(request.getOrDefault("table", "sales"));
+        int partitions = intValue(request.get("partitions"));
+        try {
+            if (partitions > 1 && request.get("partition") == null) {
+                fanOut(request, partitions, inspector);
+                return finish(inspector);
+            }
+            if (request.get("partition") != null) {
+                queryPartition(request, inspector);
+                return finish(inspector);
+            }
+            if (request.get("store") != null) {
+                queryStore(request, inspector);
+                return finish(inspector);
+            }
+            Connection connection = inspector.resource("db:" + database, () -> DriverManager.getConnection(database));
+            long start = System.nanoTime();
+            AggregateQuery query = AggregateQuery.parse(request);
+            String reason = "sql".equals(request.get("engine")) ? "engine sql requested" : null;
+            List<Map<String, Object>> viewRows = null;
+            if (reason == null && !"false".equals(String.valueOf(request.get("views")))) {
+                viewRows = MaterializedViews.answer(connection, table, query, inspector);
+            }
+            ColumnTable columns = null;
+            if (reason == null && viewRows == null) {
+                columns = columnar(connection, database, table, Boolean.parseBoolean(
+                        String.valueOf(request.get("refresh"))), inspector);
+                reason = query.unsupportedReason(columns);
+            }
+            if (viewRows != null) {
+                inspector.addAttribute("results", viewRows);
+                inspector.addAttribute("queryEngine", "view");
+            } else if (reason == null) {
+                AggregateQuery.Result result = query.execute(columns);
+                inspector.addAttribute("results", result.getRows());
+                inspector.addAttribute("queryEngine", "columnar");
+                inspector.addAttribute("queryRowsScanned", result.getScanned());
+                inspector.addAttribute("queryRowsSelected", result.getSelected());
+            } else {
+                inspector.addAttribute("results", query.execute(connection, table).getRows());
+                inspector.addAttribute("queryEngine", "sql");
+                inspector.addAttribute("queryFallback", reason);
+            }
+            inspector.addAttribute("queryTime", (System.nanoTime() - start) / 1000000.0);
+        } catch (SQLException | UncheckedIOException | IllegalArgumentException | IllegalStateException e) {
+            inspector.addAttribute("error", e.getCause() == null ? e.toString() : e + ": " + e.getCause());
+        }
+
         //****************END FUNCTION IMPLEMENTATION***************************
-                
+
+        return finish(inspector);
+    }
+
+    private static HashMap<String, Object> finish(Inspector inspector) {
         //Collect final information such as total runtime and cpu deltas.
         inspector.inspectAllDeltas();
         return inspector.finish();
     }
-}
\ No newline at end of file
+
+    /**
+     * Coordinate a fanned out query: send one partition to each worker and
+     * merge their partial results into results.
+     */
+    private static void fanOut(HashMap<String, Object> request, int partitions, Inspector inspector) {
+        AggregateQuery query = AggregateQuery.parse(request);
+        List<FanOut.Worker> workers = new ArrayList<>();
+        Object urls = request.get("workerUrls");
+        if (urls instanceof List) {
+            for (Object url : (List<?>) urls) {
+                workers.add(FanOut.http(String.valueOf(url)));
+            }
+        }
+        if (workers.isEmpty()) {
+            //In-process partitions only get an item Inspector, so they are not recorded as invocations.
+            workers = Collections.singletonList(part -> {
+                Inspector item = Inspector.forItem();
+                try {
+                    queryPartition(part, item);
+                } catch (SQLException e) {
+                    item.addAttribute("error", e.toString());
+                }
+                return item.getAttributes();
+            });
+        }
+        Map<String, Object> part = new HashMap<>(request);
+        part.remove("workerUrls");
+        long start = System.nanoTime();
+        inspector.addAttribute("results", FanOut.run(query, part, partitions, workers, inspector));
+        inspector.addAttribute("queryEngine", "fanout");
+        inspector.addAttribute("queryTime", (System.nanoTime() - start) / 1000000.0);
+    }
+
+    /**
+     * Compute a worker's partial result for one partition of a fanned out
+     * query, see FanOut.
+     */
+    private static void queryPartition(Map<String, Object> request, Inspector inspector) throws SQLException {
+        String database = String.valueOf(request.getOrDefault("database", "jdbc:sqlite:/tmp/sales.db"));
+        String table = String.valueOf(request.getOrDefault("table", "sales"));
+        Connection connection = inspector.resource("db:" + database, () -> DriverManager.getConnection(database));
+        long start = System.nanoTime();
+        AggregateQuery query = AggregateQuery.parse(request);
+        ColumnTable columns = columnar(connection, database, table, Boolean.parseBoolean(
+                String.valueOf(request.get("refresh"))), inspector);
+        String reason = query.unsupportedReason(columns);
+        if (reason != null) {
+            throw new IllegalArgumentException("Partitioned queries need the columnar engine: " + reason);
+        }
+        AggregateQuery.Result result = query.executePartial(columns, intValue(request.get("partition")),
+                Math.max(1, intValue(request.get("partitions"))));
+        inspector.addAttribute("partial", result.getRows());
+        inspector.addAttribute("queryEngine", "columnar");
+        inspector.addAttribute("queryRowsScanned", result.getScanned());
+        inspector.addAttribute("queryRowsSelected", result.getSelected());
+        inspector.addAttribute("queryTime", (System.nanoTime() - start) / 1000000.0);
+    }
+
+    /**
+     * Answer an aggregate query from the blocks of a BlockStore that its
+     * filters do not rule out.
+     */
+    private static void queryStore(HashMap<String, Object> request, Inspector inspector) {
+        AggregateQuery query = AggregateQuery.parse(request);
+        long start = System.nanoTime();
+        try {
+            ColumnTable columns = BlockStore.read(String.valueOf(request.get("store")), query, inspector);
+            String reason = query.unsupportedReason(columns);
+            if (reason != null) {
+                throw new IllegalArgumentException("Store queries need the columnar engine: " + reason);
+            }
+            AggregateQuery.Result result = query.execute(columns);
+            inspector.addAttribute("results", result.getRows());
+            inspector.addAttribute("queryEngine", "store");
+            inspector.addAttribute("queryRowsScanned", result.getScanned());
+            inspector.addAttribute("queryRowsSelected", result.getSelected());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        inspector.addAttribute("queryTime", (System.nanoTime() - start) / 1000000.0);
+    }
+
+    private static int intValue(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        try {
+            return value == null ? 0 : (int) Double.parseDouble(String.valueOf(value));
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    /**
+     * Get the columnar copy of a table, loading it if needed. A copy taken
+     * before the table's last load is reloaded.
+     *
+     * columnarLoadTime: Time in ms to load the table, if it was loaded by this call.
+     * columnarStale:    Whether the copy was reloaded because the table was loaded since.
+     * columnarRows:     Rows in the columnar copy.
+     * columnarBytes:    Approximate memory used by the columnar copy.
+     */
+    private static ColumnTable columnar(Connection connection, String database, String table, boolean refresh,
+            Inspector inspector) throws SQLException {
+        String key = database + "|" + table;
+        long version = IncrementalLoad.version(connection, table);
+        synchronized (TABLES) {
+            ColumnTable columns = refresh ? null : TABLES.get(key);
+            if (columns != null && VERSIONS.get(key) != version) {
+                inspector.addAttribute("columnarStale", true);
+                columns = null;
+            }
+            if (columns == null) {
+                long start = System.nanoTime();
+                columns = ColumnTable.readTable(connection, table);
+                TABLES.put(key, columns);
+                VERSIONS.put(key, version);
+                inspector.addAttribute("columnarLoadTime", (System.nanoTime() - start) / 1000000.0);
+            }
+            inspector.addAttribute("columnarRows", columns.getRows());
+            inspector.addAttribute("columnarBytes", columns.getBytes());
+            return columns;
+        }
+    }
+}
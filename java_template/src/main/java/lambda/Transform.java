@@ -1,35 +1,167 @@
-public class Transform implements RequestHandler<HashMap<String, Object>, HashMap<String, Object>> {
+package lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import adapter.Handler;
+import etl.OffHeapHashIndex;
+import etl.WarmupData;
+import saaf.Inspector;
+import saaf.Spill;
+import saaf.Warmup;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transform stage: deduplicate the records of a CSV file by key columns.
+ *
+ * Request attributes:
+ * input:         Path of the CSV file, with a header row.
+ * output:        Path to write the deduplicated CSV to, input + ".transformed.csv" by default.
+ * keys:          Comma separated key column names, "Order ID" by default.
+ * indexBudgetMB: Off-heap memory for the key index, 64 by default. Keys that
+ *                do not fit are spilled to SAAF_SPILL_DIR or /tmp/saaf-spill,
+ *                see saaf.Spill.
+ *
+ * The first record of every key is kept. Records whose key partition was
+ * spilled are written after the others. Fields must not contain commas.
+ *
+ * Transform is also an adapter.Handler, so a request with a "batch" array
+ * transforms every file in it with one round of data collection, see
+ * adapter.Batch.
+ */
+public class Transform implements RequestHandler<HashMap<String, Object>, HashMap<String, Object>>, Handler {
+
+    static {
+        //Opt-in JIT warm-up during the init phase, enabled by SAAF_WARMUP.
+        Warmup.run(() -> new Transform().handleRequest(new Transform().warmupPayload(), null));
+    }
 
     /**
      * Lambda Function Handler
-     * 
+     *
      * @param request Hashmap containing request JSON attributes.
-     * @param context 
+     * @param context
      * @return HashMap that Lambda will automatically convert into JSON.
      */
     public HashMap<String, Object> handleRequest(HashMap<String, Object> request, Context context) {
-        
-        //Collect initial data.
-        Inspector inspector = new Inspector();
-        inspector.inspectAll();
-        
+
+        //Collect initial data, run handle() or a batch of it and collect final information.
+        return invoke(request);
+    }
+
+    /**
+     * @return SAAF_WARMUP_PAYLOAD, or a request transforming a generated file.
+     */
+    @Override
+    public HashMap<String, Object> warmupPayload() {
+        return Warmup.payload(WarmupData.transform());
+    }
+
+    /**
+     * Function implementation, called between inspectAll and inspectAllDeltas.
+     *
+     * @param request Map containing request JSON attributes.
+     * @param inspector The Inspector of this invocation or batch item.
+     */
+    @Override
+    public void handle(Map<String, Object> request, Inspector inspector) {
+
         //****************START FUNCTION IMPLEMENTATION*************************
-        
-        //Add custom key/value attribute to SAAF's output. (OPTIONAL)
-        inspector.addAttribute("message", "Hello " + request.get("name")
-                + "! This is a custom attribute added as output from SAAF!");
-        
-        //Create and populate a separate response object for function output. (OPTIONAL)
-        Response response = new Response();
-        response.setValue("Hello " + request.get("name")
-                + "! This is from a response object!");
-        
-        inspector.consumeResponse(response);
-        
+
+        Object input = request.get("input");
+        if (input == null) {
+            inspector.addAttribute("error", "No input file given.");
+        } else {
+            String output = request.containsKey("output") ? String.valueOf(request.get("output"))
+                    : input + ".transformed.csv";
+            String keys = request.containsKey("keys") ? String.valueOf(request.get("keys")) : "Order ID";
+            try {
+                long budget = (long) (Double.parseDouble(String.valueOf(request.getOrDefault("indexBudgetMB", 64)))
+                        * 1024 * 1024);
+                deduplicate(String.valueOf(input), output, keys.split(","), budget, inspector);
+                inspector.addAttribute("output", output);
+            } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+                inspector.addAttribute("error", e.toString());
+            }
+        }
+
         //****************END FUNCTION IMPLEMENTATION***************************
-                
-        //Collect final information such as total runtime and cpu deltas.
-        inspector.inspectAllDeltas();
-        return inspector.finish();
     }
-}
\ No newline at end of file
+
+    /**
+     * Copy the first record of every key from input to output.
+     *
+     * rowsRead:    Records in the input.
+     * rowsWritten: Records written to the output.
+     * duplicates:  Records dropped.
+     * dedup*:      Index statistics, see OffHeapHashIndex.report.
+     */
+    private static void deduplicate(String input, String output, String[] keys, long budget, Inspector inspector)
+            throws IOException {
+        long[] counts = new long[2];
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8);
+                BufferedWriter writer = Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8);
+                OffHeapHashIndex index = new OffHeapHashIndex(budget, Spill.directory())) {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IllegalArgumentException("Input file is empty.");
+            }
+            List<String> columns = Arrays.asList(header.split(","));
+            int[] keyColumns = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                keyColumns[i] = columns.indexOf(keys[i].trim());
+                if (keyColumns[i] < 0) {
+                    throw new IllegalArgumentException("No column named " + keys[i].trim());
+                }
+            }
+            writer.write(header);
+            writer.write('\n');
+
+            String[] keyValues = new String[keyColumns.length];
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(",", -1);
+                for (int i = 0; i < keyColumns.length; i++) {
+                    keyValues[i] = keyColumns[i] < fields.length ? fields[keyColumns[i]] : "";
+                }
+                long key = OffHeapHashIndex.hash(keyValues);
+                keep(index, key, counts[0]++, line, writer, counts);
+            }
+            index.processSpilled((partition, key, record) ->
+                    keep(partition, key, 0, new String(record, StandardCharsets.UTF_8), writer, counts));
+            index.report(inspector, "dedup");
+        }
+        inspector.addAttribute("rowsRead", counts[0]);
+        inspector.addAttribute("rowsWritten", counts[1]);
+        inspector.addAttribute("duplicates", counts[0] - counts[1]);
+    }
+
+    private static void keep(OffHeapHashIndex index, long key, long row, String line, Writer writer, long[] counts)
+            throws IOException {
+        switch (index.putIfAbsent(key, row)) {
+            case OffHeapHashIndex.ADDED:
+                writer.write(line);
+                writer.write('\n');
+                counts[1]++;
+                break;
+            case OffHeapHashIndex.SPILLED:
+                index.spill(key, line.getBytes(StandardCharsets.UTF_8));
+                break;
+            default:
+                break;
+        }
+    }
+}
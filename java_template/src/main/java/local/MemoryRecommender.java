@@ -0,0 +1,437 @@
+package local;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import saaf.Histogram;
+
+/**
+ * Recommend a memory setting for each function from Inspector results.
+ *
+ * Usage: java local.MemoryRecommender {TARGET P95 MS} {FILE OR FOLDER}... [--follow]
+ *
+ * Results are read from .json files, one result per file as written by FaaS
+ * Runner, or from JSON lines files such as the SAAF_SINK of an Inspector.
+ * With --follow the last JSON lines file is watched and recommendations are
+ * printed every time new results arrive.
+ *
+ * Every result is folded into per function, per memory setting histograms
+ * and counters, so memory use does not grow with the number of results.
+ * Runtimes of memory settings that were not measured are predicted from the
+ * nearest measured setting by CPU time accounting: the CPU bound share of
+ * the runtime, taken from cpuUsrDelta, cpuKrnDelta and vmcpustealDelta,
+ * scales with the CPU share the platform grants to the memory setting, while
+ * the rest of the runtime stays the same.
+ */
+public class MemoryRecommender {
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final Type MAP_TYPE = new TypeToken<Map<String, Object>>() {}.getType();
+
+    //AWS Lambda memory settings, x86 pricing and CPU allocation.
+    public static final int[] DEFAULT_TIERS = {128, 256, 512, 1024, 1536, 2048, 3008, 4096, 5120, 6144, 8192, 10240};
+    public static final double DEFAULT_GB_SECOND_PRICE = 0.0000166667;
+    public static final double DEFAULT_REQUEST_PRICE = 0.0000002;
+    private static final double MB_PER_VCPU = 1769;
+    private static final double MAX_VCPUS = 6;
+
+    //Length of a /proc/stat tick in ms.
+    private static final double TICK_MS = 10;
+
+    //Headroom required above the most memory a function was seen to use.
+    private static final double MEMORY_HEADROOM = 1.2;
+
+    private final Map<String, FunctionModel> functions = new TreeMap<>();
+    private final int[] tiers;
+    private final double gbSecondPrice;
+    private final double requestPrice;
+    private long skipped = 0;
+
+    /**
+     * Create a recommender for AWS Lambda.
+     */
+    public MemoryRecommender() {
+        this(DEFAULT_TIERS, DEFAULT_GB_SECOND_PRICE, DEFAULT_REQUEST_PRICE);
+    }
+
+    /**
+     * @param tiers The memory settings in MB to choose from.
+     * @param gbSecondPrice The price of one GB-second.
+     * @param requestPrice The price of one request.
+     */
+    public MemoryRecommender(int[] tiers, double gbSecondPrice, double requestPrice) {
+        this.tiers = tiers.clone();
+        this.gbSecondPrice = gbSecondPrice;
+        this.requestPrice = requestPrice;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.out.println("Please supply parameters! Usage:\njava local.MemoryRecommender {TARGET P95 MS} {FILE OR FOLDER}... [--follow]");
+            return;
+        }
+        double target = Double.parseDouble(args[0]);
+        boolean follow = false;
+        File last = null;
+        MemoryRecommender recommender = new MemoryRecommender();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--follow")) {
+                follow = true;
+            } else {
+                last = new File(args[i]);
+                recommender.recordPath(last);
+            }
+        }
+        System.out.println(GSON.toJson(recommender.recommend(target)));
+
+        if (follow && last != null && last.isFile()) {
+            long offset = last.length();
+            while (true) {
+                Thread.sleep(1000);
+                long length = last.length();
+                if (length < offset) {
+                    offset = 0;
+                }
+                if (length > offset) {
+                    long end = recommender.recordLines(last, offset);
+                    if (end > offset) {
+                        offset = end;
+                        System.out.println(GSON.toJson(recommender.recommend(target)));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Record every result of a file or folder.
+     *
+     * @param file A .json result, a JSON lines file or a folder of either.
+     */
+    public void recordPath(File file) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    recordPath(child);
+                }
+            }
+        } else if (file.getName().endsWith(".json")) {
+            try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                Map<String, Object> json = GSON.fromJson(reader, MAP_TYPE);
+                if (json != null) {
+                    record(json);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error loading: " + file + " with exception " + e.toString());
+            }
+        } else if (file.isFile()) {
+            try {
+                recordLines(file, 0);
+            } catch (IOException ioe) {
+                System.err.println("Error loading: " + file + " with exception " + ioe.toString());
+            }
+        }
+    }
+
+    /**
+     * Record the complete lines of a JSON lines file from an offset. A last
+     * line without a newline may still be written and is left for later.
+     *
+     * @return The offset after the last complete line.
+     */
+    private long recordLines(File file, long offset) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            long done = 0;
+            while (done < offset) {
+                long n = in.skip(offset - done);
+                if (n <= 0) {
+                    return offset;
+                }
+                done += n;
+            }
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1 << 16];
+            long position = offset;
+            long end = offset;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        line.write(buffer, start, i - start);
+                        recordLine(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                        line.reset();
+                        start = i + 1;
+                        end = position + i + 1;
+                    }
+                }
+                line.write(buffer, start, read - start);
+                position += read;
+            }
+            return end;
+        }
+    }
+
+    private void recordLine(String line) {
+        line = line.trim();
+        if (line.isEmpty()) {
+            return;
+        }
+        try {
+            Map<String, Object> json = GSON.fromJson(line, MAP_TYPE);
+            if (json != null) {
+                record(json);
+            }
+        } catch (RuntimeException e) {
+            skipped++;
+        }
+    }
+
+    /**
+     * Fold an Inspector result into the model of its function.
+     *
+     * @param attributes An Inspector result. Results without a runtime or a
+     * memory setting are skipped.
+     */
+    public void record(Map<String, Object> attributes) {
+        double runtime = number(attributes.get("runtime"));
+        int memory = memorySetting(attributes);
+        if (Double.isNaN(runtime) || memory <= 0) {
+            skipped++;
+            return;
+        }
+        Object name = attributes.get("functionName");
+        String function = name == null ? "unknown" : name.toString();
+        FunctionModel model = functions.get(function);
+        if (model == null) {
+            model = new FunctionModel();
+            functions.put(function, model);
+        }
+        model.record(memory, attributes, runtime);
+    }
+
+    /**
+     * Recommend the cheapest memory setting of each function whose 95th
+     * percentile runtime meets the target. If no setting meets the target,
+     * the fastest one is recommended.
+     *
+     * @param targetP95 The target 95th percentile runtime in ms.
+     * @return For each function the predicted runtime and cost of every
+     * memory setting and the recommended setting.
+     */
+    public Map<String, Object> recommend(double targetP95) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, FunctionModel> function : functions.entrySet()) {
+            result.put(function.getKey(), function.getValue().recommend(targetP95));
+        }
+        result.put("skipped", skipped);
+        return result;
+    }
+
+    private static int memorySetting(Map<String, Object> attributes) {
+        double memory = number(attributes.get("functionMemory"));
+        if (Double.isNaN(memory)) {
+            //Without the platform collector, fall back to the cgroup memory limit.
+            double limit = number(attributes.get("cgroupMemoryMax"));
+            memory = limit > 0 ? limit / (1 << 20) : Double.NaN;
+        }
+        return Double.isNaN(memory) ? 0 : (int) Math.round(memory);
+    }
+
+    private static double number(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Double.parseDouble((String) value);
+            } catch (NumberFormatException nfe) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+
+    private static double cpuShare(int memory) {
+        return Math.min(memory / MB_PER_VCPU, MAX_VCPUS);
+    }
+
+    /**
+     * Measurements of one memory setting.
+     */
+    private static class Tier {
+        private final Histogram runtime = new Histogram();
+        private double cpuMs = 0;
+        private double cpuRuntimeMs = 0;
+
+        /**
+         * @return The average number of CPUs busy during an invocation.
+         */
+        private double utilization() {
+            return cpuRuntimeMs <= 0 ? 1 : cpuMs / cpuRuntimeMs;
+        }
+
+        /**
+         * Scale the runtime measured at one memory setting to another. Code
+         * that kept u CPUs busy cannot use more than max(1, u) CPUs, however
+         * large the CPU share.
+         */
+        private double scale(int from, int to) {
+            double u = utilization();
+            double parallelism = Math.max(1, u);
+            double speedFrom = Math.min(cpuShare(from), parallelism);
+            double speedTo = Math.min(cpuShare(to), parallelism);
+            double f = Math.min(1, u / speedFrom);
+            return (1 - f) + f * speedFrom / speedTo;
+        }
+    }
+
+    /**
+     * Measurements of one function, bounded by the number of memory settings.
+     */
+    private class FunctionModel {
+        private final TreeMap<Integer, Tier> measured = new TreeMap<>();
+        private double maxUsedMB = 0;
+
+        private void record(int memory, Map<String, Object> attributes, double runtime) {
+            Tier tier = measured.get(memory);
+            if (tier == null) {
+                tier = new Tier();
+                measured.put(memory, tier);
+            }
+            tier.runtime.record(Math.round(runtime));
+
+            double usr = number(attributes.get("cpuUsrDelta"));
+            double krn = number(attributes.get("cpuKrnDelta"));
+            double steal = number(attributes.get("vmcpustealDelta"));
+            if (!Double.isNaN(usr) && !Double.isNaN(krn)) {
+                tier.cpuMs += (usr + krn + (Double.isNaN(steal) ? 0 : steal)) * TICK_MS;
+                tier.cpuRuntimeMs += runtime;
+            }
+
+            double peak = number(attributes.get("cgroupMemoryPeak"));
+            if (Double.isNaN(peak)) {
+                double heap = number(attributes.get("jvmHeapUsed"));
+                double nonHeap = number(attributes.get("jvmNonHeapUsed"));
+                peak = Double.isNaN(heap) || Double.isNaN(nonHeap) ? Double.NaN : heap + nonHeap;
+            }
+            if (!Double.isNaN(peak)) {
+                maxUsedMB = Math.max(maxUsedMB, peak / (1 << 20));
+            }
+        }
+
+        private Map<String, Object> recommend(double targetP95) {
+            List<Map<String, Object>> options = new ArrayList<>();
+            Map<String, Object> cheapest = null;
+            Map<String, Object> fastest = null;
+            for (int memory : candidates()) {
+                Map<String, Object> option = predict(memory);
+                options.add(option);
+                if (!(Boolean) option.get("feasible")) {
+                    continue;
+                }
+                double p95 = (Double) option.get("p95Runtime");
+                double cost = (Double) option.get("costPerMillion");
+                if (p95 <= targetP95 && (cheapest == null || cost < (Double) cheapest.get("costPerMillion"))) {
+                    cheapest = option;
+                }
+                if (fastest == null || p95 < (Double) fastest.get("p95Runtime")) {
+                    fastest = option;
+                }
+            }
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("samples", samples());
+            result.put("maxUsedMB", maxUsedMB);
+            if (cheapest != null) {
+                result.put("recommendedMemory", cheapest.get("memory"));
+                result.put("reason", "Cheapest setting meeting the p95 target.");
+            } else if (fastest != null) {
+                result.put("recommendedMemory", fastest.get("memory"));
+                result.put("reason", "No setting meets the p95 target, fastest setting.");
+            }
+            result.put("tiers", options);
+            return result;
+        }
+
+        private List<Integer> candidates() {
+            TreeMap<Integer, Boolean> candidates = new TreeMap<>();
+            for (int tier : tiers) {
+                candidates.put(tier, true);
+            }
+            for (int tier : measured.keySet()) {
+                candidates.put(tier, true);
+            }
+            return new ArrayList<>(candidates.keySet());
+        }
+
+        private long samples() {
+            long samples = 0;
+            for (Tier tier : measured.values()) {
+                samples += tier.runtime.getCount();
+            }
+            return samples;
+        }
+
+        /**
+         * Predict the runtime and cost of a memory setting.
+         */
+        private Map<String, Object> predict(int memory) {
+            Map<String, Object> option = new LinkedHashMap<>();
+            option.put("memory", memory);
+            Tier tier = measured.get(memory);
+            double mean;
+            double p95;
+            if (tier != null) {
+                option.put("measured", true);
+                option.put("samples", tier.runtime.getCount());
+                mean = tier.runtime.getMean();
+                p95 = tier.runtime.getPercentile(95);
+            } else {
+                int base = nearest(memory);
+                Tier baseTier = measured.get(base);
+                double scale = baseTier.scale(base, memory);
+                option.put("measured", false);
+                option.put("predictedFrom", base);
+                mean = baseTier.runtime.getMean() * scale;
+                p95 = baseTier.runtime.getPercentile(95) * scale;
+            }
+            option.put("meanRuntime", mean);
+            option.put("p95Runtime", p95);
+            option.put("costPerMillion", 1e6 * (memory / 1024.0 * mean / 1000 * gbSecondPrice + requestPrice));
+            option.put("feasible", memory >= maxUsedMB * MEMORY_HEADROOM);
+            return option;
+        }
+
+        /**
+         * @return The measured memory setting closest to memory on a log scale.
+         */
+        private int nearest(int memory) {
+            int best = measured.firstKey();
+            double distance = Double.MAX_VALUE;
+            for (int tier : measured.keySet()) {
+                double d = Math.abs(Math.log((double) tier / memory));
+                if (d < distance) {
+                    distance = d;
+                    best = tier;
+                }
+            }
+            return best;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package local;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import saaf.Accumulator;
+
+/**
+ * Merge Accumulator summaries collected from many containers into one.
+ *
+ * Usage: java local.MergeSummaries {FILE OR FOLDER}...
+ *
+ * Each JSON file may either be a summary or an Inspector result carrying an
+ * "accumulator" attribute. Summaries are cumulative per container, so of the
+ * summaries with the same uuid only the one with the most invocations is
+ * merged. The merged summary is printed to standard out.
+ */
+public class MergeSummaries {
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final Type MAP_TYPE = new TypeToken<Map<String, Object>>() {}.getType();
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Please supply parameters! Usage:\njava local.MergeSummaries {FILE OR FOLDER}...");
+            return;
+        }
+        Map<String, Map<String, Object>> latest = new HashMap<>();
+        List<Map<String, Object>> summaries = new ArrayList<>();
+        for (String arg : args) {
+            collectPath(latest, summaries, new File(arg));
+        }
+        summaries.addAll(latest.values());
+        Accumulator merged = new Accumulator(0);
+        for (Map<String, Object> summary : summaries) {
+            merged.merge(summary);
+        }
+        System.out.println(GSON.toJson(merged.summary()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void collectPath(Map<String, Map<String, Object>> latest, List<Map<String, Object>> summaries,
+            File file) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    collectPath(latest, summaries, child);
+                }
+            }
+            return;
+        }
+        if (!file.getName().endsWith(".json")) {
+            return;
+        }
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            Map<String, Object> json = GSON.fromJson(reader, MAP_TYPE);
+            if (json == null) {
+                return;
+            }
+            Object value = json.get("accumulator");
+            Map<String, Object> summary = value instanceof Map ? (Map<String, Object>) value : json;
+            Object uuid = summary.get("uuid");
+            if (uuid == null) {
+                summaries.add(summary);
+                return;
+            }
+            Map<String, Object> previous = latest.get(uuid.toString());
+            if (previous == null || invocations(summary) > invocations(previous)) {
+                latest.put(uuid.toString(), summary);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Skipping " + file + ": " + e.toString());
+        }
+    }
+
+    private static double invocations(Map<String, Object> summary) {
+        Object value = summary.get("invocations");
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+}
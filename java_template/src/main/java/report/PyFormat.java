@@ -0,0 +1,369 @@
+package report;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Formatting and arithmetic helpers that reproduce how report_generator.py
+ * prints parsed JSON values, so reports compiled in Java match the Python
+ * output.
+ *
+ * Values are the objects produced by RecordTable: String, Long, BigInteger,
+ * Double, Boolean, NONE, List and Map.
+ */
+final class PyFormat {
+
+    /**
+     * JSON null. Kept distinct from Java null, which marks a missing attribute.
+     */
+    static final Object NONE = new Object() {
+        @Override
+        public String toString() {
+            return "None";
+        }
+    };
+
+    /**
+     * Context used by Python's decimal module by default.
+     */
+    static final MathContext DECIMAL = new MathContext(28, RoundingMode.HALF_EVEN);
+
+    private PyFormat() {}
+
+    /**
+     * Python str() of a value.
+     *
+     * @param value A parsed JSON value.
+     * @return The string Python would print.
+     */
+    static String str(Object value) {
+        if (value instanceof String) {
+            return (String) value;
+        }
+        StringBuilder sb = new StringBuilder();
+        appendRepr(sb, value);
+        return sb.toString();
+    }
+
+    /**
+     * Python repr() of a value.
+     *
+     * @param value A parsed JSON value.
+     * @return The string Python would print.
+     */
+    static String repr(Object value) {
+        StringBuilder sb = new StringBuilder();
+        appendRepr(sb, value);
+        return sb.toString();
+    }
+
+    private static void appendRepr(StringBuilder sb, Object value) {
+        if (value instanceof String) {
+            appendStringRepr(sb, (String) value);
+        } else if (value instanceof Double) {
+            sb.append(floatRepr((Double) value));
+        } else if (value instanceof Boolean) {
+            sb.append((Boolean) value ? "True" : "False");
+        } else if (value instanceof List) {
+            sb.append('[');
+            boolean first = true;
+            for (Object o : (List<?>) value) {
+                if (!first) {
+                    sb.append(", ");
+                }
+                first = false;
+                appendRepr(sb, o);
+            }
+            sb.append(']');
+        } else if (value instanceof Map) {
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    sb.append(", ");
+                }
+                first = false;
+                appendRepr(sb, e.getKey());
+                sb.append(": ");
+                appendRepr(sb, e.getValue());
+            }
+            sb.append('}');
+        } else {
+            sb.append(String.valueOf(value));
+        }
+    }
+
+    private static void appendStringRepr(StringBuilder sb, String s) {
+        char quote = s.indexOf('\'') >= 0 && s.indexOf('"') < 0 ? '"' : '\'';
+        sb.append(quote);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == quote || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '\r') {
+                sb.append("\\r");
+            } else if (c == '\t') {
+                sb.append("\\t");
+            } else if (c < 0x20 || c == 0x7f) {
+                sb.append(String.format("\\x%02x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append(quote);
+    }
+
+    /**
+     * Python repr() of a float: the shortest digits that round trip, printed
+     * in fixed notation between 1e-4 and 1e16 and in scientific otherwise.
+     *
+     * @param d The value to format.
+     * @return The string Python would print.
+     */
+    static String floatRepr(double d) {
+        if (Double.isNaN(d)) {
+            return "nan";
+        }
+        if (Double.isInfinite(d)) {
+            return d > 0 ? "inf" : "-inf";
+        }
+        if (d == 0) {
+            return (1 / d) < 0 ? "-0.0" : "0.0";
+        }
+
+        BigDecimal shortest = new BigDecimal(Double.toString(d));
+        for (int p = 1; p < shortest.precision(); p++) {
+            BigDecimal candidate = shortest.round(new MathContext(p, RoundingMode.HALF_EVEN));
+            if (candidate.doubleValue() == d) {
+                shortest = candidate;
+                break;
+            }
+        }
+        shortest = shortest.stripTrailingZeros();
+
+        String digits = shortest.unscaledValue().abs().toString();
+        int decpt = digits.length() - shortest.scale();
+        StringBuilder sb = new StringBuilder();
+        if (d < 0) {
+            sb.append('-');
+        }
+        if (decpt > -4 && decpt <= 16) {
+            if (decpt <= 0) {
+                sb.append("0.");
+                for (int i = decpt; i < 0; i++) {
+                    sb.append('0');
+                }
+                sb.append(digits);
+            } else if (decpt >= digits.length()) {
+                sb.append(digits);
+                for (int i = digits.length(); i < decpt; i++) {
+                    sb.append('0');
+                }
+                sb.append(".0");
+            } else {
+                sb.append(digits, 0, decpt).append('.').append(digits, decpt, digits.length());
+            }
+        } else {
+            sb.append(digits.charAt(0));
+            if (digits.length() > 1) {
+                sb.append('.').append(digits, 1, digits.length());
+            }
+            int exponent = decpt - 1;
+            sb.append('e').append(exponent < 0 ? '-' : '+');
+            if (Math.abs(exponent) < 10) {
+                sb.append('0');
+            }
+            sb.append(Math.abs(exponent));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Python round(x, 2) of a float, rounding the exact binary value half to even.
+     *
+     * @param d The value to round.
+     * @return The rounded value.
+     */
+    static double round2(double d) {
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            return d;
+        }
+        double rounded = new BigDecimal(d).setScale(2, RoundingMode.HALF_EVEN).doubleValue();
+        return rounded == 0 ? Math.copySign(0.0, d) : rounded;
+    }
+
+    /**
+     * Python Decimal(value) for the value types found in Inspector records.
+     *
+     * @param value A parsed JSON value.
+     * @return The exact decimal value, or null if Decimal() would raise.
+     */
+    static BigDecimal toDecimal(Object value) {
+        if (value instanceof Long) {
+            return BigDecimal.valueOf((Long) value);
+        } else if (value instanceof String) {
+            return parseDecimal((String) value);
+        } else if (value instanceof Double) {
+            double d = (Double) value;
+            return Double.isNaN(d) || Double.isInfinite(d) ? null : new BigDecimal(d);
+        } else if (value instanceof BigInteger) {
+            return new BigDecimal((BigInteger) value);
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? BigDecimal.ONE : BigDecimal.ZERO;
+        }
+        return null;
+    }
+
+    private static BigDecimal parseDecimal(String s) {
+        s = s.trim();
+        if (s.isEmpty()) {
+            return null;
+        }
+        char c = s.charAt(s.length() - 1);
+        if ((c < '0' || c > '9') && c != '.') {
+            return null;
+        }
+        if (s.indexOf('_') >= 0) {
+            s = s.replace("_", "");
+        }
+        try {
+            return new BigDecimal(s);
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    /**
+     * Python float(value).
+     *
+     * @param value A parsed JSON value.
+     * @return The value as a double, or null if float() would raise.
+     */
+    static Double toFloat(Object value) {
+        if (value instanceof Double) {
+            return (Double) value;
+        } else if (value instanceof Long) {
+            return ((Long) value).doubleValue();
+        } else if (value instanceof BigInteger) {
+            return ((BigInteger) value).doubleValue();
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? 1.0 : 0.0;
+        } else if (value instanceof String) {
+            String s = ((String) value).trim();
+            String lower = s.toLowerCase();
+            if (lower.matches("[+-]?(inf|infinity|nan)")) {
+                return Double.parseDouble(lower.replace("infinity", "inf")
+                        .replace("inf", "Infinity").replace("nan", "NaN"));
+            }
+            BigDecimal decimal = parseDecimal(s);
+            return decimal == null ? null : Double.parseDouble(decimal.toString());
+        }
+        return null;
+    }
+
+    /**
+     * Key used to bucket values the way Python dict and list membership does,
+     * where 1, 1.0 and True are all equal.
+     *
+     * @param value A parsed JSON value.
+     * @return An object with matching equals and hashCode semantics.
+     */
+    static Object equalityKey(Object value) {
+        if (value instanceof Long || value instanceof BigInteger || value instanceof Boolean
+                || value instanceof Double) {
+            BigDecimal decimal = toDecimal(value);
+            if (decimal != null) {
+                return decimal.signum() == 0 ? BigDecimal.ZERO : decimal.stripTrailingZeros();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Sort values in place the way Python's list.sort() does. Mixed types that
+     * Python cannot compare are left in their original order.
+     *
+     * @param values The values to sort.
+     * @return Whether the values were sorted.
+     */
+    static boolean sort(List<Object> values) {
+        boolean numbers = true;
+        boolean strings = true;
+        for (Object o : values) {
+            numbers &= o instanceof Long || o instanceof BigInteger || o instanceof Double
+                    || o instanceof Boolean;
+            strings &= o instanceof String;
+        }
+        if (numbers) {
+            Collections.sort(values, new Comparator<Object>() {
+                @Override
+                public int compare(Object a, Object b) {
+                    BigDecimal x = toDecimal(a);
+                    BigDecimal y = toDecimal(b);
+                    if (x == null || y == null) {
+                        return Double.compare(toFloat(a), toFloat(b));
+                    }
+                    return x.compareTo(y);
+                }
+            });
+            return true;
+        }
+        if (strings) {
+            Collections.sort(values, new Comparator<Object>() {
+                @Override
+                public int compare(Object a, Object b) {
+                    return compareCodePoints((String) a, (String) b);
+                }
+            });
+            return true;
+        }
+        return values.size() < 2;
+    }
+
+    /**
+     * Compare strings by code point like Python rather than by UTF-16 unit.
+     */
+    static int compareCodePoints(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int x = a.codePointAt(i);
+            int y = b.codePointAt(j);
+            if (x != y) {
+                return Integer.compare(x, y);
+            }
+            i += Character.charCount(x);
+            j += Character.charCount(y);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+
+    /**
+     * Sort attribute names by code point.
+     *
+     * @param names The names to sort.
+     * @return A sorted copy.
+     */
+    static List<String> sortedNames(Iterable<String> names) {
+        List<String> sorted = new ArrayList<>();
+        for (String name : names) {
+            sorted.add(name);
+        }
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return compareCodePoints(a, b);
+            }
+        });
+        return sorted;
+    }
+}
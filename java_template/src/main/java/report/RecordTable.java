@@ -0,0 +1,209 @@
+package report;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Column oriented table of Inspector records.
+ *
+ * Attribute names are interned to column indexes so each record is a plain
+ * Object[] rather than a HashMap, which keeps a million records within a
+ * few hundred bytes of overhead each. Files are parsed in parallel with
+ * Gson's streaming reader.
+ */
+class RecordTable {
+
+    private final ConcurrentHashMap<String, Integer> columns = new ConcurrentHashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private Object[][] rows = new Object[0][];
+
+    /**
+     * Load every .json file of a folder in directory order, like
+     * report_from_folder in report_generator.py.
+     *
+     * @param folder The folder holding one Inspector result per file.
+     * @return The loaded table.
+     */
+    static RecordTable fromFolder(File folder) {
+        final RecordTable table = new RecordTable();
+        String[] list = folder.list();
+        if (list == null) {
+            return table;
+        }
+        final File[] files = Arrays.stream(list)
+                .filter(name -> name.endsWith(".json"))
+                .map(name -> new File(folder, name))
+                .toArray(File[]::new);
+
+        final Object[][] parsed = new Object[files.length][];
+        IntStream.range(0, files.length).parallel().forEach(i -> {
+            try (Reader reader = Files.newBufferedReader(files[i].toPath(), StandardCharsets.UTF_8)) {
+                parsed[i] = table.readRecord(new JsonReader(reader));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error loading: " + files[i] + " with exception " + e.toString());
+            }
+        });
+
+        table.rows = Arrays.stream(parsed).filter(r -> r != null).toArray(Object[][]::new);
+        return table;
+    }
+
+    /**
+     * @return The number of records.
+     */
+    int size() {
+        return rows.length;
+    }
+
+    /**
+     * @return The number of known attributes.
+     */
+    synchronized int columnCount() {
+        return names.size();
+    }
+
+    /**
+     * @param column A column index.
+     * @return The attribute name of the column.
+     */
+    synchronized String name(int column) {
+        return names.get(column);
+    }
+
+    /**
+     * @param name An attribute name.
+     * @return The column index, or -1 if no record has the attribute.
+     */
+    int column(String name) {
+        Integer column = columns.get(name);
+        return column == null ? -1 : column;
+    }
+
+    /**
+     * Get the column index of an attribute, adding the column if needed.
+     *
+     * @param name An attribute name.
+     * @return The column index.
+     */
+    int columnFor(String name) {
+        Integer column = columns.get(name);
+        if (column != null) {
+            return column;
+        }
+        synchronized (this) {
+            column = columns.get(name);
+            if (column == null) {
+                column = names.size();
+                names.add(name);
+                columns.put(name, column);
+            }
+            return column;
+        }
+    }
+
+    /**
+     * @param row A row index.
+     * @param column A column index.
+     * @return The value, or null if the record does not have the attribute.
+     */
+    Object get(int row, int column) {
+        Object[] record = rows[row];
+        return column >= 0 && column < record.length ? record[column] : null;
+    }
+
+    /**
+     * Set a value, growing the record if the column is new.
+     */
+    void set(int row, int column, Object value) {
+        Object[] record = rows[row];
+        if (column >= record.length) {
+            record = Arrays.copyOf(record, Math.max(column + 1, columnCount()));
+            rows[row] = record;
+        }
+        record[column] = value;
+    }
+
+    /**
+     * @param row A row index.
+     * @param column A column index.
+     * @return Whether the record has the attribute.
+     */
+    boolean has(int row, int column) {
+        return get(row, column) != null;
+    }
+
+    private Object[] readRecord(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw new IOException("Expected a JSON object");
+        }
+        Object[] record = new Object[columnCount()];
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int column = columnFor(reader.nextName());
+            if (column >= record.length) {
+                record = Arrays.copyOf(record, Math.max(column + 1, record.length * 2));
+            }
+            record[column] = readValue(reader);
+        }
+        reader.endObject();
+        return record;
+    }
+
+    /**
+     * Read a JSON value into the types used by PyFormat. Integers stay exact
+     * so they print like Python ints.
+     */
+    static Object readValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                String number = reader.nextString();
+                if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+                    if (number.length() < 19) {
+                        return Long.parseLong(number);
+                    }
+                    BigInteger big = new BigInteger(number);
+                    return big.bitLength() < 64 ? (Object) big.longValue() : big;
+                }
+                return Double.parseDouble(number);
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return PyFormat.NONE;
+            case BEGIN_ARRAY:
+                List<Object> list = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    list.add(readValue(reader));
+                }
+                reader.endArray();
+                return list;
+            case BEGIN_OBJECT:
+                Map<String, Object> map = new LinkedHashMap<>();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    map.put(reader.nextName(), readValue(reader));
+                }
+                reader.endObject();
+                return map;
+            default:
+                reader.skipValue();
+                return PyFormat.NONE;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package report;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmark the report compiler against a folder of synthetic Inspector results.
+ *
+ * Usage: java report.ReportBenchmark {FOLDER PATH} {RESULT COUNT} {PATH TO EXPERIMENT JSON}
+ *
+ * The folder is filled with RESULT COUNT results shaped like the output of
+ * lambda.Hello spread over a few hundred containers and VMs, then compiled
+ * without writing the report. Run compile_results.py against the same folder
+ * and experiment to compare with the Python path.
+ */
+public class ReportBenchmark {
+
+    private static final String[] CPU_TYPES = {
+        "Intel(R) Xeon(R) Processor @ 2.50GHz",
+        "Intel(R) Xeon(R) CPU E5-2680 v2 @ 2.80GHz",
+        "AMD EPYC"
+    };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.out.println("Please supply parameters! Usage:\njava report.ReportBenchmark {FOLDER PATH} {RESULT COUNT} {PATH TO EXPERIMENT JSON}");
+            return;
+        }
+        File folder = new File(args[0]);
+        int count = Integer.parseInt(args[1]);
+        Map<String, Object> exp = ReportCompiler.withDefaults(ReportCompiler.readExperiment(new File(args[2])));
+
+        String[] existing = folder.list();
+        if (existing == null || existing.length < count) {
+            long start = System.currentTimeMillis();
+            generate(folder, count);
+            System.out.println("Generated " + count + " results in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+
+        long start = System.currentTimeMillis();
+        RecordTable table = RecordTable.fromFolder(folder);
+        long loaded = System.currentTimeMillis();
+        Writer out = new NullWriter();
+        new ReportCompiler(table, exp).write(out);
+        long finished = System.currentTimeMillis();
+
+        System.out.println("Results:  " + table.size());
+        System.out.println("Load:     " + (loaded - start) + " ms");
+        System.out.println("Compile:  " + (finished - loaded) + " ms");
+        System.out.println("Total:    " + (finished - start) + " ms");
+        System.out.println("Threads:  " + Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Write synthetic results into a folder.
+     *
+     * @param folder The destination folder.
+     * @param count The number of results to write.
+     * @throws IOException If a file cannot be written.
+     */
+    static void generate(File folder, int count) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Could not create " + folder);
+        }
+        Random random = new Random(42);
+        int containers = Math.max(1, count / 50);
+        int vms = Math.max(1, containers / 8);
+        long time = 1_600_000_000_000L;
+        for (int i = 0; i < count; i++) {
+            int container = random.nextInt(containers);
+            int vm = container % vms;
+            long runtime = 20 + random.nextInt(400);
+            long start = time + random.nextInt(600_000);
+
+            StringWriter json = new StringWriter();
+            json.append('{');
+            field(json, "version", "0.5", false);
+            field(json, "lang", "java", true);
+            field(json, "uuid", "container-" + container, true);
+            field(json, "newcontainer", random.nextInt(50) == 0 ? "1" : "0", false);
+            field(json, "vmuptime", String.valueOf(1_599_000_000L + vm), false);
+            field(json, "vmID", "vm" + vm, true);
+            field(json, "cpuType", CPU_TYPES[vm % CPU_TYPES.length], true);
+            field(json, "cpuModel", String.valueOf(63 + vm % 3), true);
+            field(json, "totalMemory", "3999920", true);
+            field(json, "freeMemory", String.valueOf(3_000_000 + random.nextInt(900_000)), true);
+            field(json, "cpuUsrDelta", String.valueOf(random.nextInt(300)), false);
+            field(json, "cpuKrnDelta", String.valueOf(random.nextInt(60)), false);
+            field(json, "cpuIdleDelta", String.valueOf(random.nextInt(2000)), false);
+            field(json, "vmcpustealDelta", String.valueOf(random.nextInt(20)), false);
+            field(json, "pageFaultsDelta", String.valueOf(random.nextInt(5000)), false);
+            field(json, "contextSwitchesDelta", String.valueOf(random.nextInt(4000)), false);
+            field(json, "frameworkRuntime", String.valueOf(random.nextInt(40)), false);
+            field(json, "runtime", String.valueOf(runtime), false);
+            field(json, "latency", String.valueOf(runtime + random.nextInt(100) + random.nextDouble()), false);
+            field(json, "startTime", String.valueOf(start), false);
+            field(json, "endTime", String.valueOf(start + runtime), false);
+            field(json, "functionName", "hello", true);
+            field(json, "1_run_id", String.valueOf(i), false);
+            field(json, "2_thread_id", String.valueOf(i % 50), false);
+            json.append("\"message\":\"Hello Bob!\"}");
+
+            try (Writer writer = new BufferedWriter(Files.newBufferedWriter(
+                    new File(folder, "run" + i + ".json").toPath(), StandardCharsets.UTF_8))) {
+                writer.write(json.toString());
+            }
+        }
+    }
+
+    private static void field(StringWriter json, String key, String value, boolean quote) {
+        json.append('"').append(key).append("\":");
+        if (quote) {
+            json.append('"').append(value).append('"');
+        } else {
+            json.append(value);
+        }
+        json.append(',');
+    }
+
+    /**
+     * Discards the report so only compile time is measured.
+     */
+    private static class NullWriter extends Writer {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
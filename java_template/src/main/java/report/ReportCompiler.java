@@ -0,0 +1,803 @@
+package report;
+
+import com.google.gson.stream.JsonReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Compile a folder of Inspector results into a CSV report.
+ *
+ * A Java port of test/compile_results.py and report() in
+ * test/tools/report_generator.py that produces the same CSV layout. Records
+ * are parsed and aggregated in parallel, runtimeOverlap is computed with a
+ * sorted sweep instead of comparing every pair of runs, and group sums of
+ * integer attributes are accumulated as primitive longs.
+ *
+ * runtimeOverlap is computed from exact integer sums, so a value that falls
+ * on a rounding boundary may differ in the last digit from the Python float
+ * sum. Every other cell matches report_generator.py.
+ *
+ * Usage: java report.ReportCompiler {FOLDER PATH} {PATH TO EXPERIMENT JSON}
+ */
+public class ReportCompiler {
+
+    private static final Long MISSING = -999999999999L;
+
+    private final RecordTable table;
+    private final Map<String, Object> exp;
+
+    private final List<String> categories;
+    private final Set<String> listRunsOfCategory;
+    private final Set<String> listCategory;
+    private final Set<String> sumCategory;
+    private final Set<String> ignoreAttributes;
+    private final Set<String> ignoreFromAllCategories;
+    private final Map<String, Set<String>> ignoreFromSpecificCategories;
+
+    private int[] active;
+
+    /**
+     * Create a compiler for a set of records.
+     *
+     * @param table The records to report on.
+     * @param exp The experiment, with missing keys filled by withDefaults.
+     */
+    ReportCompiler(RecordTable table, Map<String, Object> exp) {
+        this.table = table;
+        this.exp = exp;
+        this.categories = strings(exp.get("outputGroups"));
+        this.listRunsOfCategory = new HashSet<>(strings(exp.get("outputRawOfGroup")));
+        this.listCategory = new HashSet<>(strings(exp.get("showAsList")));
+        this.sumCategory = new HashSet<>(strings(exp.get("showAsSum")));
+        this.ignoreAttributes = new HashSet<>(strings(exp.get("ignoreFromAll")));
+        this.ignoreFromAllCategories = new HashSet<>(strings(exp.get("ignoreFromGroups")));
+        this.ignoreFromSpecificCategories = new HashMap<>();
+        Object byGroup = exp.get("ignoreByGroup");
+        if (byGroup instanceof Map) {
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) byGroup).entrySet()) {
+                ignoreFromSpecificCategories.put(String.valueOf(e.getKey()), new HashSet<>(strings(e.getValue())));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Please supply parameteres! Usage:\njava report.ReportCompiler {FOLDER PATH} {PATH TO EXPERIMENT JSON}");
+            return;
+        }
+        String folderName = args[0];
+        String experimentFile = args[1];
+
+        System.out.println("Generating Report...");
+        String expName = new File(experimentFile).getName().replace(".json", "");
+        Map<String, Object> exp = withDefaults(readExperiment(new File(experimentFile)));
+
+        long start = System.currentTimeMillis();
+        RecordTable table = RecordTable.fromFolder(new File(folderName));
+        if (table.size() == 0) {
+            System.out.println("No results found in " + folderName);
+            return;
+        }
+        long loaded = System.currentTimeMillis();
+
+        File output = outputFile(folderName + "/" + "compiled-results-" + expName);
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8), 1 << 16)) {
+            new ReportCompiler(table, exp).write(writer);
+        }
+        long finished = System.currentTimeMillis();
+
+        System.out.println("Loaded " + table.size() + " results in " + (loaded - start) + " ms, compiled report in "
+                + (finished - loaded) + " ms.");
+        System.out.println("File created: " + output);
+    }
+
+    /**
+     * Read an experiment JSON file.
+     *
+     * @param file The experiment file.
+     * @return The experiment attributes.
+     * @throws IOException If the file cannot be read.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> readExperiment(File file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            Object exp = RecordTable.readValue(new JsonReader(reader));
+            if (!(exp instanceof Map)) {
+                throw new IOException("Experiment is not a JSON object: " + file);
+            }
+            return (Map<String, Object>) exp;
+        }
+    }
+
+    /**
+     * Fill in experiment attributes that were not supplied, using the same
+     * defaults as compile_results.py.
+     *
+     * @param exp The experiment.
+     * @return The experiment.
+     */
+    static Map<String, Object> withDefaults(Map<String, Object> exp) {
+        Map<String, Object> defaults = new LinkedHashMap<>();
+        defaults.put("memorySettings", new ArrayList<>());
+        defaults.put("parentPayload", new LinkedHashMap<>());
+        defaults.put("payloads", new ArrayList<>(Collections.singletonList(new LinkedHashMap<>())));
+        defaults.put("runs", 10L);
+        defaults.put("threads", 10L);
+        defaults.put("outputGroups", new ArrayList<>());
+        defaults.put("outputRawOfGroup", new ArrayList<>());
+        defaults.put("showAsList", new ArrayList<>());
+        defaults.put("showAsSum", new ArrayList<>());
+        defaults.put("ignoreFromAll", new ArrayList<>());
+        defaults.put("ignoreFromGroups", new ArrayList<>());
+        defaults.put("ignoreByGroup", new ArrayList<>());
+        defaults.put("invalidators", new LinkedHashMap<>());
+        defaults.put("removeDuplicateContainers", false);
+        defaults.put("overlapFilter", "");
+        for (Map.Entry<String, Object> e : defaults.entrySet()) {
+            if (!exp.containsKey(e.getKey())) {
+                exp.put(e.getKey(), e.getValue());
+            }
+        }
+        return exp;
+    }
+
+    /**
+     * Pick a file name that does not overwrite an earlier report, like write_file.
+     */
+    private static File outputFile(String baseFileName) {
+        if (new File(baseFileName + ".csv").isFile()) {
+            int duplicates = 1;
+            while (new File(baseFileName + "-" + duplicates + ".csv").isFile()) {
+                duplicates++;
+            }
+            baseFileName += "-" + duplicates;
+        }
+        return new File(baseFileName + ".csv");
+    }
+
+    /**
+     * Write the report.
+     *
+     * @param out The destination of the CSV text.
+     * @throws IOException If writing fails.
+     */
+    void write(Writer out) throws IOException {
+        if (table.column("vmID") >= 0 && categories.contains("vmuptime")) {
+            categories.remove("vmuptime");
+            listCategory.remove("vmuptime");
+        }
+        if (table.column("containerID") >= 0 && categories.contains("uuid")) {
+            categories.remove("uuid");
+            listCategory.remove("uuid");
+        }
+
+        fillMissingKeys();
+        insertRuntimeOverlap();
+        insertPipelineMetrics();
+
+        //Print starter information.
+        long threads = asLong(exp.get("threads"));
+        long runs = asLong(exp.get("runs"));
+        long runsPerThread = threads == 0 ? 0 : (long) ((double) runs / threads);
+        out.write(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS000").format(new Date())
+                + " - Java Partest Version 0.5\n");
+        out.write("Setting up test: runsperthread=" + runsPerThread + " threads=" + PyFormat.str(exp.get("threads"))
+                + " totalruns=" + PyFormat.str(exp.get("runs")) + " payload="
+                + PyFormat.str(exp.get("payloads")).replace(",", "") + "\n");
+
+        //Raw results of each run.
+        List<Integer> keyList = sortedColumns(0);
+        out.write("\n");
+        out.write("Raw results of each run:\n");
+        StringBuilder header = new StringBuilder();
+        for (int column : keyList) {
+            if (!ignoreAttributes.contains(table.name(column))) {
+                header.append(table.name(column)).append(',');
+            }
+        }
+        out.write(trim(header) + "\n");
+        StringBuilder line = new StringBuilder();
+        for (int row = 0; row < table.size(); row++) {
+            line.setLength(0);
+            for (int column : keyList) {
+                if (!ignoreAttributes.contains(table.name(column))) {
+                    Object value = table.get(row, column);
+                    line.append(value == null ? "NONE" : PyFormat.str(value)).append(',');
+                }
+            }
+            out.write(trim(line));
+            out.write('\n');
+        }
+        out.write("Successful Runs: " + table.size() + "\n");
+
+        int invalid = removeInvalidRuns();
+        if (invalid > 0) {
+            out.write("\n" + invalid + " runs removed from categories....\n");
+        }
+
+        insertTenancy();
+        writeCategories(out);
+    }
+
+    /**
+     * Give every run every attribute, filling the gaps with -999999999999.
+     */
+    private void fillMissingKeys() {
+        final int columns = table.columnCount();
+        IntStream.range(0, table.size()).parallel().forEach(row -> {
+            for (int column = 0; column < columns; column++) {
+                if (!table.has(row, column)) {
+                    table.set(row, column, MISSING);
+                }
+            }
+        });
+    }
+
+    /**
+     * Insert runtimeOverlap: the sum over every other run of the fraction of
+     * this run's lifetime that the other run was also executing.
+     *
+     * The Python version compares every pair of runs. Here each overlap filter
+     * group sorts its start and end times once, so the overlap of a run with
+     * all others is F(end) - F(start) - own length, where F(x) is the total time
+     * spent by all runs before x, found by binary search over prefix sums.
+     */
+    private void insertRuntimeOverlap() {
+        final int startColumn = table.column("startTime");
+        final int endColumn = table.column("endTime");
+        if (startColumn < 0 || endColumn < 0) {
+            return;
+        }
+        final int overlapColumn = table.columnFor("runtimeOverlap");
+        final long[] starts = new long[table.size()];
+        final long[] ends = new long[table.size()];
+        for (int row = 0; row < table.size(); row++) {
+            Long start = toInt(table.get(row, startColumn));
+            Long end = toInt(table.get(row, endColumn));
+            if (start == null || end == null) {
+                System.err.println("Could not calculate runtimeOverlap, startTime or endTime is not an integer.");
+                return;
+            }
+            starts[row] = start;
+            ends[row] = end;
+        }
+
+        //Group runs by the overlap filter; runs without the attribute overlap nothing.
+        String filter = PyFormat.str(exp.get("overlapFilter"));
+        Map<Object, List<Integer>> groups = new LinkedHashMap<>();
+        if (exp.get("overlapFilter") == PyFormat.NONE || filter.isEmpty()) {
+            List<Integer> all = new ArrayList<>();
+            for (int row = 0; row < table.size(); row++) {
+                all.add(row);
+            }
+            groups.put(Boolean.TRUE, all);
+        } else {
+            int filterColumn = table.column(filter);
+            for (int row = 0; row < table.size(); row++) {
+                if (filterColumn < 0) {
+                    table.set(row, overlapColumn, "0");
+                } else {
+                    Object key = PyFormat.equalityKey(table.get(row, filterColumn));
+                    List<Integer> group = groups.get(key);
+                    if (group == null) {
+                        group = new ArrayList<>();
+                        groups.put(key, group);
+                    }
+                    group.add(row);
+                }
+            }
+        }
+
+        for (List<Integer> group : groups.values()) {
+            final int[] rows = group.stream().mapToInt(Integer::intValue).toArray();
+            if (rows.length == 1) {
+                table.set(rows[0], overlapColumn, "0");
+                continue;
+            }
+            long base = Long.MAX_VALUE;
+            for (int row : rows) {
+                base = Math.min(base, Math.min(starts[row], ends[row]));
+            }
+            final long[] sortedStarts = new long[rows.length];
+            final long[] sortedEnds = new long[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                sortedStarts[i] = starts[rows[i]] - base;
+                sortedEnds[i] = ends[rows[i]] - base;
+            }
+            Arrays.sort(sortedStarts);
+            Arrays.sort(sortedEnds);
+            final long[] startSums = prefixSums(sortedStarts);
+            final long[] endSums = prefixSums(sortedEnds);
+            final long offset = base;
+
+            IntStream.range(0, rows.length).parallel().forEach(i -> {
+                int row = rows[i];
+                long start = starts[row] - offset;
+                long end = ends[row] - offset;
+                double totalDist = 0;
+                if (end >= start) {
+                    long others = busyTime(end, sortedStarts, startSums, sortedEnds, endSums)
+                            - busyTime(start, sortedStarts, startSums, sortedEnds, endSums)
+                            - (end - start);
+                    totalDist = (double) others / Math.max(end - start, 1);
+                }
+                table.set(row, overlapColumn, PyFormat.floatRepr(PyFormat.round2(totalDist)));
+            });
+        }
+    }
+
+    private static long[] prefixSums(long[] values) {
+        long[] sums = new long[values.length + 1];
+        for (int i = 0; i < values.length; i++) {
+            sums[i + 1] = sums[i] + values[i];
+        }
+        return sums;
+    }
+
+    /**
+     * Total time all runs of a group spent executing before x.
+     */
+    private static long busyTime(long x, long[] starts, long[] startSums, long[] ends, long[] endSums) {
+        int started = lowerBound(starts, x);
+        int ended = lowerBound(ends, x);
+        return (started * x - startSums[started]) - (ended * x - endSums[ended]);
+    }
+
+    /**
+     * @return The number of values strictly less than x.
+     */
+    private static int lowerBound(long[] sorted, long x) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < x) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Insert cumulative Pipeline attributes when runs are stages of a pipeline.
+     * Runs are indexed by run id and thread id and every numeric attribute is
+     * summed over the earlier stages as {attribute}Pipeline.
+     */
+    private void insertPipelineMetrics() {
+        int stageColumn = table.column("3_pipeline_stage");
+        if (stageColumn < 0) {
+            return;
+        }
+        int runColumn = table.column("1_run_id");
+        int threadColumn = table.column("2_thread_id");
+        int indexColumn = table.columnFor("index");
+
+        //Distribute runs by run and thread id, keeping the last run of a stage.
+        Map<List<Long>, Map<Long, Integer>> pipelines = new LinkedHashMap<>();
+        for (int row = 0; row < table.size(); row++) {
+            Long run = toInt(table.get(row, runColumn));
+            Long thread = toInt(table.get(row, threadColumn));
+            Long stage = toInt(table.get(row, stageColumn));
+            table.set(row, indexColumn, (long) row);
+            if (run == null || thread == null || stage == null) {
+                continue;
+            }
+            List<Long> key = Arrays.asList(run, thread);
+            Map<Long, Integer> stages = pipelines.get(key);
+            if (stages == null) {
+                stages = new HashMap<>();
+                pipelines.put(key, stages);
+            }
+            stages.put(stage, row);
+        }
+
+        int columns = table.columnCount();
+        int[] pipelineColumns = new int[columns];
+        for (int column = 0; column < columns; column++) {
+            pipelineColumns[column] = table.columnFor(table.name(column) + "Pipeline");
+        }
+
+        for (Map<Long, Integer> stages : pipelines.values()) {
+            List<Long> order = new ArrayList<>(stages.keySet());
+            Collections.sort(order);
+            int previous = -1;
+            for (Long stage : order) {
+                int row = stages.get(stage);
+                for (int column = 0; column < columns; column++) {
+                    Double value = PyFormat.toFloat(table.get(row, column));
+                    if (value == null) {
+                        continue;
+                    }
+                    double sum = PyFormat.round2(value);
+                    Object before = previous < 0 ? null : table.get(previous, pipelineColumns[column]);
+                    if (before instanceof Double) {
+                        sum += (Double) before;
+                    }
+                    table.set(row, pipelineColumns[column], sum);
+                }
+                previous = row;
+            }
+        }
+    }
+
+    /**
+     * Remove runs from the category breakdown that match an invalidator or
+     * reuse a container when removeDuplicateContainers is set.
+     *
+     * @return The number of removals reported by the Python version.
+     */
+    private int removeInvalidRuns() {
+        boolean removeDuplicates = Boolean.TRUE.equals(exp.get("removeDuplicateContainers"));
+        Map<String, String> invalidators = new LinkedHashMap<>();
+        Object inv = exp.get("invalidators");
+        if (inv instanceof Map) {
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) inv).entrySet()) {
+                invalidators.put(String.valueOf(e.getKey()), PyFormat.str(e.getValue()));
+            }
+        }
+
+        int uuidColumn = table.column("uuid");
+        Set<Object> containers = new HashSet<>();
+        boolean[] removed = new boolean[table.size()];
+        int count = 0;
+        for (int row = 0; row < table.size(); row++) {
+            if (removeDuplicates) {
+                Object uuid = PyFormat.equalityKey(table.get(row, uuidColumn));
+                if (!containers.add(uuid)) {
+                    removed[row] = true;
+                    count++;
+                }
+            }
+            for (Map.Entry<String, String> e : invalidators.entrySet()) {
+                Object value = table.get(row, table.column(e.getKey()));
+                if (value != null && PyFormat.str(value).equals(e.getValue())) {
+                    removed[row] = true;
+                    count++;
+                }
+            }
+        }
+        active = IntStream.range(0, table.size()).filter(row -> !removed[row]).toArray();
+        return count;
+    }
+
+    /**
+     * Insert zTenancy and tenants attributes: the CPU type and number of runs
+     * that shared a VM.
+     */
+    private void insertTenancy() {
+        if (!categories.contains("zTenancy[vmID[iteration]]") && !categories.contains("zTenancy[vmID]")) {
+            return;
+        }
+        int cpuTypeColumn = table.column("cpuType");
+        boolean valid = true;
+        for (String attribute : new String[]{"vmID", "vmID[iteration]"}) {
+            int column = table.column(attribute);
+            Map<Object, long[]> uses = new HashMap<>();
+            Map<Object, Object> cpuTypes = new HashMap<>();
+            for (int row : active) {
+                Object value = table.get(row, column);
+                if (value == null) {
+                    valid = false;
+                    break;
+                }
+                Object key = PyFormat.equalityKey(value);
+                long[] count = uses.get(key);
+                if (count == null) {
+                    uses.put(key, new long[]{1});
+                    Object cpuType = table.get(row, cpuTypeColumn);
+                    cpuTypes.put(key, cpuType == null ? PyFormat.NONE : cpuType);
+                } else {
+                    count[0]++;
+                }
+            }
+            if (valid) {
+                int tenancyColumn = table.columnFor("zTenancy[" + attribute + "]");
+                int tenantsColumn = table.columnFor("tenants[" + attribute + "]");
+                for (int row : active) {
+                    Object key = PyFormat.equalityKey(table.get(row, column));
+                    long count = uses.get(key)[0];
+                    table.set(row, tenancyColumn, PyFormat.str(cpuTypes.get(key)) + " - " + count);
+                    table.set(row, tenantsColumn, count);
+                }
+                if (attribute.equals("vmID[iteration]")) {
+                    //Tenancy over several iterations double counts, zTenancy[vmID[iteration]] should be used.
+                    categories.remove("zTenancy[vmID]");
+                }
+            }
+        }
+    }
+
+    /**
+     * A group of runs sharing one value of a category attribute.
+     */
+    private static class Group {
+        final Object key;
+        int[] rows = new int[4];
+        int size = 0;
+
+        Group(Object key) {
+            this.key = key;
+        }
+
+        void add(int row) {
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size++] = row;
+        }
+    }
+
+    private void writeCategories(Writer out) throws IOException {
+        Map<String, List<Group>> keyMap = new LinkedHashMap<>();
+        for (String category : categories) {
+            keyMap.put(category, groupBy(category));
+        }
+
+        for (String category : PyFormat.sortedNames(keyMap.keySet())) {
+            List<Group> groups = keyMap.get(category);
+            if (groups.isEmpty()) {
+                continue;
+            }
+            out.write("\n");
+            out.write("Category " + category + ":\n");
+
+            //Build CSV header line from the first run of the first group.
+            int first = groups.get(0).rows[0];
+            StringBuilder header = new StringBuilder(category + ",uses,");
+            List<Integer> numberAttributes = new ArrayList<>();
+            for (int column : sortedColumns(first)) {
+                String attribute = table.name(column);
+                if (!validForCategory(category, attribute)) {
+                    continue;
+                }
+                if (listCategory.contains(attribute)) {
+                    header.append(attribute).append("_list,");
+                    numberAttributes.add(column);
+                } else if (PyFormat.toDecimal(table.get(first, column)) != null) {
+                    header.append(sumCategory.contains(attribute) ? "sum_" : "avg_").append(attribute).append(',');
+                    numberAttributes.add(column);
+                }
+            }
+            out.write(trim(header) + "\n");
+
+            final List<Group> sorted = sortGroups(groups);
+
+            //Aggregate every attribute of every group in parallel.
+            final int[] columns = numberAttributes.stream().mapToInt(Integer::intValue).toArray();
+            final String[][] cells = new String[sorted.size()][columns.length];
+            IntStream.range(0, sorted.size() * columns.length).parallel().forEach(task -> {
+                int g = task / columns.length;
+                int a = task % columns.length;
+                cells[g][a] = aggregate(sorted.get(g), columns[a]);
+            });
+
+            StringBuilder line = new StringBuilder();
+            for (int g = 0; g < sorted.size(); g++) {
+                line.setLength(0);
+                line.append(PyFormat.str(sorted.get(g).key)).append(',').append(sorted.get(g).size).append(',');
+                for (String cell : cells[g]) {
+                    line.append(cell).append(',');
+                }
+                out.write(trim(line) + "\n");
+            }
+            out.write("Total number of unique " + category + "s: " + sorted.size() + "\n");
+
+            if (listRunsOfCategory.contains(category)) {
+                writeRunsOfGroups(out, category, sorted);
+            }
+        }
+    }
+
+    private List<Group> groupBy(String category) {
+        List<Group> groups = new ArrayList<>();
+        int column = table.column(category);
+        if (column < 0) {
+            return groups;
+        }
+        Map<Object, Group> index = new HashMap<>();
+        for (int row : active) {
+            Object value = table.get(row, column);
+            if (value == null) {
+                continue;
+            }
+            Object key = PyFormat.equalityKey(value);
+            Group group = index.get(key);
+            if (group == null) {
+                group = new Group(value);
+                index.put(key, group);
+                groups.add(group);
+            }
+            group.add(row);
+        }
+        return groups;
+    }
+
+    private static List<Group> sortGroups(List<Group> groups) {
+        List<Object> keys = new ArrayList<>();
+        Map<Object, Group> byKey = new HashMap<>();
+        for (Group group : groups) {
+            keys.add(group.key);
+            byKey.put(PyFormat.equalityKey(group.key), group);
+        }
+        if (!PyFormat.sort(keys)) {
+            System.err.println("Could not sort groups, mixed value types.");
+            return groups;
+        }
+        List<Group> sorted = new ArrayList<>();
+        for (Object key : keys) {
+            sorted.add(byKey.get(PyFormat.equalityKey(key)));
+        }
+        return sorted;
+    }
+
+    /**
+     * Compute the cell for one attribute of a group: a list of unique values,
+     * a sum or an average rounded to two places. Sums follow Python's Decimal
+     * arithmetic; while every value is an integer they are kept in a long.
+     */
+    private String aggregate(Group group, int column) {
+        String attribute = table.name(column);
+        if (listCategory.contains(attribute)) {
+            List<Object> values = new ArrayList<>();
+            Set<Object> seen = new HashSet<>();
+            for (int i = 0; i < group.size; i++) {
+                Object value = table.get(group.rows[i], column);
+                if (seen.add(PyFormat.equalityKey(value))) {
+                    values.add(value);
+                }
+            }
+            PyFormat.sort(values);
+            return PyFormat.repr(values).replace(',', ';');
+        }
+
+        long longTotal = 0;
+        BigDecimal total = null;
+        boolean summed = false;
+        for (int i = 0; i < group.size; i++) {
+            Object value = table.get(group.rows[i], column);
+            if (total == null && value instanceof Long) {
+                long l = (Long) value;
+                long r = longTotal + l;
+                if (((longTotal ^ r) & (l ^ r)) >= 0) {
+                    longTotal = r;
+                    summed = true;
+                    continue;
+                }
+            }
+            BigDecimal decimal = PyFormat.toDecimal(value);
+            if (decimal == null) {
+                continue;
+            }
+            if (total == null) {
+                total = BigDecimal.valueOf(longTotal);
+            }
+            total = total.add(decimal, PyFormat.DECIMAL);
+            summed = true;
+        }
+        if (total == null) {
+            total = BigDecimal.valueOf(longTotal);
+        }
+
+        if (sumCategory.contains(attribute)) {
+            return total.toString();
+        }
+        if (!summed) {
+            return "0.0";
+        }
+        BigDecimal average = total.divide(BigDecimal.valueOf(group.size), PyFormat.DECIMAL);
+        BigDecimal rounded = average.setScale(2, RoundingMode.HALF_EVEN);
+        return rounded.signum() == 0 && average.signum() < 0 ? "-" + rounded : rounded.toString();
+    }
+
+    private void writeRunsOfGroups(Writer out, String category, List<Group> groups) throws IOException {
+        out.write("\n--- Runs of Group " + category + " ---\n");
+        StringBuilder line = new StringBuilder();
+        for (Group group : groups) {
+            out.write("\nCategory " + category + " with " + PyFormat.str(group.key) + ":\n");
+            List<Integer> columns = new ArrayList<>();
+            for (int column : sortedColumns(group.rows[0])) {
+                if (validForCategory(category, table.name(column))) {
+                    columns.add(column);
+                }
+            }
+            line.setLength(0);
+            for (int column : columns) {
+                line.append(table.name(column)).append(',');
+            }
+            out.write(trim(line) + "\n");
+            for (int i = 0; i < group.size; i++) {
+                line.setLength(0);
+                for (int column : columns) {
+                    Object value = table.get(group.rows[i], column);
+                    line.append(value == null ? "NONE" : PyFormat.str(value)).append(',');
+                }
+                out.write(trim(line) + "\n");
+            }
+        }
+    }
+
+    private boolean validForCategory(String category, String attribute) {
+        if (ignoreAttributes.contains(attribute) || ignoreFromAllCategories.contains(attribute)) {
+            return false;
+        }
+        Set<String> specific = ignoreFromSpecificCategories.get(category);
+        return specific == null || !specific.contains(attribute);
+    }
+
+    /**
+     * @return The columns a run has, sorted by attribute name.
+     */
+    private List<Integer> sortedColumns(int row) {
+        Map<String, Integer> byName = new HashMap<>();
+        for (int column = 0; column < table.columnCount(); column++) {
+            if (table.has(row, column)) {
+                byName.put(table.name(column), column);
+            }
+        }
+        List<Integer> columns = new ArrayList<>();
+        for (String name : PyFormat.sortedNames(byName.keySet())) {
+            columns.add(byName.get(name));
+        }
+        return columns;
+    }
+
+    private static String trim(StringBuilder sb) {
+        return sb.length() == 0 ? "" : sb.substring(0, sb.length() - 1);
+    }
+
+    /**
+     * Python int() of a value.
+     */
+    private static Long toInt(Object value) {
+        if (value instanceof Long) {
+            return (Long) value;
+        } else if (value instanceof Double) {
+            return (long) (double) (Double) value;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? 1L : 0L;
+        } else if (value instanceof String) {
+            try {
+                return Long.parseLong(((String) value).trim().replace("_", ""));
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static long asLong(Object value) {
+        Double d = PyFormat.toFloat(value);
+        return d == null ? 0 : (long) (double) d;
+    }
+
+    private static List<String> strings(Object value) {
+        List<String> strings = new ArrayList<>();
+        if (value instanceof List) {
+            for (Object o : (List<?>) value) {
+                strings.add(PyFormat.str(o));
+            }
+        }
+        return strings;
+    }
+}
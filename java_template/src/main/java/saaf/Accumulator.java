@@ -0,0 +1,188 @@
+package saaf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Container scoped accumulator that folds every Inspector result into
+ * mergeable summaries. Runtime attributes are kept in histograms and delta
+ * attributes in counters, so the size of a summary does not grow with the
+ * number of invocations a container serves.
+ *
+ * The accumulator is shared by all Inspectors in the JVM. Set the
+ * SAAF_ACCUMULATOR_INTERVAL environment variable to attach the summary to
+ * every n-th result, or call summary() to report it on demand. Summaries are
+ * cumulative and carry the container's uuid, so when several reports of one
+ * container are collected only the one with the most invocations should be
+ * merged.
+ */
+public class Accumulator {
+
+    private static final String[] HISTOGRAMS = {"runtime", "frameworkRuntime", "userRuntime"};
+
+    private static final String[] COUNTERS = {"pageFaultsDelta", "majorPageFaultsDelta",
+        "contextSwitchesDelta", "cpuUsrDelta", "cpuKrnDelta", "cpuIdleDelta", "vmcpustealDelta",
+        "jvmGCTimeDelta", "jvmCompilationTimeDelta", "jvmAllocatedBytesDelta", "psiCPUSomeDelta",
+        "psiMemorySomeDelta", "psiIOSomeDelta", "schedWaitTimeDelta", "ioReadBytesDelta", "ioWriteBytesDelta",
+        "netRxBytesDelta", "netTxBytesDelta"};
+
+    private static final Accumulator INSTANCE = new Accumulator(interval(System.getenv("SAAF_ACCUMULATOR_INTERVAL")));
+
+    private final Histogram[] histograms = new Histogram[HISTOGRAMS.length];
+    private final long[] counters = new long[COUNTERS.length];
+    private final long[] counterSamples = new long[COUNTERS.length];
+    private final int reportInterval;
+    private long invocations = 0;
+    private long newContainers = 0;
+    private long containers = 0;
+    private String uuid = null;
+
+    /**
+     * Create an accumulator.
+     *
+     * @param reportInterval Report the summary every reportInterval
+     * invocations. Values below 1 disable periodic reports.
+     */
+    public Accumulator(int reportInterval) {
+        this.reportInterval = reportInterval;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * @return The accumulator shared by all Inspectors in this JVM.
+     */
+    public static Accumulator getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Fold an Inspector result into the summaries.
+     *
+     * @param attributes The attributes returned by Inspector.finish().
+     * @return Whether a periodic report is due for this invocation.
+     */
+    public synchronized boolean record(Map<String, Object> attributes) {
+        invocations++;
+        if (uuid == null) {
+            Object id = attributes.get("uuid");
+            uuid = id != null ? id.toString() : UUID.randomUUID().toString();
+        }
+        if (Integer.valueOf(1).equals(attributes.get("newcontainer"))) {
+            newContainers++;
+        }
+        for (int i = 0; i < HISTOGRAMS.length; i++) {
+            Object value = attributes.get(HISTOGRAMS[i]);
+            if (value instanceof Number) {
+                histograms[i].record(((Number) value).longValue());
+            }
+        }
+        for (int i = 0; i < COUNTERS.length; i++) {
+            Object value = attributes.get(COUNTERS[i]);
+            if (value instanceof Number) {
+                counters[i] += ((Number) value).longValue();
+                counterSamples[i]++;
+            }
+        }
+        return reportInterval > 0 && invocations % reportInterval == 0;
+    }
+
+    /**
+     * Build a summary of everything recorded so far.
+     *
+     * uuid:          The container's uuid, if this accumulator recorded results.
+     * containers:    The number of containers the summary covers.
+     * invocations:   The number of results recorded.
+     * newContainers: The number of results that started a new container.
+     * runtime, frameworkRuntime, userRuntime: Histograms as produced by Histogram.toMap().
+     * counters:      Sum and sample count of each delta attribute.
+     *
+     * @return A map that can be returned as JSON and merged with merge().
+     */
+    public synchronized HashMap<String, Object> summary() {
+        HashMap<String, Object> summary = new HashMap<>();
+        if (uuid != null) {
+            summary.put("uuid", uuid);
+        }
+        summary.put("containers", containers + (uuid != null ? 1 : 0));
+        summary.put("invocations", invocations);
+        summary.put("newContainers", newContainers);
+        for (int i = 0; i < HISTOGRAMS.length; i++) {
+            summary.put(HISTOGRAMS[i], histograms[i].toMap());
+        }
+        HashMap<String, Object> counterMap = new HashMap<>();
+        for (int i = 0; i < COUNTERS.length; i++) {
+            HashMap<String, Object> counter = new HashMap<>();
+            counter.put("sum", counters[i]);
+            counter.put("samples", counterSamples[i]);
+            counter.put("mean", counterSamples[i] == 0 ? 0 : (double) counters[i] / counterSamples[i]);
+            counterMap.put(COUNTERS[i], counter);
+        }
+        summary.put("counters", counterMap);
+        return summary;
+    }
+
+    /**
+     * Merge a summary, possibly from another container, into this accumulator.
+     * Merging several cumulative summaries of the same container counts its
+     * invocations more than once.
+     *
+     * @param summary A map created by summary(), or the same structure parsed from JSON.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void merge(Map<String, Object> summary) {
+        containers += summary.containsKey("containers") ? asLong(summary.get("containers")) : 1;
+        invocations += asLong(summary.get("invocations"));
+        newContainers += asLong(summary.get("newContainers"));
+        for (int i = 0; i < HISTOGRAMS.length; i++) {
+            Object value = summary.get(HISTOGRAMS[i]);
+            if (value instanceof Map) {
+                histograms[i].merge(Histogram.fromMap((Map<String, Object>) value));
+            }
+        }
+        Object counterMap = summary.get("counters");
+        if (counterMap instanceof Map) {
+            for (int i = 0; i < COUNTERS.length; i++) {
+                Object counter = ((Map<String, Object>) counterMap).get(COUNTERS[i]);
+                if (counter instanceof Map) {
+                    counters[i] += asLong(((Map<String, Object>) counter).get("sum"));
+                    counterSamples[i] += asLong(((Map<String, Object>) counter).get("samples"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Discard everything recorded so far.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = 0;
+            counterSamples[i] = 0;
+        }
+        invocations = 0;
+        newContainers = 0;
+        containers = 0;
+        uuid = null;
+    }
+
+    private static long asLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static int interval(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+}
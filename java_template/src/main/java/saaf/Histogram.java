@@ -0,0 +1,186 @@
+package saaf;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A mergeable log-linear histogram for non-negative long values.
+ *
+ * Values below 64 are counted exactly. Larger values are split into 32
+ * sub-buckets per power of two, bounding the relative error of reported
+ * percentiles to about 3%. Histograms with the same layout merge by adding
+ * bucket counts, so summaries from many containers can be combined offline.
+ */
+public class Histogram {
+
+    private static final int LINEAR = 64;
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = LINEAR + (63 - 6) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    /**
+     * Record a value. Negative values are clamped to zero.
+     *
+     * @param value The value to record.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Add all values recorded by another histogram to this one.
+     *
+     * @param other The histogram to merge.
+     */
+    public void merge(Histogram other) {
+        if (other.count == 0) {
+            return;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Get the value at a percentile.
+     *
+     * @param percentile A percentile between 0 and 100.
+     * @return The upper bound of the bucket holding the percentile, capped at max.
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Convert the histogram into a map that can be returned as JSON and
+     * rebuilt with fromMap.
+     *
+     * count, sum, min, max, mean, p50, p90, p99: Summary statistics.
+     * buckets: Non-empty bucket counts keyed by bucket index.
+     *
+     * @return A map representation of the histogram.
+     */
+    public HashMap<String, Object> toMap() {
+        HashMap<String, Object> map = new HashMap<>();
+        map.put("count", count);
+        map.put("sum", sum);
+        map.put("min", getMin());
+        map.put("max", max);
+        map.put("mean", getMean());
+        map.put("p50", getPercentile(50));
+        map.put("p90", getPercentile(90));
+        map.put("p99", getPercentile(99));
+
+        HashMap<String, Long> buckets = new HashMap<>();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] != 0) {
+                buckets.put(String.valueOf(i), counts[i]);
+            }
+        }
+        map.put("buckets", buckets);
+        return map;
+    }
+
+    /**
+     * Rebuild a histogram from the output of toMap. Numbers may be any
+     * Number type so maps parsed from JSON can be used directly.
+     *
+     * @param map A map created by toMap.
+     * @return The rebuilt histogram.
+     */
+    public static Histogram fromMap(Map<String, Object> map) {
+        Histogram h = new Histogram();
+        Object buckets = map.get("buckets");
+        if (buckets instanceof Map) {
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) buckets).entrySet()) {
+                int i = Integer.parseInt(String.valueOf(e.getKey()));
+                if (i >= 0 && i < BUCKETS) {
+                    h.counts[i] += ((Number) e.getValue()).longValue();
+                }
+            }
+        }
+        h.count = asLong(map.get("count"));
+        h.sum = asLong(map.get("sum"));
+        h.min = h.count == 0 ? Long.MAX_VALUE : asLong(map.get("min"));
+        h.max = asLong(map.get("max"));
+        return h;
+    }
+
+    private static long asLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 6) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int exponent = (index - LINEAR) / SUB_BUCKETS + 6;
+        long sub = (index - LINEAR) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+}
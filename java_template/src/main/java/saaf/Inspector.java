@@ -1,5 +1,6 @@
 package saaf;
 
+import com.google.gson.Gson;
 import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
@@ -7,19 +8,35 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
 
 /**
@@ -30,14 +47,99 @@ import java.util.stream.Collectors;
  */
 public class Inspector {
 
+    //Collector bits used to build inspection profiles.
+    public static final int CONTAINER = 1;
+    public static final int PLATFORM = 1 << 1;
+    public static final int LINUX = 1 << 2;
+    public static final int MEMORY = 1 << 3;
+    public static final int CPU = 1 << 4;
+    public static final int JVM = 1 << 5;
+    public static final int CGROUP = 1 << 6;
+    public static final int PRESSURE = 1 << 7;
+    public static final int TENANCY = 1 << 8;
+    public static final int PERF = 1 << 9;
+    public static final int IO = 1 << 10;
+
+    //Predefined inspection profiles.
+    public static final int PROFILE_MINIMAL = 0;
+    public static final int PROFILE_STANDARD = CONTAINER | MEMORY | CPU | JVM | CGROUP | PRESSURE
+            | TENANCY | IO;
+    //PERF launches a helper process, so it is opt-in and not part of the full profile.
+    public static final int PROFILE_FULL = CONTAINER | PLATFORM | LINUX | MEMORY | CPU | JVM | CGROUP | PRESSURE
+            | TENANCY | IO;
+    private static final int COLLECTORS = PROFILE_FULL | PERF;
+
+    //JVM management beans, looked up once per container.
+    private static final List<GarbageCollectorMXBean> GC_BEANS = ManagementFactory.getGarbageCollectorMXBeans();
+    private static final CompilationMXBean COMPILATION_BEAN = ManagementFactory.getCompilationMXBean();
+    private static final MemoryMXBean MEMORY_BEAN = ManagementFactory.getMemoryMXBean();
+    private static final ClassLoadingMXBean CLASS_BEAN = ManagementFactory.getClassLoadingMXBean();
+    private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+    //cgroup version (0 if none) and the cgroup of this process for each controller.
+    private static final int CGROUP_VERSION = new File("/sys/fs/cgroup/cgroup.controllers").exists() ? 2
+            : new File("/sys/fs/cgroup/memory").isDirectory() ? 1 : 0;
+    private static final Map<String, String> CGROUP_PATHS = readCgroupPaths();
+
+    //cgroup attributes that are counters and get a Delta attribute.
+    private static final String[] CGROUP_COUNTERS = {"cgroupMemoryCurrent", "cgroupPageFaults",
+        "cgroupMajorPageFaults", "cgroupCPUUsage", "cgroupCPUUser", "cgroupCPUSystem", "cgroupCPUPeriods",
+        "cgroupCPUThrottled", "cgroupCPUThrottledTime", "cgroupIOReadBytes", "cgroupIOWriteBytes",
+        "cgroupIOReadOps", "cgroupIOWriteOps"};
+
+    //Whole block devices; partitions are not listed in /sys/block.
+    private static final List<String> BLOCK_DEVICES = listBlockDevices();
+
+    //Host fingerprint of this container, recomputed when boot_id changes, and invocations seen per host.
+    private static String hostBootID = null;
+    private static String hostID = null;
+    private static final LinkedHashMap<String, Long> HOST_INVOCATIONS = new LinkedHashMap<>();
+
+    //Container wide defaults, read once from SAAF_PROFILE and SAAF_SAMPLE_RATE.
+    private static final int DEFAULT_PROFILE = parseProfile(System.getenv("SAAF_PROFILE"), PROFILE_FULL);
+    private static final int DEFAULT_SAMPLE_RATE = parseSampleRate(System.getenv("SAAF_SAMPLE_RATE"), 0);
+    private static final boolean DEFAULT_ASYNC = Boolean.parseBoolean(System.getenv("SAAF_ASYNC"));
+
+    //Runs the descriptive collectors of asynchronous inspectAll calls alongside user code.
+    private static final ExecutorService BACKGROUND = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "saaf-inspector");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //File every result is appended to as a JSON line, read once from SAAF_SINK.
+    private static final String SINK = System.getenv("SAAF_SINK");
+    private static final Gson GSON = new Gson();
+
+    //Attribute values larger than this many bytes are written to disk, read once from SAAF_SPILL_THRESHOLD.
+    private static final long DEFAULT_SPILL_THRESHOLD = parseBytes(System.getenv("SAAF_SPILL_THRESHOLD"), 1048576);
+
     private final HashMap<String, Object> attributes;
     private final long startTime;
 
+    private int profile = DEFAULT_PROFILE;
+    private int sampleRate = DEFAULT_SAMPLE_RATE;
+    private int activeProfile = -1;
+    private boolean async = DEFAULT_ASYNC;
+    private Future<Inspector> background = null;
+    private long spillThreshold = DEFAULT_SPILL_THRESHOLD;
+
     private boolean inspectedCPU = false;
     private boolean inspectedMemory = false;
     private boolean inspectedContainer = false;
     private boolean inspectedPlatform = false;
     private boolean inspectedLinux = false;
+    private boolean inspectedJVM = false;
+    private boolean inspectedCgroup = false;
+    private boolean inspectedPressure = false;
+    private boolean inspectedTenancy = false;
+    private PerfStat perfStat = null;
+    private boolean inspectedIO = false;
+    private volatile Tracer tracer = null;
+    private LinkedHashMap<String, Object> resources = null;
+    private long ioStartTime;
+    private Map<String, long[]> ioDisks;
+    private Map<String, long[]> ioInterfaces;
 
     /**
      * Initialize Inspector.
@@ -55,6 +157,17 @@ public class Inspector {
         attributes.put("startTime", startTime);
     }
 
+    /**
+     * Create an Inspector that collects into an empty map, used to run
+     * descriptive collectors on the background thread and for batch items.
+     *
+     * @param startTime The start time of the Inspector it collects for.
+     */
+    private Inspector(long startTime) {
+        this.startTime = startTime;
+        attributes = new HashMap<>();
+    }
+
     /**
      * Collect information about the runtime container.
      *
@@ -85,13 +198,16 @@ public class Inspector {
             }
         } else {
             newContainer = 1;
-            try (BufferedWriter bw = Files.newBufferedWriter(p,
-                    StandardCharsets.US_ASCII, StandardOpenOption.CREATE_NEW)) {
-                uuid = UUID.randomUUID().toString();
-                bw.write(uuid);
-                bw.close();
-            } catch (IOException ioe) {
-                //sError = STAMP_ERR_WRITING_NEW_UUID;
+            //Warm-up does not stamp the container so the first real invocation is still new.
+            if (!Warmup.isWarming()) {
+                try (BufferedWriter bw = Files.newBufferedWriter(p,
+                        StandardCharsets.US_ASCII, StandardOpenOption.CREATE_NEW)) {
+                    uuid = UUID.randomUUID().toString();
+                    bw.write(uuid);
+                    bw.close();
+                } catch (IOException ioe) {
+                    //sError = STAMP_ERR_WRITING_NEW_UUID;
+                }
             }
         }
 
@@ -138,7 +254,14 @@ public class Inspector {
      */
     public void inspectCPU() {
         inspectedCPU = true;
+        inspectCPUInfo();
+        inspectCPUStat();
+    }
 
+    /**
+     * Read the CPU model from /proc/cpuinfo.
+     */
+    private void inspectCPUInfo() {
         String text;
         int start;
         int end;
@@ -184,8 +307,13 @@ public class Inspector {
             attributes.put("cpuModel", cpuModel);
             attributes.put("cpuCores", cpuCores);
         }
+    }
 
-        //Get CPU Metrics
+    /**
+     * Read the CPU time and context switch counters from /proc/stat.
+     */
+    private void inspectCPUStat() {
+        String text;
         String filename = "/proc/stat";
         File f = new File(filename);
         Path p = Paths.get(filename);
@@ -416,20 +544,1033 @@ public class Inspector {
     }
 
     /**
-     * Run all data collection methods and record framework runtime.
+     * Collect information about the Java virtual machine from the
+     * java.lang.management beans. Per collector attributes use the collector
+     * name with spaces removed, for example gcG1YoungGenerationCount.
+     *
+     * jvmGCCount:         Total number of garbage collections.
+     * jvmGCTime:          Total time spent in garbage collection in ms.
+     * gc{Name}Count:      Number of collections by one collector.
+     * gc{Name}Time:       Time spent in one collector in ms.
+     * jvmCompilationTime: Time spent in JIT compilation in ms, if supported.
+     * jvmHeapUsed:        Heap memory used in bytes.
+     * jvmNonHeapUsed:     Non-heap memory used in bytes.
+     * jvmLoadedClasses:   Number of classes currently loaded.
+     * jvmTotalLoadedClasses: Number of classes loaded since the JVM started.
+     * jvmAllocatedBytes:  Bytes allocated by the current thread, if supported.
+     */
+    public void inspectJVM() {
+        inspectedJVM = true;
+
+        long gcCount = 0;
+        long gcTime = 0;
+        for (GarbageCollectorMXBean gc : GC_BEANS) {
+            String name = "gc" + gc.getName().replace(" ", "");
+            long count = Math.max(gc.getCollectionCount(), 0);
+            long time = Math.max(gc.getCollectionTime(), 0);
+            attributes.put(name + "Count", count);
+            attributes.put(name + "Time", time);
+            gcCount += count;
+            gcTime += time;
+        }
+        attributes.put("jvmGCCount", gcCount);
+        attributes.put("jvmGCTime", gcTime);
+
+        if (COMPILATION_BEAN != null && COMPILATION_BEAN.isCompilationTimeMonitoringSupported()) {
+            attributes.put("jvmCompilationTime", COMPILATION_BEAN.getTotalCompilationTime());
+        }
+        attributes.put("jvmHeapUsed", MEMORY_BEAN.getHeapMemoryUsage().getUsed());
+        attributes.put("jvmNonHeapUsed", MEMORY_BEAN.getNonHeapMemoryUsage().getUsed());
+        attributes.put("jvmLoadedClasses", (long) CLASS_BEAN.getLoadedClassCount());
+        attributes.put("jvmTotalLoadedClasses", CLASS_BEAN.getTotalLoadedClassCount());
+
+        long allocated = getThreadAllocatedBytes();
+        if (allocated >= 0) {
+            attributes.put("jvmAllocatedBytes", allocated);
+        }
+    }
+
+    /**
+     * Compare information gained from inspectJVM to the current JVM metrics.
+     *
+     * jvmGCCountDelta:         Garbage collections since inspectJVM was called.
+     * jvmGCTimeDelta:          Time spent in garbage collection since inspectJVM was called.
+     * gc{Name}CountDelta:      Collections by one collector since inspectJVM was called.
+     * gc{Name}TimeDelta:       Time spent in one collector since inspectJVM was called.
+     * jvmCompilationTimeDelta: Time spent in JIT compilation since inspectJVM was called.
+     * jvmHeapUsedDelta:        Change in heap memory used.
+     * jvmNonHeapUsedDelta:     Change in non-heap memory used.
+     * jvmLoadedClassesDelta:   Change in the number of loaded classes.
+     * jvmAllocatedBytesDelta:  Bytes allocated by the current thread since inspectJVM was called.
+     */
+    public void inspectJVMDelta() {
+        if (inspectedJVM) {
+            long gcCount = 0;
+            long gcTime = 0;
+            for (GarbageCollectorMXBean gc : GC_BEANS) {
+                String name = "gc" + gc.getName().replace(" ", "");
+                long count = Math.max(gc.getCollectionCount(), 0);
+                long time = Math.max(gc.getCollectionTime(), 0);
+                putDelta(name + "Count", count);
+                putDelta(name + "Time", time);
+                gcCount += count;
+                gcTime += time;
+            }
+            putDelta("jvmGCCount", gcCount);
+            putDelta("jvmGCTime", gcTime);
+
+            if (COMPILATION_BEAN != null && COMPILATION_BEAN.isCompilationTimeMonitoringSupported()) {
+                putDelta("jvmCompilationTime", COMPILATION_BEAN.getTotalCompilationTime());
+            }
+            putDelta("jvmHeapUsed", MEMORY_BEAN.getHeapMemoryUsage().getUsed());
+            putDelta("jvmNonHeapUsed", MEMORY_BEAN.getNonHeapMemoryUsage().getUsed());
+            putDelta("jvmLoadedClasses", (long) CLASS_BEAN.getLoadedClassCount());
+
+            long allocated = getThreadAllocatedBytes();
+            if (allocated >= 0) {
+                putDelta("jvmAllocatedBytes", allocated);
+            }
+        } else {
+            attributes.put("SAAFJVMDeltaError", "JVM not inspected before collecting deltas!");
+        }
+    }
+
+    /**
+     * Store the difference between a value and the attribute recorded earlier
+     * under the same key as key + "Delta".
+     *
+     * @param key The attribute recorded by an inspect method.
+     * @param current The current value.
+     */
+    private void putDelta(String key, long current) {
+        Object previous = attributes.get(key);
+        if (previous instanceof Long) {
+            attributes.put(key + "Delta", current - (Long) previous);
+        }
+    }
+
+    /**
+     * @return Bytes allocated by the current thread, or -1 if the JVM does not
+     * support allocation measurement.
+     */
+    private static long getThreadAllocatedBytes() {
+        if (THREAD_BEAN instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREAD_BEAN;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Collect the resource accounting of the function's cgroup. Unlike
+     * inspectMemory and inspectCPU, which report the whole host, these
+     * attributes reflect the limits the function is actually held to. Both
+     * cgroup v1 and v2 are supported; attributes a kernel does not provide
+     * are left out.
+     *
+     * cgroupVersion:          The cgroup version, or 0 if no cgroup was found.
+     * cgroupMemoryCurrent:    Memory charged to the cgroup in bytes.
+     * cgroupMemoryMax:        The memory limit in bytes, -1 if unlimited.
+     * cgroupMemoryPeak:       The most memory charged to the cgroup in bytes.
+     * cgroupMemoryAnon:       Anonymous memory (heap, stacks) in bytes.
+     * cgroupMemoryFile:       Page cache memory in bytes.
+     * cgroupPageFaults:       Page faults within the cgroup.
+     * cgroupMajorPageFaults:  Major page faults within the cgroup.
+     * cgroupCPUUsage:         CPU time used by the cgroup in microseconds.
+     * cgroupCPUUser:          User mode CPU time in microseconds.
+     * cgroupCPUSystem:        Kernel mode CPU time in microseconds.
+     * cgroupCPUQuota:         CPU quota per period in microseconds, -1 if unlimited.
+     * cgroupCPUPeriod:        CPU quota period in microseconds.
+     * cgroupCPULimit:         The quota as a number of CPUs, if limited.
+     * cgroupCPUPeriods:       Number of enforcement periods that have elapsed.
+     * cgroupCPUThrottled:     Number of periods in which the cgroup was throttled.
+     * cgroupCPUThrottledTime: Time the cgroup spent throttled in microseconds.
+     * cgroupIOReadBytes:      Bytes read from block devices.
+     * cgroupIOWriteBytes:     Bytes written to block devices.
+     * cgroupIOReadOps:        Read operations on block devices.
+     * cgroupIOWriteOps:       Write operations on block devices.
+     */
+    public void inspectCgroup() {
+        inspectedCgroup = true;
+        attributes.put("cgroupVersion", CGROUP_VERSION);
+        Map<String, Object> metrics = readCgroup();
+        attributes.putAll(metrics);
+    }
+
+    /**
+     * Compare information gained from inspectCgroup to the current cgroup
+     * accounting. Each counter attribute of inspectCgroup gets a Delta
+     * attribute, for example cgroupCPUThrottledDelta and cgroupCPUThrottledTimeDelta.
+     */
+    public void inspectCgroupDelta() {
+        if (inspectedCgroup) {
+            Map<String, Object> metrics = readCgroup();
+            for (String key : CGROUP_COUNTERS) {
+                Object value = metrics.get(key);
+                if (value instanceof Long) {
+                    putDelta(key, (Long) value);
+                }
+            }
+        } else {
+            attributes.put("SAAFCgroupDeltaError", "Cgroup not inspected before collecting deltas!");
+        }
+    }
+
+    /**
+     * Read the cgroup accounting files for the detected cgroup version.
+     *
+     * @return The cgroup attributes that could be read.
+     */
+    private static Map<String, Object> readCgroup() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        if (CGROUP_VERSION == 2) {
+            putLong(metrics, "cgroupMemoryCurrent", getFileAsString(cgroupFile("", "memory.current")));
+            putLong(metrics, "cgroupMemoryMax", getFileAsString(cgroupFile("", "memory.max")));
+            putLong(metrics, "cgroupMemoryPeak", getFileAsString(cgroupFile("", "memory.peak")));
+
+            Map<String, Long> stat = readKeyValues(cgroupFile("", "memory.stat"));
+            putValue(metrics, "cgroupMemoryAnon", stat.get("anon"));
+            putValue(metrics, "cgroupMemoryFile", stat.get("file"));
+            putValue(metrics, "cgroupPageFaults", stat.get("pgfault"));
+            putValue(metrics, "cgroupMajorPageFaults", stat.get("pgmajfault"));
+
+            stat = readKeyValues(cgroupFile("", "cpu.stat"));
+            putValue(metrics, "cgroupCPUUsage", stat.get("usage_usec"));
+            putValue(metrics, "cgroupCPUUser", stat.get("user_usec"));
+            putValue(metrics, "cgroupCPUSystem", stat.get("system_usec"));
+            putValue(metrics, "cgroupCPUPeriods", stat.get("nr_periods"));
+            putValue(metrics, "cgroupCPUThrottled", stat.get("nr_throttled"));
+            putValue(metrics, "cgroupCPUThrottledTime", stat.get("throttled_usec"));
+
+            String[] max = getFileAsString(cgroupFile("", "cpu.max")).trim().split(" ");
+            if (max.length == 2) {
+                putLong(metrics, "cgroupCPUQuota", max[0]);
+                putLong(metrics, "cgroupCPUPeriod", max[1]);
+            }
+
+            long readBytes = 0, writeBytes = 0, readOps = 0, writeOps = 0;
+            boolean io = false;
+            for (String line : getFileAsString(cgroupFile("", "io.stat")).split("\n")) {
+                for (String field : line.split(" ")) {
+                    int split = field.indexOf('=');
+                    if (split < 0) {
+                        continue;
+                    }
+                    io = true;
+                    long value = parseLong(field.substring(split + 1));
+                    switch (field.substring(0, split)) {
+                        case "rbytes":
+                            readBytes += value;
+                            break;
+                        case "wbytes":
+                            writeBytes += value;
+                            break;
+                        case "rios":
+                            readOps += value;
+                            break;
+                        case "wios":
+                            writeOps += value;
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+            if (io || new File(cgroupFile("", "io.stat")).exists()) {
+                metrics.put("cgroupIOReadBytes", readBytes);
+                metrics.put("cgroupIOWriteBytes", writeBytes);
+                metrics.put("cgroupIOReadOps", readOps);
+                metrics.put("cgroupIOWriteOps", writeOps);
+            }
+        } else if (CGROUP_VERSION == 1) {
+            putLong(metrics, "cgroupMemoryCurrent", getFileAsString(cgroupFile("memory", "memory.usage_in_bytes")));
+            putLong(metrics, "cgroupMemoryMax", getFileAsString(cgroupFile("memory", "memory.limit_in_bytes")));
+            putLong(metrics, "cgroupMemoryPeak", getFileAsString(cgroupFile("memory", "memory.max_usage_in_bytes")));
+
+            Map<String, Long> stat = readKeyValues(cgroupFile("memory", "memory.stat"));
+            putValue(metrics, "cgroupMemoryAnon", stat.get("rss"));
+            putValue(metrics, "cgroupMemoryFile", stat.get("cache"));
+            putValue(metrics, "cgroupPageFaults", stat.get("pgfault"));
+            putValue(metrics, "cgroupMajorPageFaults", stat.get("pgmajfault"));
+
+            //cpuacct reports nanoseconds, convert to microseconds to match v2.
+            Long usage = parseLongOrNull(getFileAsString(cgroupFile("cpuacct", "cpuacct.usage")));
+            putValue(metrics, "cgroupCPUUsage", usage == null ? null : usage / 1000);
+            Long user = parseLongOrNull(getFileAsString(cgroupFile("cpuacct", "cpuacct.usage_user")));
+            putValue(metrics, "cgroupCPUUser", user == null ? null : user / 1000);
+            Long system = parseLongOrNull(getFileAsString(cgroupFile("cpuacct", "cpuacct.usage_sys")));
+            putValue(metrics, "cgroupCPUSystem", system == null ? null : system / 1000);
+
+            stat = readKeyValues(cgroupFile("cpu", "cpu.stat"));
+            putValue(metrics, "cgroupCPUPeriods", stat.get("nr_periods"));
+            putValue(metrics, "cgroupCPUThrottled", stat.get("nr_throttled"));
+            Long throttled = stat.get("throttled_time");
+            putValue(metrics, "cgroupCPUThrottledTime", throttled == null ? null : throttled / 1000);
+
+            putLong(metrics, "cgroupCPUQuota", getFileAsString(cgroupFile("cpu", "cpu.cfs_quota_us")));
+            putLong(metrics, "cgroupCPUPeriod", getFileAsString(cgroupFile("cpu", "cpu.cfs_period_us")));
+
+            long[] bytes = readBlkio(cgroupFile("blkio", "blkio.throttle.io_service_bytes"));
+            long[] ops = readBlkio(cgroupFile("blkio", "blkio.throttle.io_serviced"));
+            if (bytes != null && ops != null) {
+                metrics.put("cgroupIOReadBytes", bytes[0]);
+                metrics.put("cgroupIOWriteBytes", bytes[1]);
+                metrics.put("cgroupIOReadOps", ops[0]);
+                metrics.put("cgroupIOWriteOps", ops[1]);
+            }
+        }
+
+        //v1 reports an unlimited memory limit as a huge page aligned number.
+        Object memoryMax = metrics.get("cgroupMemoryMax");
+        if (memoryMax instanceof Long && (Long) memoryMax >= Long.MAX_VALUE / 2) {
+            metrics.put("cgroupMemoryMax", -1L);
+        }
+        Object quota = metrics.get("cgroupCPUQuota");
+        Object period = metrics.get("cgroupCPUPeriod");
+        if (quota instanceof Long && period instanceof Long && (Long) quota > 0 && (Long) period > 0) {
+            metrics.put("cgroupCPULimit", (double) (Long) quota / (Long) period);
+        }
+        return metrics;
+    }
+
+    /**
+     * Sum the Read and Write lines of a v1 blkio accounting file.
+     *
+     * @return Read and write totals, or null if the file does not exist.
+     */
+    private static long[] readBlkio(String filename) {
+        if (!new File(filename).exists()) {
+            return null;
+        }
+        long[] totals = new long[2];
+        for (String line : getFileAsString(filename).split("\n")) {
+            String[] prms = line.split(" ");
+            if (prms.length == 3) {
+                if (prms[1].equals("Read")) {
+                    totals[0] += parseLong(prms[2]);
+                } else if (prms[1].equals("Write")) {
+                    totals[1] += parseLong(prms[2]);
+                }
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Parse the cgroup of this process for each controller from /proc/self/cgroup.
+     * cgroup v2 uses the empty controller name.
+     */
+    private static Map<String, String> readCgroupPaths() {
+        Map<String, String> paths = new HashMap<>();
+        for (String line : getFileAsString("/proc/self/cgroup").split("\n")) {
+            String[] prms = line.split(":", 3);
+            if (prms.length == 3) {
+                for (String controller : prms[1].split(",")) {
+                    paths.put(controller, prms[2]);
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Locate a cgroup file. The process's own cgroup directory is used when it
+     * is visible, otherwise the root of the mount, which is the function's own
+     * cgroup inside most container runtimes.
+     *
+     * @param controller The v1 controller, or "" for cgroup v2.
+     * @param file The name of the accounting file.
+     * @return The path of the file.
+     */
+    private static String cgroupFile(String controller, String file) {
+        String mount = controller.isEmpty() ? "/sys/fs/cgroup" : "/sys/fs/cgroup/" + controller;
+        String path = CGROUP_PATHS.get(controller);
+        if (path != null && !path.equals("/")) {
+            File f = new File(mount + path, file);
+            if (f.exists()) {
+                return f.getPath();
+            }
+        }
+        return mount + "/" + file;
+    }
+
+    /**
+     * Parse a file of "key value" lines such as memory.stat or cpu.stat.
+     */
+    private static Map<String, Long> readKeyValues(String filename) {
+        Map<String, Long> values = new HashMap<>();
+        for (String line : getFileAsString(filename).split("\n")) {
+            int split = line.indexOf(' ');
+            if (split > 0) {
+                Long value = parseLongOrNull(line.substring(split + 1));
+                if (value != null) {
+                    values.put(line.substring(0, split), value);
+                }
+            }
+        }
+        return values;
+    }
+
+    private static void putLong(Map<String, Object> metrics, String key, String text) {
+        text = text.trim();
+        if (text.equals("max")) {
+            metrics.put(key, -1L);
+        } else {
+            putValue(metrics, key, parseLongOrNull(text));
+        }
+    }
+
+    private static void putValue(Map<String, Object> metrics, String key, Long value) {
+        if (value != null) {
+            metrics.put(key, value);
+        }
+    }
+
+    private static Long parseLongOrNull(String text) {
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    private static long parseLong(String text) {
+        Long value = parseLongOrNull(text);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Collect Pressure Stall Information and scheduler statistics. PSI totals
+     * count the time tasks on the host were stalled waiting for a resource;
+     * schedstat counts the time the calling thread waited on a run queue.
+     * Kernels without PSI only report psiAvailable.
+     *
+     * psiAvailable:   Whether /proc/pressure is supported by the kernel.
+     * psiCPUSome:     Time in microseconds some tasks were stalled waiting for CPU.
+     * psiCPUFull:     Time in microseconds all non-idle tasks were stalled on CPU, if reported.
+     * psiMemorySome:  Time in microseconds some tasks were stalled waiting for memory.
+     * psiMemoryFull:  Time in microseconds all non-idle tasks were stalled waiting for memory.
+     * psiIOSome:      Time in microseconds some tasks were stalled waiting for I/O.
+     * psiIOFull:      Time in microseconds all non-idle tasks were stalled waiting for I/O.
+     * schedRunTime:   Time in nanoseconds the current thread spent running on a CPU.
+     * schedWaitTime:  Time in nanoseconds the current thread spent waiting on a run queue.
+     * schedTimeslices: Number of timeslices run on a CPU by the current thread.
+     */
+    public void inspectPressure() {
+        inspectedPressure = true;
+        Map<String, Object> metrics = readPressure();
+        attributes.put("psiAvailable", metrics.containsKey("psiCPUSome") ? 1 : 0);
+        attributes.putAll(metrics);
+    }
+
+    /**
+     * Compare information gained from inspectPressure to the current stall and
+     * scheduler statistics.
+     *
+     * psi{Resource}{Some|Full}Delta: Stall time in microseconds during the invocation.
+     * schedRunTimeDelta:     Time in nanoseconds the current thread ran on a CPU.
+     * schedWaitTimeDelta:    Time in nanoseconds the current thread waited for a CPU.
+     * schedTimeslicesDelta:  Number of timeslices the current thread ran.
+     */
+    public void inspectPressureDelta() {
+        if (inspectedPressure) {
+            for (Map.Entry<String, Object> metric : readPressure().entrySet()) {
+                putDelta(metric.getKey(), (Long) metric.getValue());
+            }
+        } else {
+            attributes.put("SAAFPressureDeltaError", "Pressure not inspected before collecting deltas!");
+        }
+    }
+
+    /**
+     * Read /proc/pressure and the schedstat of the current thread.
+     *
+     * @return The stall totals and scheduler statistics that are available.
+     */
+    private static Map<String, Object> readPressure() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        String[][] resources = {{"cpu", "psiCPU"}, {"memory", "psiMemory"}, {"io", "psiIO"}};
+        for (String[] resource : resources) {
+            for (String line : getFileAsString("/proc/pressure/" + resource[0]).split("\n")) {
+                int total = line.indexOf("total=");
+                if (total < 0) {
+                    continue;
+                }
+                Long value = parseLongOrNull(line.substring(total + 6));
+                if (value != null) {
+                    if (line.startsWith("some")) {
+                        metrics.put(resource[1] + "Some", value);
+                    } else if (line.startsWith("full")) {
+                        metrics.put(resource[1] + "Full", value);
+                    }
+                }
+            }
+        }
+
+        String filename = new File("/proc/thread-self/schedstat").exists()
+                ? "/proc/thread-self/schedstat" : "/proc/self/schedstat";
+        String[] prms = getFileAsString(filename).trim().split(" ");
+        if (prms.length == 3) {
+            putValue(metrics, "schedRunTime", parseLongOrNull(prms[0]));
+            putValue(metrics, "schedWaitTime", parseLongOrNull(prms[1]));
+            putValue(metrics, "schedTimeslices", parseLongOrNull(prms[2]));
+        }
+        return metrics;
+    }
+
+    /**
+     * Identify the host running this container. The fingerprint hashes the
+     * boot time, the CPU flags and microcode revision, the kernel boot_id and
+     * the hypervisor uuid into a compact ID, so invocations can be grouped by
+     * host without parsing platform specific strings. The fingerprint is
+     * computed once per container and only recomputed if boot_id changes,
+     * e.g. when a snapshot of the container is restored on another host.
+     *
+     * hostID:          16 hex characters identifying the host.
+     * newhost:         Whether this is the first invocation of the container on this host.
+     * hostInvocations: Invocations this container has served on this host, including this one.
+     * hostIndex:       Invocations served by this container on each host it has run on.
+     */
+    public void inspectTenancy() {
+        if (inspectedTenancy) {
+            attributes.put("SAAFTenancyError", "Tenancy already inspected!");
+            return;
+        }
+        inspectedTenancy = true;
+
+        String bootID = getFileAsString("/proc/sys/kernel/random/boot_id").trim();
+        synchronized (HOST_INVOCATIONS) {
+            if (hostID == null || !bootID.equals(hostBootID)) {
+                hostBootID = bootID;
+                hostID = hostFingerprint(bootID);
+            }
+            Long previous = HOST_INVOCATIONS.get(hostID);
+            long invocations = previous == null ? 1 : previous + 1;
+            if (!Warmup.isWarming()) {
+                HOST_INVOCATIONS.put(hostID, invocations);
+            }
+
+            attributes.put("hostID", hostID);
+            attributes.put("newhost", previous == null ? 1 : 0);
+            attributes.put("hostInvocations", invocations);
+            attributes.put("hostIndex", new LinkedHashMap<>(HOST_INVOCATIONS));
+        }
+    }
+
+    /**
+     * Hash the attributes that identify a host.
+     *
+     * @param bootID The kernel boot_id.
+     * @return The first 16 hex characters of the SHA-256 of the host attributes.
+     */
+    private static String hostFingerprint(String bootID) {
+        StringBuilder sb = new StringBuilder(bootID).append('\n');
+        for (String line : getFileAsString("/proc/stat").split("\n")) {
+            if (line.startsWith("btime")) {
+                sb.append(line).append('\n');
+            }
+        }
+        //The first processor is enough, all cores of a host share flags and microcode.
+        for (String line : getFileAsString("/proc/cpuinfo").split("\n")) {
+            if (line.isEmpty()) {
+                break;
+            }
+            if (line.startsWith("model name") || line.startsWith("microcode") || line.startsWith("flags")) {
+                sb.append(line).append('\n');
+            }
+        }
+        sb.append(getFileAsString("/sys/hypervisor/uuid").trim());
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            return Integer.toHexString(sb.toString().hashCode());
+        }
+    }
+
+    /**
+     * Start counting hardware events with perf_event. Counting covers the
+     * whole JVM until inspectPerfDelta is called. If perf is not installed or
+     * perf_event_paranoid forbids counting, only perfAvailable and perfError
+     * are reported.
+     *
+     * perfAvailable: Whether hardware events are being counted.
+     * perfError:     Why counting is not available.
+     */
+    public void inspectPerf() {
+        PerfStat stat = new PerfStat();
+        String error = stat.start();
+        if (error == null) {
+            perfStat = stat;
+            attributes.put("perfAvailable", 1);
+        } else {
+            attributes.put("perfAvailable", 0);
+            attributes.put("perfError", error);
+        }
+    }
+
+    /**
+     * Stop counting hardware events started by inspectPerf. Events the CPU
+     * does not support are left out.
+     *
+     * perfInstructions:    Instructions retired.
+     * perfCycles:          CPU cycles.
+     * perfCacheReferences: Last level cache references.
+     * perfCacheMisses:     Last level cache misses.
+     * perfBranches:        Branch instructions.
+     * perfBranchMisses:    Mispredicted branches.
+     * perfIPC:             Instructions per cycle.
+     * perfCacheMissRate:   Cache misses per cache reference.
+     * perfBranchMissRate:  Branch misses per branch.
+     */
+    public void inspectPerfDelta() {
+        if (!attributes.containsKey("perfAvailable")) {
+            attributes.put("SAAFPerfDeltaError", "Perf not inspected before collecting deltas!");
+            return;
+        }
+        if (perfStat == null) {
+            return;
+        }
+        Map<String, Long> counters = perfStat.stop();
+        perfStat = null;
+        attributes.putAll(counters);
+        putRatio("perfIPC", counters.get("perfInstructions"), counters.get("perfCycles"));
+        putRatio("perfCacheMissRate", counters.get("perfCacheMisses"), counters.get("perfCacheReferences"));
+        putRatio("perfBranchMissRate", counters.get("perfBranchMisses"), counters.get("perfBranches"));
+    }
+
+    private void putRatio(String key, Long numerator, Long denominator) {
+        if (numerator != null && denominator != null && denominator > 0) {
+            attributes.put(key, (double) numerator / denominator);
+        }
+    }
+
+    /**
+     * Collect disk and network I/O counters. Process counters come from
+     * /proc/self/io, device counters from /proc/diskstats and
+     * /proc/net/dev. Device totals skip loop and ram disks, partitions and the
+     * loopback interface.
+     *
+     * ioReadChars:    Bytes read by the process, including the page cache.
+     * ioWriteChars:   Bytes written by the process, including the page cache.
+     * ioReadSyscalls: Read system calls made by the process.
+     * ioWriteSyscalls: Write system calls made by the process.
+     * ioReadBytes:    Bytes the process caused to be read from storage.
+     * ioWriteBytes:   Bytes the process caused to be written to storage.
+     * diskReads:      Reads completed by all disks.
+     * diskReadBytes:  Bytes read by all disks.
+     * diskWrites:     Writes completed by all disks.
+     * diskWriteBytes: Bytes written by all disks.
+     * diskIOTime:     Time in ms the disks spent doing I/O.
+     * netRxBytes:     Bytes received by all network interfaces.
+     * netRxPackets:   Packets received by all network interfaces.
+     * netTxBytes:     Bytes sent by all network interfaces.
+     * netTxPackets:   Packets sent by all network interfaces.
+     */
+    public void inspectIO() {
+        inspectedIO = true;
+        ioStartTime = System.nanoTime();
+        ioDisks = readDiskStats();
+        ioInterfaces = readNetDev();
+        attributes.putAll(readIO(ioDisks, ioInterfaces));
+    }
+
+    /**
+     * Compare information gained from inspectIO to the current I/O counters.
+     * Every counter of inspectIO gets a Delta attribute, and the bandwidth of
+     * the invocation is reported in MB/s (10^6 bytes per second).
+     *
+     * ioReadMBps, ioWriteMBps:     Process storage bandwidth.
+     * diskReadMBps, diskWriteMBps: Disk bandwidth of all disks.
+     * netRxMBps, netTxMBps:        Network bandwidth of all interfaces.
+     * diskDevicesDelta:  reads, readBytes, writes, writeBytes, ioTime, readMBps and writeMBps of each active disk.
+     * netInterfacesDelta: rxBytes, rxPackets, txBytes, txPackets, rxMBps and txMBps of each active interface.
+     */
+    public void inspectIODelta() {
+        if (!inspectedIO) {
+            attributes.put("SAAFIODeltaError", "IO not inspected before collecting deltas!");
+            return;
+        }
+        double seconds = Math.max(System.nanoTime() - ioStartTime, 1) / 1e9;
+        Map<String, long[]> disks = readDiskStats();
+        Map<String, long[]> interfaces = readNetDev();
+        for (Map.Entry<String, Object> metric : readIO(disks, interfaces).entrySet()) {
+            putDelta(metric.getKey(), (Long) metric.getValue());
+        }
+        putRate("ioReadMBps", attributes.get("ioReadBytesDelta"), seconds);
+        putRate("ioWriteMBps", attributes.get("ioWriteBytesDelta"), seconds);
+        putRate("diskReadMBps", attributes.get("diskReadBytesDelta"), seconds);
+        putRate("diskWriteMBps", attributes.get("diskWriteBytesDelta"), seconds);
+        putRate("netRxMBps", attributes.get("netRxBytesDelta"), seconds);
+        putRate("netTxMBps", attributes.get("netTxBytesDelta"), seconds);
+
+        String[] diskFields = {"reads", "readBytes", "writes", "writeBytes", "ioTime"};
+        attributes.put("diskDevicesDelta", deviceDeltas(ioDisks, disks, diskFields, 1, 3, seconds,
+                "readMBps", "writeMBps"));
+        String[] netFields = {"rxBytes", "rxPackets", "txBytes", "txPackets"};
+        attributes.put("netInterfacesDelta", deviceDeltas(ioInterfaces, interfaces, netFields, 0, 2, seconds,
+                "rxMBps", "txMBps"));
+    }
+
+    private void putRate(String key, Object bytes, double seconds) {
+        if (bytes instanceof Long) {
+            attributes.put(key, (Long) bytes / 1e6 / seconds);
+        }
+    }
+
+    /**
+     * Compute the change of each device that was active during the invocation.
+     *
+     * @param in Byte counter index of the first rate.
+     * @param out Byte counter index of the second rate.
+     */
+    private static Map<String, Object> deviceDeltas(Map<String, long[]> before, Map<String, long[]> after,
+            String[] fields, int in, int out, double seconds, String inRate, String outRate) {
+        Map<String, Object> deltas = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> device : after.entrySet()) {
+            long[] start = before.get(device.getKey());
+            if (start == null) {
+                continue;
+            }
+            long[] end = device.getValue();
+            boolean active = false;
+            Map<String, Object> delta = new LinkedHashMap<>();
+            for (int i = 0; i < fields.length; i++) {
+                delta.put(fields[i], end[i] - start[i]);
+                active |= end[i] != start[i];
+            }
+            if (active) {
+                delta.put(inRate, (end[in] - start[in]) / 1e6 / seconds);
+                delta.put(outRate, (end[out] - start[out]) / 1e6 / seconds);
+                deltas.put(device.getKey(), delta);
+            }
+        }
+        return deltas;
+    }
+
+    /**
+     * Combine /proc/self/io with the totals of all disks and interfaces.
+     */
+    private static Map<String, Object> readIO(Map<String, long[]> disks, Map<String, long[]> interfaces) {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        Map<String, Long> io = readKeyValues("/proc/self/io");
+        putValue(metrics, "ioReadChars", io.get("rchar:"));
+        putValue(metrics, "ioWriteChars", io.get("wchar:"));
+        putValue(metrics, "ioReadSyscalls", io.get("syscr:"));
+        putValue(metrics, "ioWriteSyscalls", io.get("syscw:"));
+        putValue(metrics, "ioReadBytes", io.get("read_bytes:"));
+        putValue(metrics, "ioWriteBytes", io.get("write_bytes:"));
+
+        String[] diskNames = {"diskReads", "diskReadBytes", "diskWrites", "diskWriteBytes", "diskIOTime"};
+        putTotals(metrics, diskNames, disks);
+        String[] netNames = {"netRxBytes", "netRxPackets", "netTxBytes", "netTxPackets"};
+        putTotals(metrics, netNames, interfaces);
+        return metrics;
+    }
+
+    private static void putTotals(Map<String, Object> metrics, String[] names, Map<String, long[]> devices) {
+        if (devices.isEmpty()) {
+            return;
+        }
+        long[] totals = new long[names.length];
+        for (long[] device : devices.values()) {
+            for (int i = 0; i < names.length; i++) {
+                totals[i] += device[i];
+            }
+        }
+        for (int i = 0; i < names.length; i++) {
+            metrics.put(names[i], totals[i]);
+        }
+    }
+
+    /**
+     * Parse /proc/diskstats into reads, bytes read, writes, bytes written and
+     * I/O time for each whole disk.
+     */
+    private static Map<String, long[]> readDiskStats() {
+        Map<String, long[]> disks = new LinkedHashMap<>();
+        for (String line : getFileAsString("/proc/diskstats").split("\n")) {
+            String[] prms = line.trim().split("\\s+");
+            if (prms.length < 13 || prms[2].startsWith("loop") || prms[2].startsWith("ram")
+                    || (!BLOCK_DEVICES.isEmpty() && !BLOCK_DEVICES.contains(prms[2]))) {
+                continue;
+            }
+            disks.put(prms[2], new long[]{parseLong(prms[3]), parseLong(prms[5]) * 512,
+                parseLong(prms[7]), parseLong(prms[9]) * 512, parseLong(prms[12])});
+        }
+        return disks;
+    }
+
+    private static List<String> listBlockDevices() {
+        String[] devices = new File("/sys/block").list();
+        return devices == null ? Collections.<String>emptyList() : Arrays.asList(devices);
+    }
+
+    /**
+     * Parse /proc/net/dev into bytes and packets received and sent for each
+     * interface other than loopback.
+     */
+    private static Map<String, long[]> readNetDev() {
+        Map<String, long[]> interfaces = new LinkedHashMap<>();
+        for (String line : getFileAsString("/proc/net/dev").split("\n")) {
+            int split = line.indexOf(':');
+            if (split < 0) {
+                continue;
+            }
+            String name = line.substring(0, split).trim();
+            String[] prms = line.substring(split + 1).trim().split("\\s+");
+            if (name.equals("lo") || prms.length < 10) {
+                continue;
+            }
+            interfaces.put(name, new long[]{parseLong(prms[0]), parseLong(prms[1]),
+                parseLong(prms[8]), parseLong(prms[9])});
+        }
+        return interfaces;
+    }
+
+    /**
+     * Set the inspection profile used by inspectAll and inspectAllDeltas.
+     *
+     * @param profile A bitmask of collector bits such as CPU | MEMORY, or one
+     * of the PROFILE_ constants.
+     */
+    public void setProfile(int profile) {
+        this.profile = profile & COLLECTORS;
+    }
+
+    /**
+     * Set the inspection profile by name.
+     *
+     * @param profile minimal, standard, full or a numeric bitmask. Unknown
+     * values leave the current profile unchanged.
+     */
+    public void setProfile(String profile) {
+        this.profile = parseProfile(profile, this.profile);
+    }
+
+    /**
+     * @return The configured inspection profile bitmask.
+     */
+    public int getProfile() {
+        return profile;
+    }
+
+    /**
+     * Promote one in every n invocations to PROFILE_FULL so expensive
+     * collectors still run on a sample of calls.
+     *
+     * @param sampleRate The sampling interval. Values below 1 disable sampling.
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Run the descriptive collectors (container, platform, linux, tenancy
+     * and the CPU model) of inspectAll on a background thread while user code
+     * runs. Their attributes are added by inspectAllDeltas or finish.
+     * Baselines for deltas are always taken before inspectAll returns.
+     *
+     * @param async Whether inspectAll runs descriptive collectors in the background.
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * Configure the Inspector from request attributes.
+     *
+     * saafProfile:    minimal, standard, full or a numeric bitmask.
+     * saafSampleRate: Run the full profile on one in saafSampleRate calls.
+     * saafAsync:      Run descriptive collectors in the background, see setAsync.
+     *
+     * @param request The request map passed to the function handler.
+     */
+    public void configure(Map<String, Object> request) {
+        if (request == null) {
+            return;
+        }
+        //JSON parsers such as Gson read every number as a double.
+        Object value = request.get("saafProfile");
+        if (value instanceof Number) {
+            setProfile(((Number) value).intValue());
+        } else if (value != null) {
+            setProfile(String.valueOf(value));
+        }
+        value = request.get("saafSampleRate");
+        if (value instanceof Number) {
+            sampleRate = ((Number) value).intValue();
+        } else if (value != null) {
+            sampleRate = parseSampleRate(String.valueOf(value), sampleRate);
+        }
+        value = request.get("saafAsync");
+        if (value != null) {
+            async = Boolean.parseBoolean(String.valueOf(value));
+        }
+    }
+
+    /**
+     * Resolve the profile for this invocation. Sampling is decided once so that
+     * inspectAll and inspectAllDeltas always agree.
+     *
+     * @return The collector bitmask to use for this invocation.
+     */
+    private int activeProfile() {
+        if (activeProfile < 0) {
+            activeProfile = profile;
+            if (sampleRate > 0 && (profile & PROFILE_FULL) != PROFILE_FULL
+                    && ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+                activeProfile = PROFILE_FULL | (profile & PERF);
+            }
+        }
+        return activeProfile;
+    }
+
+    /**
+     * Run all data collection methods enabled by the inspection profile and
+     * record framework runtime.
+     *
+     * profile: The collector bitmask used for this invocation.
      */
     public void inspectAll() {
-        this.inspectContainer();
-        this.inspectPlatform();
-        this.inspectLinux();
-        this.inspectMemory();
-        this.inspectCPU();
+        int mask = activeProfile();
+        attributes.put("profile", mask);
+        if (async) {
+            inspectAllAsync(mask);
+            return;
+        }
+        if ((mask & CONTAINER) != 0) {
+            this.inspectContainer();
+        }
+        if ((mask & PLATFORM) != 0) {
+            this.inspectPlatform();
+        }
+        if ((mask & LINUX) != 0) {
+            this.inspectLinux();
+        }
+        if ((mask & MEMORY) != 0) {
+            this.inspectMemory();
+        }
+        if ((mask & CPU) != 0) {
+            this.inspectCPU();
+        }
+        if ((mask & JVM) != 0) {
+            this.inspectJVM();
+        }
+        if ((mask & CGROUP) != 0) {
+            this.inspectCgroup();
+        }
+        if ((mask & PRESSURE) != 0) {
+            this.inspectPressure();
+        }
+        if ((mask & TENANCY) != 0) {
+            this.inspectTenancy();
+        }
+        if ((mask & IO) != 0) {
+            this.inspectIO();
+        }
         this.addTimeStamp("frameworkRuntime");
+        //Started last and stopped first so only user code is counted.
+        if ((mask & PERF) != 0) {
+            this.inspectPerf();
+        }
     }
 
     /**
-     * Run all delta collection methods add userRuntime attribute to further isolate
-     * use code runtime from time spent collecting data.
+     * Take the delta baselines now and submit the descriptive collectors to
+     * the background thread. The collectors write to a separate Inspector so
+     * they never touch the attribute map while user code adds to it.
+     *
+     * @param mask The collector bitmask of this invocation.
+     */
+    private void inspectAllAsync(int mask) {
+        Inspector collector = new Inspector(startTime);
+        //Mark descriptive collectors as done so calling them again reports an error as usual.
+        inspectedContainer |= (mask & CONTAINER) != 0;
+        inspectedPlatform |= (mask & PLATFORM) != 0;
+        inspectedLinux |= (mask & LINUX) != 0;
+        inspectedTenancy |= (mask & TENANCY) != 0;
+        background = BACKGROUND.submit(() -> {
+            long start = System.nanoTime();
+            if ((mask & CONTAINER) != 0) {
+                collector.inspectContainer();
+            }
+            if ((mask & PLATFORM) != 0) {
+                collector.inspectPlatform();
+            }
+            if ((mask & LINUX) != 0) {
+                collector.inspectLinux();
+            }
+            if ((mask & CPU) != 0) {
+                collector.inspectCPUInfo();
+            }
+            if ((mask & TENANCY) != 0) {
+                collector.inspectTenancy();
+            }
+            collector.attributes.put("frameworkAsyncRuntime", (System.nanoTime() - start) / 1000000.0);
+            return collector;
+        });
+
+        if ((mask & MEMORY) != 0) {
+            this.inspectMemory();
+        }
+        if ((mask & CPU) != 0) {
+            inspectedCPU = true;
+            this.inspectCPUStat();
+        }
+        if ((mask & JVM) != 0) {
+            this.inspectJVM();
+        }
+        if ((mask & CGROUP) != 0) {
+            this.inspectCgroup();
+        }
+        if ((mask & PRESSURE) != 0) {
+            this.inspectPressure();
+        }
+        if ((mask & IO) != 0) {
+            this.inspectIO();
+        }
+        this.addTimeStamp("frameworkRuntime");
+        if ((mask & PERF) != 0) {
+            this.inspectPerf();
+        }
+    }
+
+    /**
+     * Wait for the background collectors of an asynchronous inspectAll and
+     * add their attributes.
+     *
+     * frameworkAsyncRuntime: Time in ms the background collectors took.
+     * frameworkAsyncWait:    Time in ms spent waiting for them to finish.
+     */
+    private void joinBackground() {
+        if (background == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            attributes.putAll(background.get().attributes);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            attributes.put("SAAFAsyncError", "Interrupted while waiting for background collectors.");
+        } catch (ExecutionException ee) {
+            attributes.put("SAAFAsyncError", ee.getCause().toString());
+        }
+        attributes.put("frameworkAsyncWait", (System.nanoTime() - start) / 1000000.0);
+        background = null;
+    }
+
+    /**
+     * Run all delta collection methods enabled by the inspection profile and add
+     * the userRuntime attribute to further isolate user code runtime from time
+     * spent collecting data.
      */
     public void inspectAllDeltas() {
 
@@ -439,8 +1580,29 @@ public class Inspector {
         }
 
         long deltaTime = System.currentTimeMillis();
-        this.inspectCPUDelta();
-        this.inspectMemoryDelta();
+        int mask = activeProfile();
+        if ((mask & PERF) != 0) {
+            this.inspectPerfDelta();
+        }
+        this.joinBackground();
+        if ((mask & CPU) != 0) {
+            this.inspectCPUDelta();
+        }
+        if ((mask & MEMORY) != 0) {
+            this.inspectMemoryDelta();
+        }
+        if ((mask & JVM) != 0) {
+            this.inspectJVMDelta();
+        }
+        if ((mask & CGROUP) != 0) {
+            this.inspectCgroupDelta();
+        }
+        if ((mask & PRESSURE) != 0) {
+            this.inspectPressureDelta();
+        }
+        if ((mask & IO) != 0) {
+            this.inspectIODelta();
+        }
         this.addTimeStamp("frameworkRuntimeDeltas", deltaTime);
     }
 
@@ -451,7 +1613,82 @@ public class Inspector {
      * @param value The value to associate with that key.
      */
     public void addAttribute(String key, Object value) {
-        attributes.put(key, value);
+        attributes.put(key, spillIfLarge(key, value));
+    }
+
+    /**
+     * Add a stream to the output without reading it into memory. The stream
+     * is always written to disk and the attribute set to a pointer to it.
+     *
+     * @param key A string to use as the key value.
+     * @param value The stream to copy. It is not closed. A null stream is added as null.
+     */
+    public void addAttributeStream(String key, InputStream value) {
+        if (value == null) {
+            attributes.put(key, null);
+            return;
+        }
+        try {
+            attributes.put(key, recordSpill(Spill.write(key, value)));
+        } catch (IOException ioe) {
+            attributes.put("SAAFSpillError", "Could not spill " + key + ": " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Set the size above which String and byte[] attributes are written to
+     * disk instead of being kept in the output.
+     *
+     * @param spillThreshold The threshold in bytes. Values below 1 disable spilling.
+     */
+    public void setSpillThreshold(long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * Replace an oversize value with a pointer to a gzip file holding it.
+     * The value is kept if it cannot be written.
+     *
+     * @param key The attribute name.
+     * @param value The attribute value.
+     * @return The value, or the pointer if it was spilled.
+     */
+    private Object spillIfLarge(String key, Object value) {
+        if (spillThreshold < 1 || Spill.estimateSize(value) <= spillThreshold) {
+            return value;
+        }
+        try {
+            return recordSpill(Spill.write(key, value));
+        } catch (IOException ioe) {
+            attributes.put("SAAFSpillError", "Could not spill " + key + ": " + ioe.getMessage());
+            return value;
+        }
+    }
+
+    private Map<String, Object> recordSpill(Map<String, Object> pointer) {
+        attributes.merge("spilledAttributes", 1L, (a, b) -> (Long) a + (Long) b);
+        attributes.merge("spilledBytes", pointer.get("bytes"), (a, b) -> (Long) a + (Long) b);
+        return pointer;
+    }
+
+    /**
+     * Create an Inspector for one item of a batch. It starts without the core
+     * attributes, its collectors are not run and it is not finished; the
+     * handler's output is read back with getAttributes.
+     *
+     * @return An empty Inspector.
+     */
+    public static Inspector forItem() {
+        return new Inspector(System.currentTimeMillis());
+    }
+
+    /**
+     * Get the attributes collected so far without finishing the Inspector.
+     *
+     * @return The attribute map itself.
+     */
+    public HashMap<String, Object> getAttributes() {
+        return attributes;
     }
 
     /**
@@ -500,19 +1737,136 @@ public class Inspector {
             return;
         }
         responseMap.keySet().forEach((s) -> {
-            attributes.put(s, responseMap.get(s));
+            attributes.put(s, spillIfLarge(s, responseMap.get(s)));
         });
     }
 
+    /**
+     * Open a tracing span, to be closed with try-with-resources. Spans opened
+     * inside another span on the same thread become its children. The trace
+     * is added to the output by finish().
+     *
+     * @param name The name of the span.
+     * @return The span handle of the current thread.
+     */
+    public Tracer.Span span(String name) {
+        Tracer t = tracer;
+        if (t == null) {
+            synchronized (this) {
+                t = tracer;
+                if (t == null) {
+                    t = new Tracer();
+                    tracer = t;
+                }
+            }
+        }
+        return t.span(name);
+    }
+
+    /**
+     * Get a container scoped resource such as a database connection or an
+     * object store client from the Resources registry, creating it on first
+     * use. JDBC connections are validated before they are reused.
+     *
+     * @param name The name of the resource.
+     * @param factory Creates the resource if it does not exist.
+     * @return The resource.
+     */
+    public <T> T resource(String name, Resources.Factory<T> factory) {
+        return resource(name, factory, Resources.DEFAULT_CHECK);
+    }
+
+    /**
+     * Get a container scoped resource, replacing it if it fails a health check.
+     * finish() reports whether each resource was created or reused.
+     *
+     * @param name The name of the resource.
+     * @param factory Creates the resource if it does not exist or is unhealthy.
+     * @param check Decides whether an existing resource can be reused.
+     * @return The resource.
+     */
+    public <T> T resource(String name, Resources.Factory<T> factory, Resources.HealthCheck<? super T> check) {
+        Resources.Use<T> use = Resources.getInstance().use(name, factory, check);
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("state", use.getState());
+        stats.put("uses", use.getUses());
+        stats.put("time", use.getTime());
+        synchronized (this) {
+            if (resources == null) {
+                resources = new LinkedHashMap<>();
+            }
+            resources.put(name, stats);
+        }
+        return use.getResource();
+    }
+
     /**
      * Finalize the Inspector. Calculator the total runtime and return the HashMap
-     * object containing all attributes collected.
+     * object containing all attributes collected. The result is also recorded by
+     * the container's Accumulator, whose summary is attached as "accumulator"
+     * when a periodic report is due, and appended to the SAAF_SINK file if set.
+     *
+     * traceEvents:  Spans opened with span() as Chrome trace events, if any.
+     * traceDropped: Spans that did not fit in the trace buffer.
+     * resources:    State (created, reused or recreated), container wide uses and
+     *               time in ms of each resource obtained with resource().
+     * resourcesCreated, resourcesReused: The number of resources created and reused.
+     * resourcesClosed: Idle resources closed at the end of the invocation.
+     * warmup, warmupTime, warmupIterations, warmupCompileTime, warmupResult:
+     *               The outcome of the container's JIT warm-up, see Warmup.
      *
      * @return Attributes collected by the Inspector.
      */
     public HashMap<String, Object> finish() {
+        this.joinBackground();
         this.addTimeStamp("runtime");
         attributes.put("endTime", System.currentTimeMillis());
+
+        //Report resource reuse, then close resources that have been idle before the container freezes.
+        int closed = Resources.getInstance().closeIdle();
+        synchronized (this) {
+            if (resources != null) {
+                int created = 0;
+                for (Object stats : resources.values()) {
+                    if (!"reused".equals(((Map<?, ?>) stats).get("state"))) {
+                        created++;
+                    }
+                }
+                attributes.put("resources", resources);
+                attributes.put("resourcesCreated", created);
+                attributes.put("resourcesReused", resources.size() - created);
+            }
+        }
+        if (closed > 0) {
+            attributes.put("resourcesClosed", closed);
+        }
+
+        //A result with a traceEvents array can be opened directly in chrome://tracing or Perfetto.
+        if (tracer != null) {
+            attributes.put("traceEvents", tracer.toTraceEvents());
+            attributes.put("traceDropped", tracer.getDropped());
+        }
+
+        //Warm-up results are not real invocations.
+        if (Warmup.isWarming()) {
+            return attributes;
+        }
+        Warmup.report(attributes);
+
+        //Fold the result into the container wide accumulator.
+        Accumulator accumulator = Accumulator.getInstance();
+        if (accumulator.record(attributes)) {
+            attributes.put("accumulator", accumulator.summary());
+        }
+
+        if (SINK != null) {
+            try {
+                Files.write(Paths.get(SINK), (GSON.toJson(attributes) + "\n").getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException | RuntimeException e) {
+                attributes.put("SAAFSinkError", e.toString());
+            }
+        }
         return attributes;
     }
 
@@ -527,6 +1881,69 @@ public class Inspector {
         return finish();
     }
 
+    /**
+     * Parse an inspection profile name or bitmask.
+     *
+     * @param value minimal, standard, full or a numeric bitmask.
+     * @param fallback The profile to use if value is null or unknown.
+     * @return The profile bitmask.
+     */
+    private static int parseProfile(String value, int fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        switch (value.trim().toLowerCase()) {
+            case "minimal":
+                return PROFILE_MINIMAL;
+            case "standard":
+                return PROFILE_STANDARD;
+            case "full":
+                return PROFILE_FULL;
+            default:
+                try {
+                    return Integer.decode(value.trim()) & COLLECTORS;
+                } catch (NumberFormatException nfe) {
+                    return fallback;
+                }
+        }
+    }
+
+    /**
+     * Parse a size in bytes.
+     *
+     * @param value The size as a string.
+     * @param fallback The size to use if value is null or not a number.
+     * @return The size in bytes.
+     */
+    static long parseBytes(String value, long fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return (long) Double.parseDouble(value.trim());
+        } catch (NumberFormatException nfe) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Parse a sampling interval.
+     *
+     * @param value The interval as a string.
+     * @param fallback The interval to use if value is null or not a number.
+     * @return The sampling interval.
+     */
+    private static int parseSampleRate(String value, int fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return (int) Double.parseDouble(value.trim());
+        } catch (NumberFormatException nfe) {
+            return fallback;
+        }
+    }
+
     /**
      * Read a file and return it as a String.
      *
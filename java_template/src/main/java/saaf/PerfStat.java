@@ -0,0 +1,220 @@
+package saaf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts hardware events of this JVM with a `perf stat` helper attached to
+ * the process. The JVM cannot open perf_event file descriptors itself
+ * without native code, so the helper is started before the measured region
+ * and interrupted after it, and its CSV output is parsed into counters.
+ *
+ * Counting is only attempted when a perf binary is found and
+ * perf_event_paranoid allows unprivileged processes to count their own
+ * events. Otherwise start() returns the reason and no process is launched.
+ */
+final class PerfStat {
+
+    private static final String[][] EVENTS = {
+        {"instructions", "perfInstructions"},
+        {"cycles", "perfCycles"},
+        {"cache-references", "perfCacheReferences"},
+        {"cache-misses", "perfCacheMisses"},
+        {"branches", "perfBranches"},
+        {"branch-misses", "perfBranchMisses"}};
+
+    //Time to wait for perf to attach to and detach from the JVM.
+    private static final long ATTACH_TIMEOUT = 500;
+    private static final long DETACH_TIMEOUT = 2000;
+
+    private static final String PERF = findPerf(System.getenv("SAAF_PERF"));
+    private static final String PID = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+
+    private Process process;
+    private String perfPid;
+    private File output;
+
+    /**
+     * Attach perf to this JVM.
+     *
+     * @return null if counting started, otherwise the reason it did not.
+     */
+    String start() {
+        String paranoid = readFirstLine("/proc/sys/kernel/perf_event_paranoid");
+        if (paranoid == null) {
+            return "perf_event is not supported by the kernel";
+        }
+        int level;
+        try {
+            level = Integer.parseInt(paranoid.trim());
+        } catch (NumberFormatException nfe) {
+            return "Unknown perf_event_paranoid=" + paranoid.trim();
+        }
+        if (level > 2) {
+            return "perf_event_paranoid=" + level + " forbids counting";
+        }
+        if (PERF == null) {
+            return "perf not found";
+        }
+
+        //Level 2 only allows counting user space events.
+        StringBuilder events = new StringBuilder();
+        for (String[] event : EVENTS) {
+            if (events.length() > 0) {
+                events.append(',');
+            }
+            events.append(event[0]).append(level == 2 ? ":u" : "");
+        }
+
+        try {
+            output = File.createTempFile("saaf-perf-", ".csv");
+            process = new ProcessBuilder("sh", "-c", "echo $$; exec \"$0\" stat -x, -o \"$1\" -e \"$2\" -p \"$3\"",
+                    PERF, output.getPath(), events.toString(), PID).redirectErrorStream(true).start();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                    StandardCharsets.US_ASCII));
+            perfPid = reader.readLine();
+            if (perfPid == null || !awaitAttach(perfPid = perfPid.trim())) {
+                stop();
+                return "perf could not attach";
+            }
+            return null;
+        } catch (IOException ioe) {
+            stop();
+            return "perf could not be started: " + ioe.getMessage();
+        }
+    }
+
+    /**
+     * Detach perf and read the counters.
+     *
+     * @return The counted events. Events the hardware does not support are left out.
+     */
+    Map<String, Long> stop() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        if (process == null) {
+            return counters;
+        }
+        try {
+            if (perfPid != null) {
+                new ProcessBuilder("kill", "-INT", perfPid).start().waitFor();
+            }
+            if (!process.waitFor(DETACH_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                process.destroy();
+            }
+            if (output != null && output.exists()) {
+                for (String line : Files.readAllLines(output.toPath(), StandardCharsets.UTF_8)) {
+                    parseLine(line, counters);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            process.destroy();
+        } finally {
+            if (output != null) {
+                output.delete();
+            }
+            process = null;
+            perfPid = null;
+            output = null;
+        }
+        return counters;
+    }
+
+    /**
+     * Parse a line of perf stat -x, output: value,unit,event,...
+     */
+    private static void parseLine(String line, Map<String, Long> counters) {
+        String[] fields = line.split(",");
+        if (fields.length < 3) {
+            return;
+        }
+        String event = fields[2];
+        int modifier = event.indexOf(':');
+        if (modifier >= 0) {
+            event = event.substring(0, modifier);
+        }
+        for (String[] known : EVENTS) {
+            if (known[0].equals(event)) {
+                try {
+                    counters.put(known[1], Long.parseLong(fields[0].trim()));
+                } catch (NumberFormatException nfe) {
+                    //<not supported> or <not counted>
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until perf holds perf_event descriptors, meaning the counters are running.
+     */
+    private boolean awaitAttach(String pid) {
+        long deadline = System.currentTimeMillis() + ATTACH_TIMEOUT;
+        Path fds = Paths.get("/proc", pid, "fd");
+        while (System.currentTimeMillis() < deadline) {
+            if (!process.isAlive()) {
+                return false;
+            }
+            File[] files = fds.toFile().listFiles();
+            if (files != null) {
+                for (File fd : files) {
+                    try {
+                        if (Files.readSymbolicLink(fd.toPath()).toString().contains("perf_event")) {
+                            return true;
+                        }
+                    } catch (IOException | UnsupportedOperationException e) {
+                        //The descriptor was closed while listing.
+                    }
+                }
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static String readFirstLine(String filename) {
+        try {
+            List<String> lines = Files.readAllLines(Paths.get(filename), StandardCharsets.US_ASCII);
+            return lines.isEmpty() ? null : lines.get(0);
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Locate the perf binary.
+     *
+     * @param override A path set through SAAF_PERF, or null to search PATH.
+     * @return The path of perf, or null if it was not found.
+     */
+    private static String findPerf(String override) {
+        if (override != null) {
+            return new File(override).canExecute() ? override : null;
+        }
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        for (String dir : path.split(File.pathSeparator)) {
+            File perf = new File(dir, "perf");
+            if (perf.canExecute()) {
+                return perf.getPath();
+            }
+        }
+        return null;
+    }
+}
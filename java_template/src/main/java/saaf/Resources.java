@@ -0,0 +1,235 @@
+package saaf;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Container scoped registry of clients and connections that survive across
+ * warm invocations, such as object store clients, JDBC connections and HTTP
+ * clients. Resources are created on first use, health checked when reused
+ * and closed once they have been idle for too long.
+ *
+ * Use Inspector.resource() to have the Inspector report whether each
+ * resource was created or reused by the invocation.
+ *
+ * <pre>
+ * Connection db = inspector.resource("db", () -&gt; DriverManager.getConnection(url));
+ * </pre>
+ */
+public class Resources {
+
+    /**
+     * Creates a resource.
+     */
+    public interface Factory<T> {
+        T create() throws Exception;
+    }
+
+    /**
+     * Checks whether a resource can be reused.
+     */
+    public interface HealthCheck<T> {
+        boolean isHealthy(T resource) throws Exception;
+    }
+
+    /**
+     * Default health check. JDBC connections are validated since the database
+     * may have dropped them while the container was frozen; other resources
+     * are assumed to be healthy.
+     */
+    public static final HealthCheck<Object> DEFAULT_CHECK = resource ->
+            !(resource instanceof Connection) || ((Connection) resource).isValid(2);
+
+    private static final Resources INSTANCE = new Resources(idleTimeout(System.getenv("SAAF_RESOURCE_IDLE")));
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final long idleTimeout;
+
+    /**
+     * @param idleTimeout Close resources that were not used for this many ms.
+     * Values below 1 keep resources until they are closed explicitly.
+     */
+    public Resources(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @return The registry shared by all Inspectors in this JVM. Set the
+     * SAAF_RESOURCE_IDLE environment variable to change its idle timeout.
+     */
+    public static Resources getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a resource, creating it if it does not exist or failed its health check.
+     *
+     * @param name The name of the resource.
+     * @param factory Creates the resource.
+     * @param check Decides whether an existing resource can be reused.
+     * @return The resource and whether it was created or reused.
+     * @throws IllegalStateException If the factory fails.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Use<T> use(String name, Factory<T> factory, HealthCheck<? super T> check) {
+        Entry entry = entries.computeIfAbsent(name, key -> new Entry());
+        synchronized (entry) {
+            String state = "reused";
+            long start = System.nanoTime();
+            if (entry.resource != null && !healthy((T) entry.resource, check)) {
+                close(entry);
+                state = "recreated";
+            }
+            if (entry.resource == null) {
+                if (state.equals("reused")) {
+                    state = "created";
+                }
+                try {
+                    entry.resource = factory.create();
+                } catch (Exception e) {
+                    throw new IllegalStateException("Cannot create resource " + name, e);
+                }
+                entry.creates++;
+            }
+            entry.uses++;
+            entry.lastUsed = System.currentTimeMillis();
+            return new Use<>((T) entry.resource, state, entry.uses, (System.nanoTime() - start) / 1000000.0);
+        }
+    }
+
+    /**
+     * Close every resource that has not been used for longer than the idle timeout.
+     *
+     * @return The number of resources closed.
+     */
+    public int closeIdle() {
+        if (idleTimeout < 1) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int closed = 0;
+        for (Entry entry : entries.values()) {
+            synchronized (entry) {
+                if (entry.resource != null && now - entry.lastUsed > idleTimeout) {
+                    close(entry);
+                    closed++;
+                }
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Close every resource.
+     */
+    public void closeAll() {
+        for (Entry entry : entries.values()) {
+            synchronized (entry) {
+                close(entry);
+            }
+        }
+    }
+
+    /**
+     * @return For each resource whether it is open, how often it was used and
+     * how often it had to be created.
+     */
+    public Map<String, Object> summary() {
+        Map<String, Object> summary = new HashMap<>();
+        List<String> names = new ArrayList<>(entries.keySet());
+        for (String name : names) {
+            Entry entry = entries.get(name);
+            synchronized (entry) {
+                Map<String, Object> stats = new HashMap<>();
+                stats.put("open", entry.resource != null);
+                stats.put("uses", entry.uses);
+                stats.put("creates", entry.creates);
+                summary.put(name, stats);
+            }
+        }
+        return summary;
+    }
+
+    private static <T> boolean healthy(T resource, HealthCheck<? super T> check) {
+        try {
+            return check == null || check.isHealthy(resource);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static void close(Entry entry) {
+        if (entry.resource instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) entry.resource).close();
+            } catch (Exception e) {
+                //The resource is discarded either way.
+            }
+        }
+        entry.resource = null;
+    }
+
+    private static long idleTimeout(String value) {
+        if (value == null) {
+            return 300000;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException nfe) {
+            return 300000;
+        }
+    }
+
+    private static class Entry {
+        private Object resource;
+        private long uses = 0;
+        private long creates = 0;
+        private long lastUsed = 0;
+    }
+
+    /**
+     * The result of getting a resource.
+     */
+    public static class Use<T> {
+        private final T resource;
+        private final String state;
+        private final long uses;
+        private final double time;
+
+        private Use(T resource, String state, long uses, double time) {
+            this.resource = resource;
+            this.state = state;
+            this.uses = uses;
+            this.time = time;
+        }
+
+        public T getResource() {
+            return resource;
+        }
+
+        /**
+         * @return created, reused, or recreated if the health check failed.
+         */
+        public String getState() {
+            return state;
+        }
+
+        /**
+         * @return The number of times the resource was used in this container.
+         */
+        public long getUses() {
+            return uses;
+        }
+
+        /**
+         * @return Time in ms spent checking and creating the resource.
+         */
+        public double getTime() {
+            return time;
+        }
+    }
+}
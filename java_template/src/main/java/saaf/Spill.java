@@ -0,0 +1,233 @@
+package saaf;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes oversize attribute values to gzip files so they do not stay on the
+ * heap or count against the platform's response size limit. The attribute is
+ * replaced by a pointer holding the file path, sizes and a SHA-256 digest of
+ * the original bytes.
+ *
+ * Files are written to SAAF_SPILL_DIR, /tmp/saaf-spill by default. Point it
+ * at a mounted file system such as EFS to keep spilled values after the
+ * container is gone. Warm containers keep their /tmp, so once the spill files
+ * exceed SAAF_SPILL_MAX_BYTES (default 100 MB, 0 for no limit) the oldest
+ * ones are deleted after each spill.
+ */
+public final class Spill {
+
+    private static final File DIRECTORY = new File(System.getenv("SAAF_SPILL_DIR") == null
+            ? "/tmp/saaf-spill" : System.getenv("SAAF_SPILL_DIR"));
+    private static final long MAX_BYTES = Inspector.parseBytes(System.getenv("SAAF_SPILL_MAX_BYTES"), 104857600);
+    private static final String SUFFIX = ".gz";
+
+    //Strings are encoded in chunks so no copy of the whole value is made.
+    private static final int CHUNK = 8192;
+
+    private Spill() {}
+
+    /**
+     * Get the size a value is spilled with, without encoding it.
+     *
+     * @param value An attribute value.
+     * @return The size in bytes, UTF-8 for strings, or -1 for values whose size is unknown.
+     */
+    static long estimateSize(Object value) {
+        if (value instanceof CharSequence) {
+            CharSequence text = (CharSequence) value;
+            long bytes = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    bytes++;
+                } else if (c < 0x800) {
+                    bytes += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                        && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    bytes += 4;
+                    i++;
+                } else {
+                    bytes += 3;
+                }
+            }
+            return bytes;
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        return -1;
+    }
+
+    /**
+     * Spill a string or byte array.
+     *
+     * @param key The attribute name, used in the file name.
+     * @param value A CharSequence or byte[].
+     * @return The pointer to store in place of the value.
+     * @throws IOException If the file cannot be written.
+     */
+    static HashMap<String, Object> write(String key, Object value) throws IOException {
+        File file = newFile(key);
+        MessageDigest digest = sha256();
+        CountingOutputStream stored = new CountingOutputStream(new FileOutputStream(file));
+        CountingOutputStream original;
+        try (OutputStream gzip = new GZIPOutputStream(stored, CHUNK)) {
+            original = new CountingOutputStream(new DigestOutputStream(gzip, digest));
+            if (value instanceof byte[]) {
+                original.write((byte[]) value);
+            } else {
+                Writer writer = new OutputStreamWriter(original, StandardCharsets.UTF_8);
+                CharSequence text = (CharSequence) value;
+                for (int i = 0; i < text.length(); i += CHUNK) {
+                    writer.append(text, i, Math.min(text.length(), i + CHUNK));
+                }
+                writer.flush();
+            }
+        }
+        prune(file);
+        return pointer(file, value instanceof byte[] ? "binary" : "utf-8", original.count, stored.count, digest);
+    }
+
+    /**
+     * Spill a stream without holding it in memory.
+     *
+     * @param key The attribute name, used in the file name.
+     * @param in The stream to copy. It is not closed.
+     * @return The pointer to store as the attribute value.
+     * @throws IOException If the stream cannot be read or the file written.
+     */
+    static HashMap<String, Object> write(String key, InputStream in) throws IOException {
+        File file = newFile(key);
+        MessageDigest digest = sha256();
+        CountingOutputStream stored = new CountingOutputStream(new FileOutputStream(file));
+        CountingOutputStream original;
+        try (OutputStream gzip = new GZIPOutputStream(stored, CHUNK)) {
+            original = new CountingOutputStream(new DigestOutputStream(gzip, digest));
+            byte[] buffer = new byte[CHUNK];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                original.write(buffer, 0, read);
+            }
+        }
+        prune(file);
+        return pointer(file, "binary", original.count, stored.count, digest);
+    }
+
+    /**
+     * Open a spilled value.
+     *
+     * @param pointer The pointer stored in place of the attribute.
+     * @return A stream of the original bytes.
+     * @throws IOException If the file cannot be read.
+     */
+    public static InputStream open(Map<String, Object> pointer) throws IOException {
+        return new GZIPInputStream(new BufferedInputStream(new FileInputStream(String.valueOf(pointer.get("path")))));
+    }
+
+    private static HashMap<String, Object> pointer(File file, String encoding, long bytes, long stored,
+            MessageDigest digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        HashMap<String, Object> pointer = new HashMap<>();
+        pointer.put("spilled", true);
+        pointer.put("path", file.getPath());
+        pointer.put("encoding", encoding);
+        pointer.put("compression", "gzip");
+        pointer.put("bytes", bytes);
+        pointer.put("storedBytes", stored);
+        pointer.put("sha256", hex.toString());
+        return pointer;
+    }
+
+    /**
+     * Get the spill directory, creating it if needed. Other code that spills
+     * to disk, such as etl.OffHeapHashIndex, uses it too.
+     *
+     * @return SAAF_SPILL_DIR, or /tmp/saaf-spill.
+     * @throws IOException If the directory cannot be created.
+     */
+    public static File directory() throws IOException {
+        if (!DIRECTORY.isDirectory() && !DIRECTORY.mkdirs()) {
+            throw new IOException("Could not create " + DIRECTORY);
+        }
+        return DIRECTORY;
+    }
+
+    private static File newFile(String key) throws IOException {
+        return new File(directory(), key.replaceAll("[^A-Za-z0-9_.-]", "_") + "-" + UUID.randomUUID() + SUFFIX);
+    }
+
+    /**
+     * Delete the oldest spill files until they fit in SAAF_SPILL_MAX_BYTES.
+     * The file just written is always kept.
+     *
+     * @param newest The file just written.
+     */
+    private static void prune(File newest) {
+        File[] files = DIRECTORY.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (MAX_BYTES < 1 || files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+        long total = newest.length();
+        for (File file : files) {
+            if (file.equals(newest)) {
+                continue;
+            }
+            total += file.length();
+            if (total > MAX_BYTES) {
+                total -= file.length();
+                file.delete();
+            }
+        }
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException(nsae);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
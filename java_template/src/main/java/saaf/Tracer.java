@@ -0,0 +1,215 @@
+package saaf;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records nested spans of user code and exports them as Chrome trace events,
+ * which can be opened in chrome://tracing or Perfetto.
+ *
+ * Spans are stored in arrays of 64 spans that are allocated as the spans are
+ * opened, so a tracer that records few spans stays small, and each thread
+ * reuses a single Span handle. Opening and closing a span only allocates when
+ * it starts a new block of 64. Spans opened after the capacity is reached are
+ * counted as dropped.
+ *
+ * <pre>
+ * try (Tracer.Span load = inspector.span("load")) {
+ *     try (Tracer.Span parse = inspector.span("parse")) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ */
+public class Tracer {
+
+    public static final int DEFAULT_CAPACITY = capacity(System.getenv("SAAF_TRACE_CAPACITY"));
+
+    //Spans per chunk, as a shift.
+    private static final int SHIFT = 6;
+    private static final int MASK = (1 << SHIFT) - 1;
+
+    private final int capacity;
+    private final AtomicReferenceArray<Chunk> chunks;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final long startNanos = System.nanoTime();
+    private final long startMicros = System.currentTimeMillis() * 1000;
+
+    private final ThreadLocal<Span> handles = new ThreadLocal<Span>() {
+        @Override
+        protected Span initialValue() {
+            return new Span(Thread.currentThread().getId());
+        }
+    };
+
+    /**
+     * Create a tracer holding DEFAULT_CAPACITY spans. Set the
+     * SAAF_TRACE_CAPACITY environment variable to change the default.
+     */
+    public Tracer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The number of spans that can be recorded.
+     */
+    public Tracer(int capacity) {
+        this.capacity = capacity;
+        chunks = new AtomicReferenceArray<>((capacity + MASK) >>> SHIFT);
+    }
+
+    /**
+     * Open a span. The span becomes the parent of spans opened on the same
+     * thread until it is closed.
+     *
+     * @param name The name shown in the trace viewer.
+     * @return The span handle of this thread, to be closed with try-with-resources.
+     */
+    public Span span(String name) {
+        Span handle = handles.get();
+        handle.open(name);
+        return handle;
+    }
+
+    /**
+     * @return The number of spans recorded.
+     */
+    public int size() {
+        return Math.min(size.get(), capacity);
+    }
+
+    /**
+     * @return The number of spans that did not fit in the buffer.
+     */
+    public int getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Export recorded spans as Chrome trace complete events. Spans that are
+     * still open end at the time of the export.
+     *
+     * name: The span name.
+     * ph:   Always "X", a complete event.
+     * ts:   Start time in microseconds since the Unix epoch.
+     * dur:  Duration in microseconds.
+     * pid:  Always 1, the function instance.
+     * tid:  The Java thread id.
+     * args: The span id and the id of its parent, -1 for top level spans.
+     *
+     * @return A list that can be returned as JSON under the traceEvents key.
+     */
+    public List<HashMap<String, Object>> toTraceEvents() {
+        int count = size();
+        long now = System.nanoTime();
+        List<HashMap<String, Object>> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Chunk chunk = chunks.get(i >>> SHIFT);
+            int j = i & MASK;
+            if (chunk == null || chunk.names[j] == null) {
+                //Claimed by a thread that has not written the span yet.
+                continue;
+            }
+            long end = chunk.ends[j] == 0 ? now : chunk.ends[j];
+            HashMap<String, Object> args = new HashMap<>();
+            args.put("id", i);
+            args.put("parent", chunk.parents[j]);
+
+            HashMap<String, Object> event = new HashMap<>();
+            event.put("name", chunk.names[j]);
+            event.put("ph", "X");
+            event.put("ts", startMicros + (chunk.starts[j] - startNanos) / 1000);
+            event.put("dur", (end - chunk.starts[j]) / 1000.0);
+            event.put("pid", 1);
+            event.put("tid", chunk.threads[j]);
+            event.put("args", args);
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * Get the chunk holding a span, allocating it on first use.
+     */
+    private Chunk chunk(int index) {
+        int c = index >>> SHIFT;
+        Chunk chunk = chunks.get(c);
+        if (chunk == null) {
+            chunks.compareAndSet(c, null, new Chunk());
+            chunk = chunks.get(c);
+        }
+        return chunk;
+    }
+
+    private static int capacity(String value) {
+        if (value != null) {
+            try {
+                return Math.max(1, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException nfe) {
+                //Use the default.
+            }
+        }
+        return 4096;
+    }
+
+    /**
+     * The span handle of a thread. close() ends the innermost open span of
+     * the thread, so handles must be closed in the order try-with-resources
+     * closes them.
+     */
+    public final class Span implements AutoCloseable {
+
+        private final long thread;
+        private int current = -1;
+        private int droppedDepth = 0;
+
+        private Span(long thread) {
+            this.thread = thread;
+        }
+
+        private void open(String name) {
+            int index = droppedDepth > 0 ? capacity : size.getAndIncrement();
+            if (index >= capacity) {
+                droppedDepth++;
+                dropped.incrementAndGet();
+                return;
+            }
+            Chunk chunk = chunk(index);
+            int j = index & MASK;
+            chunk.starts[j] = System.nanoTime();
+            chunk.parents[j] = current;
+            chunk.threads[j] = thread;
+            chunk.names[j] = name;
+            current = index;
+        }
+
+        /**
+         * End the innermost open span of this thread.
+         */
+        @Override
+        public void close() {
+            if (droppedDepth > 0) {
+                droppedDepth--;
+            } else if (current >= 0) {
+                Chunk chunk = chunks.get(current >>> SHIFT);
+                chunk.ends[current & MASK] = System.nanoTime();
+                current = chunk.parents[current & MASK];
+            }
+        }
+    }
+
+    /**
+     * The fields of 64 consecutive spans.
+     */
+    private static final class Chunk {
+        final String[] names = new String[1 << SHIFT];
+        final long[] starts = new long[1 << SHIFT];
+        final long[] ends = new long[1 << SHIFT];
+        final int[] parents = new int[1 << SHIFT];
+        final long[] threads = new long[1 << SHIFT];
+    }
+}
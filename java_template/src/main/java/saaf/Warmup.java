@@ -0,0 +1,186 @@
+package saaf;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Opt-in JIT warm-up run while the container initializes, so the first warm
+ * invocations already run compiled code. A handler calls run() from its
+ * static initializer and the warm-up drives the handler with a synthetic
+ * payload until the JIT stops compiling new code or the time budget is spent.
+ *
+ * SAAF_WARMUP:         The time budget in ms. Warm-up is disabled if unset or 0.
+ * SAAF_WARMUP_PAYLOAD: The request JSON to send instead of the handler's own
+ *                      synthetic request, {"name":"warmup"} unless the handler
+ *                      passes one to payload(fallback).
+ *
+ * While warming up, Inspectors do not stamp the container, count host
+ * invocations, update the Accumulator or write to the sink, so the first real
+ * invocation is still reported as a new container. The outcome is reported
+ * by finish() on every later invocation.
+ */
+public final class Warmup {
+
+    private static final long BUDGET = parseBudget(System.getenv("SAAF_WARMUP"));
+    private static final String PAYLOAD = System.getenv("SAAF_WARMUP_PAYLOAD");
+    private static final Type MAP_TYPE = new TypeToken<HashMap<String, Object>>() {}.getType();
+
+    //Compilation is checked after every round of iterations. The budget is checked before every iteration.
+    private static final int ROUND = 50;
+    //Rounds without new JIT compilation before the code is considered compiled.
+    private static final int STABLE_ROUNDS = 3;
+
+    private static volatile boolean warming = false;
+    private static volatile boolean ran = false;
+    private static long time;
+    private static long iterations;
+    private static long compileTime;
+    private static String result;
+
+    private Warmup() {}
+
+    /**
+     * @return Whether SAAF_WARMUP sets a time budget.
+     */
+    public static boolean isEnabled() {
+        return BUDGET > 0;
+    }
+
+    /**
+     * @return A new copy of the synthetic request.
+     */
+    public static HashMap<String, Object> payload() {
+        HashMap<String, Object> fallback = new HashMap<>();
+        fallback.put("name", "warmup");
+        return payload(fallback);
+    }
+
+    /**
+     * Get the synthetic request for a handler that needs a request driving
+     * its real code path, such as an input file.
+     *
+     * @param fallback The handler's synthetic request, used if SAAF_WARMUP_PAYLOAD is not set.
+     * @return A new copy of the synthetic request.
+     */
+    public static HashMap<String, Object> payload(Map<String, Object> fallback) {
+        if (PAYLOAD != null) {
+            try {
+                HashMap<String, Object> payload = new Gson().fromJson(PAYLOAD, MAP_TYPE);
+                if (payload != null) {
+                    return payload;
+                }
+            } catch (JsonParseException jpe) {
+                //Fall back to the default payload.
+            }
+        }
+        return new HashMap<>(fallback);
+    }
+
+    /**
+     * Warm up once per container if SAAF_WARMUP is set.
+     *
+     * @param iteration One invocation of the handler with a synthetic payload.
+     */
+    public static void run(Runnable iteration) {
+        if (isEnabled()) {
+            run(iteration, BUDGET);
+        }
+    }
+
+    /**
+     * Call iteration until the JIT compiler has been idle for a few rounds or
+     * the budget is spent. The budget is checked before every iteration, so
+     * it is exceeded by at most one iteration. Only the first call per
+     * container warms up.
+     *
+     * @param iteration One invocation of the handler with a synthetic payload.
+     * @param budget The time budget in ms.
+     */
+    public static synchronized void run(Runnable iteration, long budget) {
+        if (ran) {
+            return;
+        }
+        CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+        boolean monitored = jit != null && jit.isCompilationTimeMonitoringSupported();
+        long compileStart = monitored ? jit.getTotalCompilationTime() : 0;
+        long lastCompile = compileStart;
+        long start = System.nanoTime();
+        long deadline = start + budget * 1000000;
+        long count = 0;
+        int stable = 0;
+        String outcome = "budget";
+
+        warming = true;
+        try {
+            while (System.nanoTime() < deadline) {
+                iteration.run();
+                count++;
+                //Without compilation time monitoring the whole budget is used.
+                if (monitored && count % ROUND == 0) {
+                    long compiled = jit.getTotalCompilationTime();
+                    stable = compiled == lastCompile ? stable + 1 : 0;
+                    lastCompile = compiled;
+                    if (stable >= STABLE_ROUNDS) {
+                        outcome = "compiled";
+                        break;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            outcome = e.toString();
+        } finally {
+            warming = false;
+        }
+
+        time = (System.nanoTime() - start) / 1000000;
+        iterations = count;
+        compileTime = monitored ? jit.getTotalCompilationTime() - compileStart : -1;
+        result = outcome;
+        ran = true;
+    }
+
+    /**
+     * @return Whether a warm-up is in progress.
+     */
+    static boolean isWarming() {
+        return warming;
+    }
+
+    /**
+     * Add the warm-up outcome to an Inspector's attributes.
+     *
+     * warmup:            Whether a warm-up ran in this container. The other
+     *                    attributes are only added if it did.
+     * warmupTime:        Time in ms the warm-up took.
+     * warmupIterations:  Synthetic invocations run.
+     * warmupCompileTime: Time in ms the JIT compiler spent during warm-up, or -1.
+     * warmupResult:      compiled, budget or the exception that ended the warm-up.
+     */
+    static synchronized void report(Map<String, Object> attributes) {
+        attributes.put("warmup", ran);
+        if (!ran) {
+            return;
+        }
+        attributes.put("warmupTime", time);
+        attributes.put("warmupIterations", iterations);
+        attributes.put("warmupCompileTime", compileTime);
+        attributes.put("warmupResult", result);
+    }
+
+    private static long parseBudget(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return (long) Double.parseDouble(value.trim());
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+}